@@ -0,0 +1,66 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks for making and cleaning up test files.
+ */
+final class BenchmarkFiles {
+    static final ProgressListener NO_PROGRESS = new ProgressListener() {
+        @Override
+        public void updateProgress(Progress progress) {
+        }
+
+        @Override
+        public void updateProgress(String message) {
+        }
+    };
+
+    static final byte[] KEY = new SimpleCipherAES(NO_PROGRESS).hashKey("benchmark");
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Writes a file of pseudo-random (i.e. incompressible) bytes.
+     */
+    static File randomFile(Path directory, String name, long size) throws IOException {
+        Path path = directory.resolve(name);
+        Random random = new Random(size);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                random.nextBytes(buffer.array());
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+
+        return path.toFile();
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
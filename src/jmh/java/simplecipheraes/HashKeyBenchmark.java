@@ -0,0 +1,42 @@
+package simplecipheraes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a user-entered password into a key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashKeyBenchmark {
+    @Param({ "8", "64" })
+    public int passwordLength;
+
+    private SimpleCipherAES cipher;
+    private String password;
+
+    @Setup
+    public void setUp() {
+        cipher = new SimpleCipherAES(BenchmarkFiles.NO_PROGRESS);
+        password = "p".repeat(passwordLength);
+    }
+
+    @Benchmark
+    public byte[] hashKey() {
+        return cipher.hashKey(password);
+    }
+}
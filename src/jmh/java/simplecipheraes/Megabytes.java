@@ -0,0 +1,28 @@
+package simplecipheraes;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts megabytes processed by a benchmark.
+ * JMH reports {@link AuxCounters.Type#OPERATIONS} counters per unit of time, so
+ * with a {@code SECONDS} output time unit this shows up as MB/s next to the
+ * usual ops/s score.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Megabytes {
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+    }
+
+    public void add(long bytes) {
+        megabytes += bytes / 1_000_000.0;
+    }
+}
@@ -0,0 +1,92 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-file runs through {@link SimpleCipherAES#processFileAndWait}, sweeping
+ * every engine setting that {@link CipherOptions} exposes.
+ * Each invocation is a complete job; the {@code megabytes} counter reports MB/s.
+ *
+ * The full sweep is large (and the 2.2 GB file needs that much free disk space),
+ * so narrow it down with {@code -p}, e.g. {@code -p fileSize=100000000 -p ioBackend=CHANNEL}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = { "-Xmx512m" })
+public class ProcessFileBenchmark {
+    @Param({ "1000000", "100000000", "2200000000" })
+    public long fileSize;
+
+    @Param({ "ENCRYPT", "DECRYPT" })
+    public EncryptionDirection direction;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "STREAM", "CHANNEL", "MAPPED" })
+    public IoBackend ioBackend;
+
+    @Param({ "65536", "1048576" })
+    public int bufferSize;
+
+    @Param({ "0", "4" })
+    public int pipelineDepth;
+
+    private Path directory;
+    private File input;
+    private SimpleCipherAES cipher;
+    private CipherOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("simplecipheraes-jmh");
+        cipher = new SimpleCipherAES(BenchmarkFiles.NO_PROGRESS);
+
+        options = new CipherOptions();
+        options.setThreads(threads);
+        options.setIoBackend(ioBackend);
+        options.setBufferSize(bufferSize);
+        options.setPipelineDepth(pipelineDepth);
+
+        File plain = BenchmarkFiles.randomFile(directory, "input.bin", fileSize);
+        if (direction == EncryptionDirection.ENCRYPT) {
+            input = plain;
+        } else {
+            input = cipher.processFileAndWait(plain, BenchmarkFiles.KEY, EncryptionDirection.ENCRYPT,
+                    new CipherOptions(), BenchmarkFiles.NO_PROGRESS);
+            plain.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public File processFile(Megabytes counter) throws Exception {
+        File output = cipher.processFileAndWait(input, BenchmarkFiles.KEY, direction, options,
+                BenchmarkFiles.NO_PROGRESS);
+        counter.add(input.length());
+        return output;
+    }
+}
@@ -0,0 +1,70 @@
+package simplecipheraes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pure cipher cost of a single segment, without any disk I/O.
+ * This is the in-memory equivalent of one chunk going through the old
+ * {@code encryptAndSave}/{@code decryptAndSave}, and shows how the buffer
+ * size affects the streaming engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx512m" })
+public class SegmentBenchmark {
+    @Param({ "1048576", "16777216" })
+    public int segmentSize;
+
+    @Param({ "4096", "65536", "1048576" })
+    public int bufferSize;
+
+    @Param({ "ENCRYPT", "DECRYPT" })
+    public EncryptionDirection direction;
+
+    private StreamingCipherEngine engine;
+    private byte[] input;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setUp() throws Exception {
+        SegmentLayout layout = new SegmentLayout(segmentSize);
+        engine = new StreamingCipherEngine(layout, bufferSize);
+
+        byte[] plain = new byte[segmentSize];
+        new Random(segmentSize).nextBytes(plain);
+        if (direction == EncryptionDirection.ENCRYPT) {
+            input = plain;
+        } else {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream(layout.getEncryptedSegmentSize());
+            new StreamingCipherEngine(layout, bufferSize).process(new ByteArrayInputStream(plain), encrypted,
+                    BenchmarkFiles.KEY, EncryptionDirection.ENCRYPT, null);
+            input = encrypted.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public long segment(Megabytes counter) throws Exception {
+        long processed = engine.process(new ByteArrayInputStream(input), sink,
+                BenchmarkFiles.KEY, direction, null);
+        counter.add(processed);
+        return processed;
+    }
+}
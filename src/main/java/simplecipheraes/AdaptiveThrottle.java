@@ -0,0 +1,130 @@
+package simplecipheraes;
+
+import java.util.Arrays;
+
+/**
+ * Limits how many of a parallel job's threads work at once, and moves that
+ * limit while the job runs to wherever the job goes fastest.
+ *
+ * Workers call {@link #acquire()} before each segment and {@link #release}
+ * after it, with the time the segment spent in each stage. Every
+ * {@value #WINDOW_MILLIS} ms the throughput of the last window is compared
+ * with the one before, and the limit is moved one thread at a time: on in the
+ * same direction if that helped, back if it hurt. The first window only
+ * measures, so nothing moves before there's something to compare with.
+ *
+ * When a move made no real difference (or nothing has moved yet), the job's
+ * own stage timings break the tie: a job that mostly waits on reading and
+ * writing sheds a thread, since more of them would only queue up on the disk,
+ * and one that mostly ciphers gets another. The timings are this job's only,
+ * not the app-wide ones in {@link CipherMetrics}, so other jobs running at the
+ * same time don't steer it.
+ */
+public class AdaptiveThrottle {
+    /**
+     * Time between adjustments
+     */
+    public static final long WINDOW_MILLIS = 250;
+
+    /**
+     * Change in throughput smaller than this counts as no change
+     */
+    private static final double NOISE = 0.03;
+
+    private final int maxThreads;
+    private final long windowNanos;
+    private int limit;
+    private int active;
+    //Direction of the last move; 0 until the first one
+    private int step;
+
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private final long[] windowStageNanos = new long[CipherMetrics.Stage.values().length];
+    private double lastThroughput;
+
+    /**
+     * @param maxThreads
+     *          Number of threads the job has; the limit starts here
+     */
+    public AdaptiveThrottle(int maxThreads) {
+        this(maxThreads, WINDOW_MILLIS * 1_000_000);
+    }
+
+    /**
+     * @param windowNanos
+     *          Time between adjustments
+     */
+    AdaptiveThrottle(int maxThreads, long windowNanos) {
+        this.maxThreads = maxThreads;
+        this.windowNanos = windowNanos;
+        this.limit = maxThreads;
+    }
+
+    /**
+     * Waits until the calling worker may start another segment.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (active >= limit) {
+            wait();
+        }
+        active++;
+    }
+
+    /**
+     * Lets another worker start, and counts the bytes the finished segment processed.
+     *
+     * @param stageNanos
+     *          Time the segment spent in each {@link CipherMetrics.Stage}, by ordinal
+     */
+    public synchronized void release(long bytes, long[] stageNanos) {
+        active--;
+        windowBytes += bytes;
+        for (int i = 0; i < windowStageNanos.length; i++) {
+            windowStageNanos[i] += stageNanos[i];
+        }
+
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos) {
+            adjust(windowBytes / (double) (now - windowStart));
+            windowStart = now;
+            windowBytes = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Moves the limit at the end of a window.
+     *
+     * @param throughput
+     *          Bytes per nanosecond processed in the window that just ended
+     */
+    synchronized void adjust(double throughput) {
+        if (lastThroughput > 0) {
+            if (step != 0 && throughput < lastThroughput * (1 - NOISE)) {
+                step = -step;
+            } else if (step == 0 || throughput <= lastThroughput * (1 + NOISE)) {
+                long cipherNanos = windowStageNanos[CipherMetrics.Stage.CIPHER.ordinal()];
+                long ioNanos = windowStageNanos[CipherMetrics.Stage.READ.ordinal()]
+                        + windowStageNanos[CipherMetrics.Stage.WRITE.ordinal()];
+                step = ioNanos > cipherNanos ? -1 : 1;
+            }
+        }
+        lastThroughput = throughput;
+        Arrays.fill(windowStageNanos, 0);
+
+        int newLimit = Math.max(1, Math.min(maxThreads, limit + step));
+        if (newLimit != limit) {
+            limit = newLimit;
+            CipherMetrics.getShared().recordTuningAdjustment(limit);
+        }
+    }
+
+    /**
+     * @return
+     *          Number of threads currently allowed to work at once
+     */
+    public synchronized int getLimit() {
+        return this.limit;
+    }
+}
@@ -0,0 +1,241 @@
+package simplecipheraes;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Picks the threads, buffer size and pipeline depth of each job, so the app
+ * runs well in a small container as well as on a big machine without being
+ * told how.
+ *
+ * The choice is based on the file's size, the heap that's left, the cores
+ * not already busy with other jobs, and how fast this machine ciphers, which
+ * is measured once with a short calibration run the first time a large
+ * enough file comes along:
+ * <ul>
+ *   <li>The buffer size is the smallest one that ciphers about as fast as the
+ *       largest, since larger buffers only cost memory after that point.</li>
+ *   <li>Files that take only a few milliseconds to cipher get a single thread
+ *       and no pipeline, since starting threads would take longer than the work.</li>
+ *   <li>Larger files get one thread per {@value #MIN_WORK_MILLIS} ms of work, up to
+ *       the cores available, and the buffers are shrunk (or threads dropped) until
+ *       they fit in the heap budget.</li>
+ * </ul>
+ * While a parallel job runs, an {@link AdaptiveThrottle} adjusts how many of
+ * its threads are active based on the throughput it actually gets.
+ *
+ * Options that were set explicitly are never changed. Every choice is
+ * recorded in {@link CipherMetrics}.
+ */
+public class AdaptiveTuner {
+    /**
+     * Work per thread below which another thread isn't worth starting
+     */
+    public static final long MIN_WORK_MILLIS = 20;
+
+    /**
+     * Part of the free heap all jobs together may use for buffers
+     */
+    public static final int HEAP_SHARE_DIVISOR = 4;
+
+    public static final int MIN_BUFFER_SIZE = 4 << 10;
+
+    private static final int[] CANDIDATE_BUFFER_SIZES = { 16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20 };
+    private static final int CALIBRATION_BYTES = 8 << 20;
+    /**
+     * Files smaller than this are never worth a calibration run
+     */
+    private static final long CALIBRATION_THRESHOLD = 4 << 20;
+    /**
+     * A buffer size is good enough if it ciphers at least this fast, relative to the fastest
+     */
+    private static final double GOOD_ENOUGH = 0.9;
+    private static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    private static final AdaptiveTuner SHARED = new AdaptiveTuner();
+
+    //Set by the calibration run
+    private int calibratedBufferSize;
+    private double cipherBytesPerNano;
+
+    /**
+     * @return
+     *          The tuner used by all jobs of this app
+     */
+    public static AdaptiveTuner getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Picks the options of a job.
+     *
+     * @param options
+     *          Options given for the job; returned as they are if auto-tuning is off
+     * @param inputSize
+     *          Size of the file being processed
+     * @param layout
+     *          Layout the file is written with
+     * @param direction
+     *          If the file will be encrypted or decrypted
+     * @return
+     *          A copy of the options with the tuned values filled in
+     */
+    public CipherOptions tune(CipherOptions options, long inputSize, SegmentLayout layout,
+                              EncryptionDirection direction) {
+        if (!options.isAutoTune()) {
+            return options;
+        }
+        CipherOptions tuned = new CipherOptions(options);
+        CipherMetrics metrics = CipherMetrics.getShared();
+
+        //Other running jobs get their share of the cores and the heap too
+        int jobs = Math.max(1, metrics.getActiveJobs());
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors() / jobs);
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long budget = Math.max(2L * MIN_BUFFER_SIZE, freeHeap / HEAP_SHARE_DIVISOR / jobs);
+
+        int bufferSize;
+        long workMillis;
+        if (inputSize < CALIBRATION_THRESHOLD) {
+            bufferSize = StreamingCipherEngine.DEFAULT_BUFFER_SIZE;
+            workMillis = 0;
+        } else {
+            calibrate(layout);
+            bufferSize = calibratedBufferSize;
+            workMillis = (long) (inputSize / cipherBytesPerNano / 1_000_000);
+        }
+        //Nothing is gained from buffers larger than a segment, or the whole file
+        bufferSize = (int) Math.min(bufferSize, Math.min(layout.getInputSegmentSize(direction),
+                Math.max(MIN_BUFFER_SIZE, inputSize)));
+        if (options.isBufferSizeSet()) {
+            bufferSize = options.getBufferSize();
+        }
+
+        int threads;
+        if (options.isThreadsSet()) {
+            threads = options.getThreads();
+        } else if (direction == EncryptionDirection.ENCRYPT && options.getCompression() != Compression.NONE) {
+            //Compressing is far slower than ciphering, so the calibration says nothing about it
+            threads = cores;
+        } else {
+            long segments = layout.getSegmentCount(direction, inputSize);
+            threads = (int) Math.max(1, Math.min(Math.min(cores, segments), workMillis / MIN_WORK_MILLIS));
+        }
+
+        int depth;
+        if (options.isPipelineDepthSet()) {
+            depth = options.getPipelineDepth();
+        } else {
+            //Overlapping the stages only pays off if there are a few buffers' worth of work
+            depth = threads == 1 && workMillis >= MIN_WORK_MILLIS && inputSize > 2L * bufferSize
+                    ? DEFAULT_PIPELINE_DEPTH
+                    : 0;
+        }
+
+        //Each thread or pipeline slot holds an input and an output buffer
+        int buffersPerJob = 2 * Math.max(threads, depth);
+        if (!options.isBufferSizeSet()) {
+            while (bufferSize > MIN_BUFFER_SIZE && (long) bufferSize * buffersPerJob > budget) {
+                bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize / 2);
+            }
+        }
+        if (!options.isThreadsSet() && (long) bufferSize * 2 * threads > budget) {
+            threads = (int) Math.max(1, budget / (2L * bufferSize));
+        }
+        if (!options.isPipelineDepthSet() && depth > 0 && (long) bufferSize * 2 * depth > budget) {
+            depth = budget / (2L * bufferSize) >= 2 ? (int) (budget / (2L * bufferSize)) : 0;
+        }
+
+        tuned.setThreads(threads);
+        tuned.setBufferSize(bufferSize);
+        tuned.setPipelineDepth(depth);
+        metrics.recordTuning(threads, bufferSize, depth);
+        return tuned;
+    }
+
+    /**
+     * Makes a throttle for a parallel job, unless its thread count was set explicitly.
+     *
+     * @return
+     *          A throttle starting at all of the job's threads, or null if the
+     *          job's threads shouldn't be adjusted
+     */
+    public AdaptiveThrottle newThrottle(CipherOptions given, CipherOptions tuned) {
+        if (!given.isAutoTune() || given.isThreadsSet() || tuned.getThreads() < 2) {
+            return null;
+        }
+        return new AdaptiveThrottle(tuned.getThreads());
+    }
+
+    /**
+     * Measures how fast each candidate buffer size ciphers, once per run of the app.
+     * Takes a few tens of milliseconds.
+     */
+    private synchronized void calibrate(SegmentLayout layout) {
+        if (cipherBytesPerNano > 0) {
+            return;
+        }
+
+        try {
+            //Keyed directly, so calibrating doesn't pay for a key derivation
+            SegmentCipher cipher = new SegmentCipher(new byte[16], EncryptionDirection.ENCRYPT, layout);
+            int largest = CANDIDATE_BUFFER_SIZES[CANDIDATE_BUFFER_SIZES.length - 1];
+            ByteBuffer in = ByteBuffer.allocate(largest);
+            ByteBuffer out = ByteBuffer.allocate(SegmentCipher.maxOutputSize(largest));
+
+            int segmentSize = layout.getPlainSegmentSize();
+            //The first run only warms up the JIT
+            measure(cipher, in, out, CANDIDATE_BUFFER_SIZES[0], segmentSize);
+            double[] speeds = new double[CANDIDATE_BUFFER_SIZES.length];
+            double fastest = 0;
+            for (int i = 0; i < speeds.length; i++) {
+                speeds[i] = measure(cipher, in, out, CANDIDATE_BUFFER_SIZES[i], segmentSize);
+                fastest = Math.max(fastest, speeds[i]);
+            }
+            cipher.release();
+
+            int chosen = 0;
+            while (speeds[chosen] < fastest * GOOD_ENOUGH) {
+                chosen++;
+            }
+            calibratedBufferSize = CANDIDATE_BUFFER_SIZES[chosen];
+            cipherBytesPerNano = fastest;
+        } catch (GeneralSecurityException ex) {
+            //Can't happen with AES, but a guess is still better than failing the job
+            calibratedBufferSize = StreamingCipherEngine.DEFAULT_BUFFER_SIZE;
+            cipherBytesPerNano = 0.5;
+        }
+        CipherMetrics.getShared().recordCalibration((long) (cipherBytesPerNano * 1_000_000_000));
+    }
+
+    /**
+     * @return
+     *          Bytes ciphered per nanosecond, fed in chunks of the given size
+     *          and split into segments like a real file
+     */
+    private static double measure(SegmentCipher cipher, ByteBuffer in, ByteBuffer out,
+                                  int chunkSize, int segmentSize) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        long segment = 0;
+        int inSegment = 0;
+        cipher.seek(segment);
+        for (int done = 0; done < CALIBRATION_BYTES; ) {
+            int length = Math.min(chunkSize, Math.min(segmentSize - inSegment, CALIBRATION_BYTES - done));
+            in.clear();
+            in.limit(length);
+            out.clear();
+            cipher.update(in, out);
+            done += length;
+            inSegment += length;
+
+            if (inSegment == segmentSize || done == CALIBRATION_BYTES) {
+                out.clear();
+                cipher.finish(out, false);
+                cipher.seek(++segment);
+                inSegment = 0;
+            }
+        }
+        return (double) CALIBRATION_BYTES / Math.max(1, System.nanoTime() - start);
+    }
+}
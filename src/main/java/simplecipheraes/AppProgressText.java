@@ -1,14 +1,26 @@
 package simplecipheraes;
 
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.application.Platform;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextAlignment;
 
-public class AppProgressText {
+/**
+ * Shows a job's progress below the buttons.
+ * Updates can come from any thread; they're handed to the FX thread with
+ * at most one {@link Platform#runLater} waiting at a time, and that one
+ * shows whatever the latest text is when it runs, so however often this is
+ * updated the screen changes at most once per frame.
+ */
+public class AppProgressText implements ProgressListener {
     Text progress = new Text();
     Font font = new Font("vernanda", 16);
 
+    //Latest text not shown yet; null when there's nothing waiting for the FX thread
+    private final AtomicReference<String> pendingText = new AtomicReference<>();
+
     public AppProgressText() {
         this("Type in a password to encrypt or decrypt");
     }
@@ -21,15 +33,14 @@ public class AppProgressText {
 
     /**
      * Updates the progress of the encryption/decryption, and displays
-     * it on the screen.
+     * it on the screen along with the speed and time left.
      *
-     * @param completedSize
-     *          Number of bytes processed in the encryption/decryption
-     *          methods
-     * @param fileSize
-     *          Size of the file, in bytes
+     * @param progress
+     *          How far along the job is
      */
-    public void updateProgress(double completedSize, double fileSize) {
+    @Override
+    public void updateProgress(Progress progress) {
+        double fileSize = progress.getTotalBytes();
         double orderOfMagnitude;
         String suffix;
         if (fileSize > 1000000000) {
@@ -46,12 +57,18 @@ public class AppProgressText {
             suffix = "B";
         }
 
-        //Round numbers to the nearest hundredth
-        double completedSizeDisplayed = ((double)Math.round(completedSize/orderOfMagnitude*100))/100;
-        double fileSizeDisplayed = ((double)Math.round(fileSize/orderOfMagnitude*100))/100;
+        this.updateProgress(String.format("Running...%n%.2f/%.2f %s completed%n%.1f MB/s, %s left",
+                progress.getCompletedBytes() / orderOfMagnitude, fileSize / orderOfMagnitude, suffix,
+                progress.getBytesPerSecond() / 1000000.0, formatEta(progress.getEtaSeconds())));
+    }
 
-        this.updateProgress("Running...\n" + completedSizeDisplayed + "/" +
-                                     fileSizeDisplayed + " " + suffix + " completed");
+    private static String formatEta(long seconds) {
+        if (seconds < 0) {
+            return "unknown time";
+        }
+        return seconds >= 3600
+                ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+                : String.format("%d:%02d", seconds / 60, seconds % 60);
     }
 
     /**
@@ -60,8 +77,21 @@ public class AppProgressText {
      * @param message
      *          Text to display
      */
+    @Override
     public void updateProgress(String message) {
-        this.progress.setText(message);
+        if (Platform.isFxApplicationThread()) {
+            pendingText.set(null);
+            this.progress.setText(message);
+        } else if (pendingText.getAndSet(message) == null) {
+            //Nothing was waiting yet, so nothing will pick this text up unless we ask
+            Platform.runLater(() -> {
+                String text = pendingText.getAndSet(null);
+                //Null if the FX thread set newer text itself in the meantime
+                if (text != null) {
+                    this.progress.setText(text);
+                }
+            });
+        }
     }
 
     public Text getSceneElement() {
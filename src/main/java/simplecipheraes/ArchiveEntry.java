@@ -0,0 +1,44 @@
+package simplecipheraes;
+
+/**
+ * A file stored in an archive made by {@link ArchiveWriter}.
+ */
+public class ArchiveEntry {
+    private final String name;
+    private final long offset;
+    private final long length;
+    private final long lastModified;
+
+    /**
+     * @param name
+     *          Relative path of the file, with '/' between directories
+     * @param offset
+     *          Position of the file's contents in the archive's plaintext
+     * @param length
+     *          Size of the file
+     * @param lastModified
+     *          Modification time of the file when it was archived
+     */
+    public ArchiveEntry(String name, long offset, long length, long lastModified) {
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+}
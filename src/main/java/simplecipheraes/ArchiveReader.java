@@ -0,0 +1,197 @@
+package simplecipheraes;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads files out of an archive made by an {@link ArchiveWriter}.
+ * The index is read from the end of the archive when it's opened, and each
+ * file is decrypted on its own through a {@link SeekableDecryptingChannel},
+ * so getting one file out of a huge archive only decrypts that file.
+ *
+ * Not thread-safe; open one reader per thread.
+ */
+public class ArchiveReader implements Closeable {
+    private final SeekableDecryptingChannel channel;
+    private final Map<String, ArchiveEntry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param archive
+     *          Archive to read
+     * @param key
+     *          User-given key
+     * @throws java.security.InvalidKeyException
+     *          If the key is wrong
+     * @throws IOException
+     *          If the file isn't an archive
+     */
+    public ArchiveReader(File archive, byte[] key) throws IOException, GeneralSecurityException {
+        this.channel = new SeekableDecryptingChannel(archive, key);
+        try {
+            readIndex(archive);
+        } catch (CipherStreamException ex) {
+            channel.close();
+            throw ex.getCause();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void readIndex(File archive) throws IOException {
+        long size = channel.size();
+        if (size < ArchiveWriter.TRAILER_LENGTH) {
+            throw new IOException(archive + " is not an archive");
+        }
+
+        DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                read(size - ArchiveWriter.TRAILER_LENGTH, ArchiveWriter.TRAILER_LENGTH)));
+        long indexOffset = trailer.readLong();
+        int version = trailer.readInt();
+        byte[] magic = new byte[ArchiveWriter.MAGIC.length];
+        trailer.readFully(magic);
+        if (!Arrays.equals(magic, ArchiveWriter.MAGIC)) {
+            throw new IOException(archive + " is not an archive");
+        }
+        if (version != ArchiveWriter.VERSION) {
+            throw new IOException(archive + " was made by a newer version of this app");
+        }
+        long indexLength = size - ArchiveWriter.TRAILER_LENGTH - indexOffset;
+        if (indexOffset < 0 || indexLength < 4 || indexLength > Integer.MAX_VALUE) {
+            throw new IOException("Index of " + archive + " is corrupted");
+        }
+
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(read(indexOffset, (int) indexLength)));
+        int count = index.readInt();
+        for (int i = 0; i < count; i++) {
+            ArchiveEntry entry = new ArchiveEntry(index.readUTF(), index.readLong(),
+                    index.readLong(), index.readLong());
+            if (entry.getOffset() < 0 || entry.getLength() < 0
+                    || entry.getOffset() + entry.getLength() > indexOffset) {
+                throw new IOException("Index of " + archive + " is corrupted");
+            }
+            entries.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * @return
+     *          Every file in the archive, in the order they were packed
+     */
+    public List<ArchiveEntry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * @return
+     *          The file stored under the given name, or null if there is none
+     */
+    public ArchiveEntry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Decrypts a whole file from the archive into memory.
+     *
+     * @throws javax.crypto.AEADBadTagException
+     *          If the part of the archive holding the file was tampered with
+     */
+    public byte[] read(ArchiveEntry entry) throws IOException, GeneralSecurityException {
+        if (entry.getLength() > Integer.MAX_VALUE) {
+            throw new IOException(entry.getName() + " is too large to be read into memory");
+        }
+        try {
+            return read(entry.getOffset(), (int) entry.getLength());
+        } catch (CipherStreamException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Decrypts a file from the archive into the given stream, a chunk at a time.
+     * The stream isn't closed.
+     *
+     * @throws javax.crypto.AEADBadTagException
+     *          If the part of the archive holding the file was tampered with
+     */
+    public void extract(ArchiveEntry entry, OutputStream out) throws IOException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.allocate(StreamingCipherEngine.DEFAULT_BUFFER_SIZE);
+        long position = entry.getOffset();
+        long end = entry.getOffset() + entry.getLength();
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead <= 0) {
+                    throw new IOException("Archive ended in the middle of " + entry.getName());
+                }
+                out.write(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
+        } catch (CipherStreamException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Decrypts a file from the archive to its path under the given directory,
+     * creating any directories it's in and restoring its modification time.
+     *
+     * @return
+     *          File the entry was saved to
+     * @throws IOException
+     *          If the entry's name would put it outside the directory
+     */
+    public File extract(ArchiveEntry entry, File directory) throws IOException, GeneralSecurityException {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        Path target = root.resolve(entry.getName()).normalize();
+        //The index is MACed, but names are still checked before they're used as paths
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException(entry.getName() + " would be extracted outside of " + directory);
+        }
+
+        File file = target.toFile();
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            extract(entry, out);
+        } catch (IOException | GeneralSecurityException ex) {
+            file.delete();
+            throw ex;
+        }
+        file.setLastModified(entry.getLastModified());
+        return file;
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                throw new IOException("Archive is truncated");
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
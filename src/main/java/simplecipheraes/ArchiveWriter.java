@@ -0,0 +1,204 @@
+package simplecipheraes;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Packs many files into a single encrypted archive, so encrypting a directory
+ * of small files makes one file instead of one per input.
+ *
+ * The archive is an ordinary encrypted file, so every segment is MACed like
+ * any other. Its plaintext is the contents of every file back to back,
+ * followed by an index of where each one starts, followed by a fixed-size
+ * trailer pointing at the index. The index is encrypted along with
+ * everything else, so file names aren't revealed. An {@link ArchiveReader}
+ * can find the index from the end of the file, and then decrypt any single
+ * file without touching the rest.
+ *
+ * Small files are read on several threads at once and written in order,
+ * since opening and reading them costs far more than encrypting them.
+ */
+public class ArchiveWriter {
+    /**
+     * Files up to this size are read whole, in parallel; larger ones are streamed
+     */
+    public static final int SMALL_FILE_SIZE = 1 << 20;
+
+    static final byte[] MAGIC = { 'S', 'C', 'A', 'E', 'S', 'P', 'A', 'K' };
+    static final int VERSION = 1;
+    /**
+     * Index position, version and magic, at the very end of the plaintext
+     */
+    static final int TRAILER_LENGTH = 8 + 4 + MAGIC.length;
+
+    private final SegmentLayout layout;
+    private final int threads;
+    private final int bufferSize;
+
+    /**
+     * @param layout
+     *          Layout of the archive
+     * @param threads
+     *          Number of files read at once
+     * @param bufferSize
+     *          Size of the chunks large files are read in
+     */
+    public ArchiveWriter(SegmentLayout layout, int threads, int bufferSize) {
+        this.layout = layout;
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Writes the given files into a new archive.
+     *
+     * @param files
+     *          Files to pack; each is stored under its path as given, made relative
+     * @param archive
+     *          File to save the archive to; replaced if it exists
+     * @param key
+     *          User-given key
+     * @param onFileDone
+     *          Called with the total number of bytes packed so far each time a file is done; may be null
+     * @return
+     *          The archive's entries, in the order they were written
+     */
+    public List<ArchiveEntry> write(List<File> files, File archive, byte[] key, LongConsumer onFileDone)
+            throws IOException, GeneralSecurityException {
+        List<ArchiveEntry> entries = new ArrayList<>(files.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, CompressingOutputStream.daemon("archive-reader"));
+        //Keeps the readers a little ahead of the writer, without holding too many files in memory
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int window = 4 * threads;
+        byte[] buffer = new byte[bufferSize];
+        CipherMetrics.getShared().recordAllocation(buffer.length);
+
+        try (SegmentCipherOutputStream out = new SegmentCipherOutputStream(
+                new BufferedOutputStream(new FileOutputStream(archive), bufferSize),
+                key, EncryptionDirection.ENCRYPT, layout, Compression.NONE, 1, bufferSize)) {
+            long position = 0;
+            int next = 0;
+            for (int i = 0; i < files.size(); i++) {
+                while (next < files.size() && next - i < window) {
+                    pending.add(submit(pool, files.get(next++)));
+                }
+
+                File file = files.get(i);
+                long lastModified = file.lastModified();
+                byte[] contents = CompressingOutputStream.await(pending.poll());
+                long length;
+                if (contents != null) {
+                    out.write(contents);
+                    length = contents.length;
+                } else {
+                    length = copy(file, out, buffer);
+                }
+
+                entries.add(new ArchiveEntry(entryName(file.toPath()), position, length, lastModified));
+                position += length;
+                if (onFileDone != null) {
+                    onFileDone.accept(position);
+                }
+            }
+
+            byte[] index = writeIndex(entries);
+            out.write(index);
+            out.write(trailer(position));
+            out.finish();
+        } catch (CipherStreamException ex) {
+            throw ex.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a small file on the pool; large ones are left for the writer to stream.
+     */
+    private static Future<byte[]> submit(ExecutorService pool, File file) {
+        if (file.length() > SMALL_FILE_SIZE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return pool.submit(() -> {
+            long start = System.nanoTime();
+            byte[] contents = Files.readAllBytes(file.toPath());
+            CipherMetrics.getShared().record(CipherMetrics.Stage.READ, start, contents.length);
+            return contents;
+        });
+    }
+
+    private static long copy(File file, OutputStream out, byte[] buffer) throws IOException {
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            long start = System.nanoTime();
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                metrics.record(CipherMetrics.Stage.READ, start, bytesRead);
+                out.write(buffer, 0, bytesRead);
+                length += bytesRead;
+                start = System.nanoTime();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Makes the name a file is stored under: its path, relative and with '/' between directories.
+     */
+    static String entryName(Path path) {
+        Path normalized = path.normalize();
+        if (normalized.getRoot() != null) {
+            normalized = normalized.getRoot().relativize(normalized);
+        }
+        //Files outside the current directory are stored as if they were in it
+        while (normalized.getNameCount() > 1 && normalized.getName(0).toString().equals("..")) {
+            normalized = normalized.subpath(1, normalized.getNameCount());
+        }
+        return normalized.toString().replace(File.separatorChar, '/');
+    }
+
+    private static byte[] writeIndex(List<ArchiveEntry> entries) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(index)) {
+            data.writeInt(entries.size());
+            for (ArchiveEntry entry : entries) {
+                data.writeUTF(entry.getName());
+                data.writeLong(entry.getOffset());
+                data.writeLong(entry.getLength());
+                data.writeLong(entry.getLastModified());
+            }
+        }
+        return index.toByteArray();
+    }
+
+    private static byte[] trailer(long indexOffset) throws IOException {
+        ByteArrayOutputStream trailer = new ByteArrayOutputStream(TRAILER_LENGTH);
+        try (DataOutputStream data = new DataOutputStream(trailer)) {
+            data.writeLong(indexOffset);
+            data.writeInt(VERSION);
+            data.write(MAGIC);
+        }
+        return trailer.toByteArray();
+    }
+}
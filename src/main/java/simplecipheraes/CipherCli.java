@@ -0,0 +1,597 @@
+package simplecipheraes;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless command-line driver for the simple AES cipher.
+ * Drives {@link SimpleCipherAES} directly, so neither JavaFX nor Swing are
+ * ever loaded. Every event is printed to stdout as a single line of JSON so
+ * that scripts can follow along, and the exit code tells whether every file
+ * was processed successfully.
+ */
+public class CipherCli {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: simplecipheraes (encrypt|decrypt|verify) [options] <file|directory|glob>...",
+            "       simplecipheraes pack [options] <archive> <file|directory|glob>...",
+            "       simplecipheraes (list|unpack) [options] <archive> [name]...",
+            "       simplecipheraes benchmark",
+            "",
+            "verify checks that encrypted files are intact without decrypting them.",
+            "pack encrypts many files into a single archive; list shows what's in one,",
+            "and unpack extracts all of its files, or only the named ones.",
+            "benchmark measures every cipher mode and provider new files may be encrypted with.",
+            "",
+            "Directories are searched recursively. Globs (e.g. 'logs/**/*.csv') are",
+            "matched by the app, so quote them to keep the shell from expanding them.",
+            "",
+            "The key is read from the first line of stdin unless one of these is given:",
+            "  --key-env <name>        Read the key from an environment variable",
+            "  --key-file <path>       Read the key from the first line of a file",
+            "",
+            "Options:",
+            "  --jobs <n>              Files processed at the same time (default: number of cores)",
+            "  --threads <n>           Threads used for each file (default: tuned for each file)",
+            "  --io <stream|channel|mapped>  How files are read and written (default: stream)",
+            "  --buffer-size <bytes>   Size of each read/write buffer (default: tuned for each file)",
+            "  --pipeline-depth <n>    Buffers in flight per single-threaded file; 0 to disable",
+            "  --no-auto-tune          Don't tune threads, buffers and pipeline depth to each file and",
+            "                          this machine; defaults are cores / jobs, 64 KiB and 4",
+            "  --progress-interval <ms>  Time between progress events of each file (default: 100)",
+            "  --sync-bytes <bytes>    Output written between forces to disk (default: 64 MiB; 0 = by time only)",
+            "  --sync-interval <ms>    Longest time between forces to disk (default: 1000; 0 = by size only)",
+            "  --compress <none|deflate|deflate-fast>  Compress files before encrypting them (default: none)",
+            "  --incremental           Only rewrite the parts of earlier encrypted files that changed",
+            "  --mode <ctr|cbc>        Cipher mode of new files (default: fastest on this machine)",
+            "  --provider <name>       JCE provider new files are encrypted with (default: fastest)",
+            "  --kdf-iterations <n>    PBKDF2 iterations the key of new files is derived with (default: 600000)",
+            "  --output-dir <path>     Where unpack extracts files to (default: current directory)",
+            "  --metrics               Print per-stage timings and job metrics as JSON at the end",
+            "  --help                  Show this message",
+            "",
+            "Exit codes: 0 = all files succeeded, 1 = some files failed or are corrupted, 2 = bad usage");
+
+    public static void main(String[] args) {
+        System.exit(new CipherCli().run(args));
+    }
+
+    /**
+     * Parses the arguments and processes every matching file.
+     *
+     * @param args
+     *          Command-line arguments, starting with the command
+     * @return
+     *          Exit code for the process
+     */
+    public int run(String[] args) {
+        if (args.length == 0 || args[0].equals("--help") || args[0].equals("help")) {
+            System.err.println(USAGE);
+            return args.length == 0 ? EXIT_USAGE : EXIT_OK;
+        }
+
+        String command = args[0];
+        if (command.equals("benchmark")) {
+            return benchmark();
+        }
+
+        //Verifying reads the same files decrypting does, and packing the same files encrypting does
+        boolean verify = command.equals("verify");
+        boolean archiveCommand = command.equals("pack") || command.equals("list") || command.equals("unpack");
+        EncryptionDirection direction;
+        try {
+            direction = verify || command.equals("list") || command.equals("unpack")
+                    ? EncryptionDirection.DECRYPT
+                    : command.equals("pack")
+                    ? EncryptionDirection.ENCRYPT
+                    : EncryptionDirection.valueOf(command.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            return usageError("Unknown command: " + args[0]);
+        }
+
+        CipherOptions options = new CipherOptions();
+        String keyEnv = null;
+        String keyFile = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Integer threads = null;
+        boolean printMetrics = false;
+        boolean incremental = false;
+        File outputDir = new File("");
+        List<String> targets = new ArrayList<>();
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--key-env":
+                        keyEnv = value(args, ++i, arg);
+                        break;
+                    case "--key-file":
+                        keyFile = value(args, ++i, arg);
+                        break;
+                    case "--jobs":
+                        jobs = Integer.parseInt(value(args, ++i, arg));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i, arg));
+                        break;
+                    case "--io":
+                        options.setIoBackend(IoBackend.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--buffer-size":
+                        options.setBufferSize(Integer.parseInt(value(args, ++i, arg)));
+                        break;
+                    case "--pipeline-depth":
+                        options.setPipelineDepth(Integer.parseInt(value(args, ++i, arg)));
+                        break;
+                    case "--progress-interval":
+                        options.setProgressInterval(Long.parseLong(value(args, ++i, arg)));
+                        break;
+                    case "--sync-bytes":
+                        options.setSyncIntervalBytes(Long.parseLong(value(args, ++i, arg)));
+                        break;
+                    case "--sync-interval":
+                        options.setSyncIntervalMillis(Long.parseLong(value(args, ++i, arg)));
+                        break;
+                    case "--compress":
+                        options.setCompression(Compression.valueOf(
+                                value(args, ++i, arg).replace('-', '_').toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--metrics":
+                        printMetrics = true;
+                        break;
+                    case "--incremental":
+                        incremental = true;
+                        break;
+                    case "--mode":
+                        options.setMode(CipherMode.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--provider":
+                        options.setProvider(value(args, ++i, arg));
+                        if (Security.getProvider(options.getProvider()) == null) {
+                            return usageError("No such provider: " + options.getProvider());
+                        }
+                        break;
+                    case "--no-auto-tune":
+                        options.setAutoTune(false);
+                        break;
+                    case "--kdf-iterations":
+                        KeyDerivation.getShared().setIterations(Integer.parseInt(value(args, ++i, arg)));
+                        break;
+                    case "--output-dir":
+                        outputDir = new File(value(args, ++i, arg));
+                        break;
+                    case "--help":
+                        System.err.println(USAGE);
+                        return EXIT_OK;
+                    default:
+                        if (arg.startsWith("--")) {
+                            return usageError("Unknown option: " + arg);
+                        }
+                        targets.add(arg);
+                }
+            }
+
+            if (jobs < 1) {
+                return usageError("--jobs must be at least 1");
+            }
+            if (incremental && (direction != EncryptionDirection.ENCRYPT || verify || archiveCommand)) {
+                return usageError("--incremental only works when encrypting");
+            }
+            if (incremental && options.getCompression() != Compression.NONE) {
+                return usageError("--incremental can't be used with --compress");
+            }
+            if (threads != null) {
+                options.setThreads(threads);
+            }
+        } catch (IllegalArgumentException ex) {
+            return usageError(ex.getMessage());
+        }
+
+        if (targets.isEmpty()) {
+            return usageError(archiveCommand ? "No archive given" : "No files given");
+        }
+        if (command.equals("pack") && targets.size() < 2) {
+            return usageError("No files given");
+        }
+
+        SimpleCipherAES cipher = new SimpleCipherAES(new JsonProgress(null));
+        byte[] key;
+        try {
+            key = cipher.hashKey(readKey(keyEnv, keyFile));
+        } catch (IOException ex) {
+            return usageError("Could not read key: " + ex.getMessage());
+        }
+        if (key == null) {
+            return usageError("The key is empty");
+        }
+
+        if (archiveCommand) {
+            File archive = new File(targets.get(0));
+            List<String> rest = targets.subList(1, targets.size());
+            CipherMetrics.registerMBeanLater(CipherMetrics.MBEAN_DELAY_MILLIS);
+            int exitCode = command.equals("pack")
+                    ? pack(cipher, archive, rest, key, options)
+                    : unpack(cipher, archive, rest, key, command.equals("list") ? null : outputDir);
+            if (printMetrics) {
+                System.out.println("{\"event\":\"metrics\",\"metrics\":" + CipherMetrics.getShared().toJson() + "}");
+            }
+            return exitCode;
+        }
+
+        List<File> files;
+        try {
+            files = findFiles(targets, direction);
+        } catch (IOException ex) {
+            return usageError("Could not list files: " + ex.getMessage());
+        }
+        if (files.isEmpty()) {
+            return usageError("No files matched");
+        }
+
+        jobs = Math.min(jobs, files.size());
+        if (threads == null && !options.isAutoTune()) {
+            //Split the cores between the files being processed at the same time
+            options.setThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / jobs));
+        }
+
+        CipherMetrics.registerMBeanLater(CipherMetrics.MBEAN_DELAY_MILLIS);
+        int exitCode = processAll(cipher, files, key, direction, verify, incremental, options, jobs);
+        if (printMetrics) {
+            System.out.println("{\"event\":\"metrics\",\"metrics\":" + CipherMetrics.getShared().toJson() + "}");
+        }
+        return exitCode;
+    }
+
+    private int processAll(SimpleCipherAES cipher, List<File> files, byte[] key, EncryptionDirection direction,
+                           boolean verify, boolean incremental, CipherOptions options, int jobs) {
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            CipherMetrics metrics = CipherMetrics.getShared();
+            for (File file : files) {
+                //Keys are derived in the background, each distinct one once, while earlier files are processed
+                KeyDerivation.getShared().prefetch(file, key, direction);
+                metrics.jobQueued();
+                results.add(pool.submit(() -> {
+                    metrics.jobDequeued();
+                    try {
+                        if (verify) {
+                            List<Long> corrupted = cipher.verifyFile(file, key, options, new JsonProgress(file));
+                            System.out.println("{\"event\":\"verified\",\"file\":" + json(file.getPath())
+                                    + ",\"corruptedSegments\":" + corrupted + "}");
+                            (corrupted.isEmpty() ? succeeded : failed).incrementAndGet();
+                            return;
+                        }
+
+                        File output = incremental
+                                ? cipher.encryptIncrementally(file, key, options, new JsonProgress(file))
+                                : cipher.processFileAndWait(file, key, direction, options, new JsonProgress(file));
+                        System.out.println("{\"event\":\"done\",\"file\":" + json(file.getPath())
+                                + ",\"output\":" + json(output.getPath()) + "}");
+                        succeeded.incrementAndGet();
+                    } catch (Exception ex) {
+                        System.out.println("{\"event\":\"error\",\"file\":" + json(file.getPath())
+                                + ",\"message\":" + json(String.valueOf(ex)) + "}");
+                        failed.incrementAndGet();
+                    }
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (Exception ex) {
+            //Jobs catch their own exceptions, so this only happens if we were interrupted
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        CipherContextCache contexts = CipherContextCache.getShared();
+        KeyDerivation keys = KeyDerivation.getShared();
+        System.out.println("{\"event\":\"summary\",\"succeeded\":" + succeeded.get()
+                + ",\"failed\":" + failed.get()
+                + ",\"contextCache\":{\"hits\":" + contexts.getHits()
+                + ",\"misses\":" + contexts.getMisses()
+                + ",\"evictions\":" + contexts.getEvictions()
+                + ",\"digestHits\":" + contexts.getDigestHits()
+                + ",\"digestMisses\":" + contexts.getDigestMisses() + "}"
+                + ",\"keyCache\":{\"hits\":" + keys.getHits()
+                + ",\"misses\":" + keys.getMisses()
+                + ",\"evictions\":" + keys.getEvictions() + "}}");
+
+        return failed.get() == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Prints how fast every candidate mode and provider encrypts, fastest (the one new files get) first.
+     */
+    private int benchmark() {
+        for (CipherSelector.Candidate candidate : CipherSelector.getShared().benchmark()) {
+            System.out.println("{\"event\":\"benchmark\",\"mode\":" + json(candidate.getMode().name())
+                    + ",\"provider\":" + json(candidate.getProvider())
+                    + ",\"bytesPerSecond\":" + candidate.getBytesPerSecond() + "}");
+        }
+        return EXIT_OK;
+    }
+
+    private int pack(SimpleCipherAES cipher, File archive, List<String> targets, byte[] key, CipherOptions options) {
+        List<File> files;
+        try {
+            files = findFiles(targets, EncryptionDirection.ENCRYPT);
+        } catch (IOException ex) {
+            return usageError("Could not list files: " + ex.getMessage());
+        }
+        if (files.isEmpty()) {
+            return usageError("No files matched");
+        }
+
+        try {
+            List<ArchiveEntry> entries = cipher.packFiles(files, archive, key, options, new JsonProgress(archive));
+            System.out.println("{\"event\":\"done\",\"file\":" + json(archive.getPath())
+                    + ",\"entries\":" + entries.size() + "}");
+            return EXIT_OK;
+        } catch (Exception ex) {
+            System.out.println("{\"event\":\"error\",\"file\":" + json(archive.getPath())
+                    + ",\"message\":" + json(String.valueOf(ex)) + "}");
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * Lists the files in an archive, or extracts them if given a directory.
+     *
+     * @param names
+     *          Files to list or extract; all of them if empty
+     * @param outputDir
+     *          Where to extract the files to, or null to only list them
+     */
+    private int unpack(SimpleCipherAES cipher, File archive, List<String> names, byte[] key, File outputDir) {
+        int succeeded = 0;
+        int failed = 0;
+        try (ArchiveReader reader = cipher.openArchive(archive, key)) {
+            List<ArchiveEntry> entries = new ArrayList<>();
+            if (names.isEmpty()) {
+                entries.addAll(reader.getEntries());
+            } else {
+                for (String name : names) {
+                    ArchiveEntry entry = reader.getEntry(name);
+                    if (entry == null) {
+                        System.out.println("{\"event\":\"error\",\"file\":" + json(name)
+                                + ",\"message\":\"Not in the archive\"}");
+                        failed++;
+                    } else {
+                        entries.add(entry);
+                    }
+                }
+            }
+
+            for (ArchiveEntry entry : entries) {
+                if (outputDir == null) {
+                    System.out.println("{\"event\":\"entry\",\"file\":" + json(entry.getName())
+                            + ",\"bytes\":" + entry.getLength()
+                            + ",\"lastModified\":" + entry.getLastModified() + "}");
+                    succeeded++;
+                    continue;
+                }
+
+                try {
+                    File output = reader.extract(entry, outputDir);
+                    System.out.println("{\"event\":\"done\",\"file\":" + json(entry.getName())
+                            + ",\"output\":" + json(output.getPath()) + "}");
+                    succeeded++;
+                } catch (Exception ex) {
+                    System.out.println("{\"event\":\"error\",\"file\":" + json(entry.getName())
+                            + ",\"message\":" + json(String.valueOf(ex)) + "}");
+                    failed++;
+                }
+            }
+        } catch (Exception ex) {
+            System.out.println("{\"event\":\"error\",\"file\":" + json(archive.getPath())
+                    + ",\"message\":" + json(String.valueOf(ex)) + "}");
+            return EXIT_FAILED;
+        }
+
+        System.out.println("{\"event\":\"summary\",\"succeeded\":" + succeeded + ",\"failed\":" + failed + "}");
+        return failed == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Expands the given files, directories and globs into the list of files to process.
+     * Files found by searching directories or globs are skipped if they were
+     * already encrypted (when encrypting) or aren't encrypted (when decrypting).
+     */
+    private static List<File> findFiles(List<String> targets, EncryptionDirection direction) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+
+        for (String target : targets) {
+            Path path = Paths.get(target);
+            if (Files.isRegularFile(path)) {
+                files.add(path.toFile());
+            } else if (Files.isDirectory(path)) {
+                try (Stream<Path> found = Files.walk(path)) {
+                    files.addAll(found.filter(Files::isRegularFile)
+                            .filter(p -> matchesDirection(p, direction))
+                            .map(Path::toFile)
+                            .collect(Collectors.toList()));
+                }
+            } else if (isGlob(target)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + target);
+                try (Stream<Path> found = Files.walk(globBase(target))) {
+                    files.addAll(found.filter(Files::isRegularFile)
+                            .filter(matcher::matches)
+                            .filter(p -> matchesDirection(p, direction))
+                            .sorted()
+                            .map(Path::toFile)
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                throw new IOException("No such file or directory: " + target);
+            }
+        }
+
+        return new ArrayList<>(files);
+    }
+
+    private static boolean matchesDirection(Path path, EncryptionDirection direction) {
+        String name = path.getFileName().toString();
+        //Files this app keeps next to its output are never inputs
+        if (name.endsWith(SimpleCipherAES.PART_SUFFIX) || name.endsWith(SimpleCipherAES.CHECKPOINT_SUFFIX)
+                || name.endsWith(SegmentManifest.SUFFIX)) {
+            return false;
+        }
+        boolean encrypted = name.endsWith(".enc");
+        return direction == EncryptionDirection.DECRYPT ? encrypted : !encrypted;
+    }
+
+    private static boolean isGlob(String target) {
+        return target.matches(".*[*?\\[{].*");
+    }
+
+    /**
+     * @return
+     *          The deepest directory of the glob that doesn't contain any wildcards
+     */
+    private static Path globBase(String glob) {
+        int firstWildcard = glob.length();
+        for (char wildcard : new char[] { '*', '?', '[', '{' }) {
+            int index = glob.indexOf(wildcard);
+            if (index >= 0) {
+                firstWildcard = Math.min(firstWildcard, index);
+            }
+        }
+
+        String prefix = glob.substring(0, firstWildcard);
+        int lastSeparator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        return lastSeparator < 0
+                ? Paths.get("")
+                : Paths.get(prefix.substring(0, lastSeparator + 1));
+    }
+
+    /**
+     * Reads the key from the environment, a file or stdin, in that order of preference.
+     */
+    private static String readKey(String keyEnv, String keyFile) throws IOException {
+        if (keyEnv != null) {
+            String key = System.getenv(keyEnv);
+            if (key == null) {
+                throw new IOException("Environment variable " + keyEnv + " is not set");
+            }
+            return key;
+        }
+
+        if (keyFile != null) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(keyFile), StandardCharsets.UTF_8)) {
+                return reader.readLine();
+            }
+        }
+
+        Console console = System.console();
+        if (console != null) {
+            char[] key = console.readPassword("Key: ");
+            return key == null ? null : new String(key);
+        }
+
+        return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int usageError(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        return EXIT_USAGE;
+    }
+
+    /**
+     * Quotes a string for use as a JSON value.
+     */
+    static String json(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Prints one JSON line per progress update of a single file.
+     */
+    private static class JsonProgress implements ProgressListener {
+        private final String file;
+
+        JsonProgress(File file) {
+            this.file = file == null ? "null" : json(file.getPath());
+        }
+
+        @Override
+        public void updateProgress(Progress progress) {
+            System.out.println("{\"event\":\"progress\",\"file\":" + file
+                    + ",\"bytes\":" + progress.getCompletedBytes()
+                    + ",\"total\":" + progress.getTotalBytes()
+                    + ",\"bytesPerSecond\":" + (long) progress.getBytesPerSecond()
+                    + ",\"etaSeconds\":" + progress.getEtaSeconds() + "}");
+        }
+
+        @Override
+        public void updateProgress(String message) {
+            System.out.println("{\"event\":\"status\",\"file\":" + file + ",\"message\":" + json(message) + "}");
+        }
+    }
+}
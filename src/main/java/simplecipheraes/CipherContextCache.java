@@ -0,0 +1,258 @@
+package simplecipheraes;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reuses ciphers and message digests across jobs, instead of doing a provider
+ * lookup for every one.
+ *
+ * Ciphers are pooled by transformation, provider and direction, not by key:
+ * every file has its own derived key, so a pool keyed by it would never be hit,
+ * and would keep a copy of every file key around. Instead a cipher is
+ * initialized with the caller's key each time it's taken out of the pool.
+ *
+ * Every thread has its own pool, so a cached object is never shared between
+ * threads and looking one up needs no locking. Each thread keeps at most a
+ * fixed number of ciphers; the least recently used one is evicted when a new
+ * transformation/direction is needed. Hit/miss/eviction counters are shared by
+ * all threads, and kept apart for ciphers and digests.
+ */
+public class CipherContextCache {
+    public static final int DEFAULT_CONTEXTS_PER_THREAD = 8;
+
+    private static final CipherContextCache SHARED = new CipherContextCache(DEFAULT_CONTEXTS_PER_THREAD);
+
+    private final int contextsPerThread;
+    private final ThreadLocal<Map<ContextKey, Cipher>> ciphers;
+    private final ThreadLocal<Map<String, MessageDigest>> digests = ThreadLocal.withInitial(HashMap::new);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder digestHits = new LongAdder();
+    private final LongAdder digestMisses = new LongAdder();
+
+    public CipherContextCache(int contextsPerThread) {
+        if (contextsPerThread < 1) {
+            throw new IllegalArgumentException("At least one context per thread is required");
+        }
+        this.contextsPerThread = contextsPerThread;
+        this.ciphers = ThreadLocal.withInitial(() -> new LinkedHashMap<>(contextsPerThread * 2, 0.75f, true));
+    }
+
+    /**
+     * @return
+     *          The cache used by all jobs of this app
+     */
+    public static CipherContextCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a cipher out of the calling thread's pool and initializes it with
+     * the given key, making a new one if there isn't one for this
+     * transformation and direction.
+     * The cipher belongs to the caller until {@link CipherContext#release()} is called;
+     * if the job fails, simply don't release it so a cipher in an unknown state
+     * never gets reused.
+     *
+     * @param transformation
+     *          Cipher transformation, e.g. "AES/ECB/NoPadding"
+     * @param key
+     *          Key to initialize the cipher with; the cache keeps no copy of it
+     * @param direction
+     *          If the cipher will encrypt or decrypt
+     * @return
+     *          Cipher ready to use, wrapped so it can be returned to the pool
+     */
+    public CipherContext acquire(String transformation, byte[] key, EncryptionDirection direction)
+            throws GeneralSecurityException {
+        return acquire(transformation, null, key, 0, direction);
+    }
+
+    /**
+     * Like {@link #acquire(String, byte[], EncryptionDirection)}, for a given
+     * provider and for modes with an IV. Ciphers of modes with an IV are handed
+     * out with a placeholder IV; give them the real one with
+     * {@link CipherContext#init} before using them.
+     *
+     * @param provider
+     *          Name of the JCE provider, or null for the first one that has the transformation
+     * @param ivSize
+     *          Bytes of IV the mode takes, 0 if it has none
+     */
+    public CipherContext acquire(String transformation, String provider, byte[] key, int ivSize,
+                                 EncryptionDirection direction) throws GeneralSecurityException {
+        ContextKey contextKey = new ContextKey(transformation, provider, direction);
+        Cipher cipher = ciphers.get().remove(contextKey);
+
+        if (cipher != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            cipher = provider == null
+                    ? Cipher.getInstance(transformation)
+                    : Cipher.getInstance(transformation, provider);
+        }
+
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        if (ivSize > 0) {
+            cipher.init(direction.getCipherMode(), keySpec, new IvParameterSpec(new byte[ivSize]));
+        } else {
+            cipher.init(direction.getCipherMode(), keySpec);
+        }
+        return new CipherContext(contextKey, cipher, keySpec);
+    }
+
+    /**
+     * Gets the calling thread's message digest for the given algorithm.
+     * The digest is reset before it is returned.
+     *
+     * @param algorithm
+     *          Digest algorithm, e.g. "SHA-256"
+     */
+    public MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> threadDigests = digests.get();
+        MessageDigest digest = threadDigests.get(algorithm);
+
+        if (digest != null) {
+            digestHits.increment();
+            digest.reset();
+        } else {
+            digestMisses.increment();
+            digest = MessageDigest.getInstance(algorithm);
+            threadDigests.put(algorithm, digest);
+        }
+
+        return digest;
+    }
+
+    private void release(ContextKey contextKey, Cipher cipher) {
+        Map<ContextKey, Cipher> threadCiphers = ciphers.get();
+        threadCiphers.put(contextKey, cipher);
+
+        if (threadCiphers.size() > contextsPerThread) {
+            //Access-ordered, so the first entry is the least recently used one
+            threadCiphers.remove(threadCiphers.keySet().iterator().next());
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return
+     *          Number of times a cached cipher was reused
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return
+     *          Number of times a cipher had to be created
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return
+     *          Number of times a cached digest was reused
+     */
+    public long getDigestHits() {
+        return digestHits.sum();
+    }
+
+    /**
+     * @return
+     *          Number of times a digest had to be created
+     */
+    public long getDigestMisses() {
+        return digestMisses.sum();
+    }
+
+    /**
+     * @return
+     *          Number of ciphers dropped to keep the per-thread pools bounded
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * A cipher on loan from the cache.
+     */
+    public class CipherContext {
+        private final ContextKey contextKey;
+        private final Cipher cipher;
+        //Made once per checkout, so a new IV doesn't mean a new key; dropped once the cipher goes back to the pool
+        private SecretKeySpec keySpec;
+
+        private CipherContext(ContextKey contextKey, Cipher cipher, SecretKeySpec keySpec) {
+            this.contextKey = contextKey;
+            this.cipher = cipher;
+            this.keySpec = keySpec;
+        }
+
+        public Cipher getCipher() {
+            return this.cipher;
+        }
+
+        /**
+         * Starts the cipher over with the given IV, keeping its key. The key
+         * object is the same on every call, so providers that remember the
+         * last key (like SunJCE) skip its key schedule.
+         */
+        public void init(byte[] iv) throws GeneralSecurityException {
+            cipher.init(contextKey.direction.getCipherMode(), keySpec, new IvParameterSpec(iv));
+        }
+
+        /**
+         * Returns the cipher to the calling thread's pool. Only call this once
+         * the cipher has been finalized, i.e. it's back in its initial state.
+         */
+        public void release() {
+            keySpec = null;
+            CipherContextCache.this.release(contextKey, cipher);
+        }
+    }
+
+    private static class ContextKey {
+        private final String transformation;
+        private final String provider;
+        private final EncryptionDirection direction;
+        private final int hashCode;
+
+        ContextKey(String transformation, String provider, EncryptionDirection direction) {
+            this.transformation = transformation;
+            this.provider = provider;
+            this.direction = direction;
+            this.hashCode = Objects.hash(transformation, provider, direction);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ContextKey)) {
+                return false;
+            }
+            ContextKey that = (ContextKey) other;
+            return this.direction == that.direction
+                    && this.transformation.equals(that.transformation)
+                    && Objects.equals(this.provider, that.provider);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
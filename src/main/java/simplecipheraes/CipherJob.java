@@ -0,0 +1,166 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single file waiting in (or taken from) a {@link JobScheduler}'s queue.
+ * Jobs are run highest priority first, and in the order they were submitted
+ * within a priority.
+ *
+ * Cancelling a queued job takes it out of the queue. Cancelling a running job
+ * is cooperative: the job notices between chunks, and its thread is
+ * interrupted so it doesn't finish a blocking read or write first. Either
+ * way, its partial output is deleted.
+ */
+public class CipherJob implements Runnable, Comparable<CipherJob> {
+    /**
+     * Order in which queued jobs are started.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Where a job is in its life.
+     */
+    public enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED
+    }
+
+    private static final AtomicLong SUBMITTED = new AtomicLong();
+
+    private final SimpleCipherAES cipher;
+    private final ThreadPoolExecutor executor;
+    private final File file;
+    private final byte[] key;
+    private final EncryptionDirection direction;
+    private final CipherOptions options;
+    private final Priority priority;
+    private final ProgressListener listener;
+    private final long sequence = SUBMITTED.getAndIncrement();
+    private final CompletableFuture<File> result = new CompletableFuture<>();
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled;
+    //Only touched while holding the lock, so a late cancel() never interrupts the thread's next job
+    private Thread runner;
+
+    CipherJob(SimpleCipherAES cipher, ThreadPoolExecutor executor, File file, byte[] key,
+              EncryptionDirection direction, CipherOptions options, Priority priority, ProgressListener listener) {
+        this.cipher = cipher;
+        this.executor = executor;
+        this.file = file;
+        this.key = key;
+        this.direction = direction;
+        this.options = options;
+        this.priority = priority;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        CipherMetrics.getShared().jobDequeued();
+        synchronized (this) {
+            if (cancelled) {
+                finishCancelled();
+                return;
+            }
+            state = State.RUNNING;
+            runner = Thread.currentThread();
+        }
+
+        try {
+            File output = cipher.processFileAndWait(file, key, direction, options, listener, this::isCancelled);
+            state = State.SUCCEEDED;
+            result.complete(output);
+        } catch (CancellationException ex) {
+            finishCancelled();
+        } catch (Exception ex) {
+            state = State.FAILED;
+            listener.updateProgress(SimpleCipherAES.describeError(ex));
+            result.completeExceptionally(ex);
+        } finally {
+            synchronized (this) {
+                runner = null;
+            }
+            //An interrupt that arrived as the job was ending mustn't reach the next one
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Cancels the job, if it hasn't finished yet.
+     *
+     * @return
+     *          Whether the job was still queued or running
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (state != State.QUEUED && state != State.RUNNING || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        //If a worker already took it, run() sees the flag instead
+        if (executor.remove(this)) {
+            CipherMetrics.getShared().jobDequeued();
+            finishCancelled();
+        }
+        return true;
+    }
+
+    private void finishCancelled() {
+        state = State.CANCELLED;
+        listener.updateProgress("Cancelled.");
+        result.cancel(false);
+    }
+
+    @Override
+    public int compareTo(CipherJob other) {
+        int byPriority = priority.compareTo(other.priority);
+        return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public EncryptionDirection getDirection() {
+        return this.direction;
+    }
+
+    public Priority getPriority() {
+        return this.priority;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return
+     *          Completes with the file the result was saved to, or with the
+     *          error the job failed with; cancelled if the job was
+     */
+    public CompletableFuture<File> getResult() {
+        return this.result;
+    }
+}
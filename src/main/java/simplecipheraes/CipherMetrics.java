@@ -0,0 +1,504 @@
+package simplecipheraes;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts where jobs spend their time, so a slow job can be pinned on reading,
+ * ciphering or writing without attaching a profiler.
+ *
+ * Engines record every chunk they read, cipher and write, and every time a
+ * stage had to wait on another one. Counters are {@link LongAdder}s, so
+ * recording from many threads at once costs about as much as the
+ * {@link System#nanoTime()} calls around it. The shared instance is registered
+ * as an MBean by {@link #registerMBean()} (or, so short runs start quickly,
+ * {@link #registerMBeanLater}), and can be dumped as JSON.
+ */
+public class CipherMetrics implements CipherMetricsMBean {
+    public static final String OBJECT_NAME = "simplecipheraes:type=CipherMetrics";
+
+    /**
+     * Time the CLI and GUI wait before registering the MBean
+     */
+    public static final long MBEAN_DELAY_MILLIS = 1_000;
+
+    /**
+     * Upper bounds of the job latency buckets, in milliseconds; the last bucket has none
+     */
+    private static final long[] LATENCY_BOUNDS_MILLIS = { 10, 100, 1_000, 10_000, 60_000, 600_000 };
+
+    private static final CipherMetrics SHARED = new CipherMetrics();
+
+    /**
+     * The parts of a job that can be timed separately.
+     */
+    public enum Stage {
+        READ,
+        CIPHER,
+        WRITE
+    }
+
+    private final LongAdder[] nanos = newAdders(Stage.values().length);
+    private final LongAdder[] bytes = newAdders(Stage.values().length);
+    private final LongAdder[] waitNanos = newAdders(Stage.values().length);
+    private final LongAdder[] waits = newAdders(Stage.values().length);
+
+    private final LongAdder buffersAllocated = new LongAdder();
+    private final LongAdder bytesAllocated = new LongAdder();
+
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+    private final LongAccumulator maxSyncNanos = new LongAccumulator(Math::max, 0);
+
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final AtomicInteger queuedJobs = new AtomicInteger();
+    private final LongAdder completedJobs = new LongAdder();
+    private final LongAdder failedJobs = new LongAdder();
+    private final LongAdder[] jobLatencies = newAdders(LATENCY_BOUNDS_MILLIS.length + 1);
+
+    //What the AdaptiveTuner picked for the most recent job
+    private volatile int tunedThreads;
+    private volatile int tunedBufferSize;
+    private volatile int tunedPipelineDepth;
+    private volatile int tunedActiveThreads;
+    private volatile long calibratedCipherBytesPerSecond;
+    private volatile String selectedCipher = "";
+    private volatile long selectedCipherBytesPerSecond;
+    private final LongAdder tuningAdjustments = new LongAdder();
+
+    /**
+     * @return
+     *          The metrics of all jobs of this app
+     */
+    public static CipherMetrics getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the shared metrics with the platform MBean server, unless they already are.
+     * Failing to register only loses the JMX view, so it's reported and ignored.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(SHARED, name);
+            }
+        } catch (JMException ex) {
+            System.err.println("Could not register metrics MBean: " + ex);
+        }
+    }
+
+    /**
+     * Registers the shared metrics on a background thread after the given delay.
+     * Starting the platform MBean server takes a few hundred milliseconds, far
+     * longer than ciphering a small file, so short runs that exit before the
+     * delay is over never pay for it; longer ones, which are the ones worth
+     * watching in JConsole, still show up.
+     */
+    public static void registerMBeanLater(long delayMillis) {
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            registerMBean();
+        }, "metrics-mbean");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Records a chunk that went through the given stage.
+     *
+     * @param startNanos
+     *          {@link System#nanoTime()} from just before the stage started on the chunk
+     * @param chunkBytes
+     *          Size of the chunk
+     */
+    public void record(Stage stage, long startNanos, long chunkBytes) {
+        nanos[stage.ordinal()].add(System.nanoTime() - startNanos);
+        bytes[stage.ordinal()].add(chunkBytes);
+    }
+
+    /**
+     * Records the given stage waiting on another one, e.g. for a free buffer.
+     *
+     * @param startNanos
+     *          {@link System#nanoTime()} from just before the stage started waiting
+     */
+    public void recordWait(Stage stage, long startNanos) {
+        waitNanos[stage.ordinal()].add(System.nanoTime() - startNanos);
+        waits[stage.ordinal()].increment();
+    }
+
+    /**
+     * Records a buffer allocated for a job.
+     */
+    public void recordAllocation(long capacity) {
+        buffersAllocated.increment();
+        bytesAllocated.add(capacity);
+    }
+
+    /**
+     * Records a {@link DurableOutput} forcing a job's output to disk.
+     *
+     * @param startNanos
+     *          {@link System#nanoTime()} from just before the force started
+     */
+    public void recordSync(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        syncs.increment();
+        syncNanos.add(elapsed);
+        maxSyncNanos.accumulate(elapsed);
+    }
+
+    /**
+     * Records the options the {@link AdaptiveTuner} picked for a job.
+     */
+    public void recordTuning(int threads, int bufferSize, int pipelineDepth) {
+        tunedThreads = threads;
+        tunedBufferSize = bufferSize;
+        tunedPipelineDepth = pipelineDepth;
+        tunedActiveThreads = threads;
+    }
+
+    /**
+     * Records an {@link AdaptiveThrottle} changing how many of a job's threads may work at once.
+     */
+    public void recordTuningAdjustment(int activeThreads) {
+        tunedActiveThreads = activeThreads;
+        tuningAdjustments.increment();
+    }
+
+    /**
+     * Records the result of the {@link AdaptiveTuner}'s calibration run.
+     */
+    public void recordCalibration(long cipherBytesPerSecond) {
+        calibratedCipherBytesPerSecond = cipherBytesPerSecond;
+    }
+
+    /**
+     * Records the mode and provider the {@link CipherSelector}'s benchmark picked.
+     */
+    public void recordCipherSelection(String cipher, long bytesPerSecond) {
+        selectedCipher = cipher;
+        selectedCipherBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Counts a job waiting for a thread to run on.
+     */
+    public void jobQueued() {
+        queuedJobs.incrementAndGet();
+    }
+
+    /**
+     * Counts a job leaving the queue, whether it's about to run or was cancelled.
+     */
+    public void jobDequeued() {
+        queuedJobs.decrementAndGet();
+    }
+
+    /**
+     * Counts a job starting to run.
+     *
+     * @return
+     *          Start time of the job, to pass to {@link #jobFinished}
+     */
+    public long jobStarted() {
+        activeJobs.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a job finishing, successfully or not.
+     *
+     * @param startNanos
+     *          Value returned by {@link #jobStarted}
+     */
+    public void jobFinished(long startNanos, boolean succeeded) {
+        activeJobs.decrementAndGet();
+        (succeeded ? completedJobs : failedJobs).increment();
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        jobLatencies[bucket].increment();
+    }
+
+    @Override
+    public long getReadNanos() {
+        return nanos[Stage.READ.ordinal()].sum();
+    }
+
+    @Override
+    public long getReadBytes() {
+        return bytes[Stage.READ.ordinal()].sum();
+    }
+
+    @Override
+    public long getReadWaitNanos() {
+        return waitNanos[Stage.READ.ordinal()].sum();
+    }
+
+    @Override
+    public long getReadWaits() {
+        return waits[Stage.READ.ordinal()].sum();
+    }
+
+    @Override
+    public long getCipherNanos() {
+        return nanos[Stage.CIPHER.ordinal()].sum();
+    }
+
+    @Override
+    public long getCipherBytes() {
+        return bytes[Stage.CIPHER.ordinal()].sum();
+    }
+
+    @Override
+    public long getCipherWaitNanos() {
+        return waitNanos[Stage.CIPHER.ordinal()].sum();
+    }
+
+    @Override
+    public long getCipherWaits() {
+        return waits[Stage.CIPHER.ordinal()].sum();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return nanos[Stage.WRITE.ordinal()].sum();
+    }
+
+    @Override
+    public long getWriteBytes() {
+        return bytes[Stage.WRITE.ordinal()].sum();
+    }
+
+    @Override
+    public long getWriteWaitNanos() {
+        return waitNanos[Stage.WRITE.ordinal()].sum();
+    }
+
+    @Override
+    public long getWriteWaits() {
+        return waits[Stage.WRITE.ordinal()].sum();
+    }
+
+    @Override
+    public long getBuffersAllocated() {
+        return buffersAllocated.sum();
+    }
+
+    @Override
+    public long getBytesAllocated() {
+        return bytesAllocated.sum();
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @Override
+    public long getSyncNanos() {
+        return syncNanos.sum();
+    }
+
+    @Override
+    public long getMaxSyncNanos() {
+        return maxSyncNanos.get();
+    }
+
+    @Override
+    public long getCipherContextHits() {
+        return CipherContextCache.getShared().getHits();
+    }
+
+    @Override
+    public long getCipherContextMisses() {
+        return CipherContextCache.getShared().getMisses();
+    }
+
+    @Override
+    public long getCipherContextEvictions() {
+        return CipherContextCache.getShared().getEvictions();
+    }
+
+    @Override
+    public long getDigestContextHits() {
+        return CipherContextCache.getShared().getDigestHits();
+    }
+
+    @Override
+    public long getDigestContextMisses() {
+        return CipherContextCache.getShared().getDigestMisses();
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return activeJobs.get();
+    }
+
+    @Override
+    public int getQueuedJobs() {
+        return queuedJobs.get();
+    }
+
+    @Override
+    public long getCompletedJobs() {
+        return completedJobs.sum();
+    }
+
+    @Override
+    public long getFailedJobs() {
+        return failedJobs.sum();
+    }
+
+    @Override
+    public int getTunedThreads() {
+        return tunedThreads;
+    }
+
+    @Override
+    public int getTunedBufferSize() {
+        return tunedBufferSize;
+    }
+
+    @Override
+    public int getTunedPipelineDepth() {
+        return tunedPipelineDepth;
+    }
+
+    @Override
+    public int getTunedActiveThreads() {
+        return tunedActiveThreads;
+    }
+
+    @Override
+    public long getTuningAdjustments() {
+        return tuningAdjustments.sum();
+    }
+
+    @Override
+    public long getCalibratedCipherBytesPerSecond() {
+        return calibratedCipherBytesPerSecond;
+    }
+
+    @Override
+    public String getSelectedCipher() {
+        return selectedCipher;
+    }
+
+    @Override
+    public long getSelectedCipherBytesPerSecond() {
+        return selectedCipherBytesPerSecond;
+    }
+
+    @Override
+    public String[] getJobLatencyBuckets() {
+        String[] buckets = new String[jobLatencies.length];
+        for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+            buckets[i] = "<=" + LATENCY_BOUNDS_MILLIS[i] + "ms";
+        }
+        buckets[buckets.length - 1] = ">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1] + "ms";
+        return buckets;
+    }
+
+    @Override
+    public long[] getJobLatencyHistogram() {
+        long[] histogram = new long[jobLatencies.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = jobLatencies[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"stages\":{");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{")
+                    .append("\"nanos\":").append(nanos[i].sum())
+                    .append(",\"bytes\":").append(bytes[i].sum())
+                    .append(",\"waitNanos\":").append(waitNanos[i].sum())
+                    .append(",\"waits\":").append(waits[i].sum())
+                    .append('}');
+        }
+        json.append("},\"allocations\":{\"buffers\":").append(getBuffersAllocated())
+                .append(",\"bytes\":").append(getBytesAllocated())
+                .append("},\"sync\":{\"count\":").append(getSyncs())
+                .append(",\"nanos\":").append(getSyncNanos())
+                .append(",\"maxNanos\":").append(getMaxSyncNanos())
+                .append("},\"contextCache\":{\"hits\":").append(getCipherContextHits())
+                .append(",\"misses\":").append(getCipherContextMisses())
+                .append(",\"evictions\":").append(getCipherContextEvictions())
+                .append(",\"digestHits\":").append(getDigestContextHits())
+                .append(",\"digestMisses\":").append(getDigestContextMisses())
+                .append("},\"tuning\":{\"threads\":").append(getTunedThreads())
+                .append(",\"bufferSize\":").append(getTunedBufferSize())
+                .append(",\"pipelineDepth\":").append(getTunedPipelineDepth())
+                .append(",\"activeThreads\":").append(getTunedActiveThreads())
+                .append(",\"adjustments\":").append(getTuningAdjustments())
+                .append(",\"calibratedCipherBytesPerSecond\":").append(getCalibratedCipherBytesPerSecond())
+                .append(",\"selectedCipher\":\"").append(getSelectedCipher())
+                .append("\",\"selectedCipherBytesPerSecond\":").append(getSelectedCipherBytesPerSecond())
+                .append("},\"jobs\":{\"active\":").append(getActiveJobs())
+                .append(",\"queued\":").append(getQueuedJobs())
+                .append(",\"completed\":").append(getCompletedJobs())
+                .append(",\"failed\":").append(getFailedJobs())
+                .append(",\"latency\":{");
+
+        String[] buckets = getJobLatencyBuckets();
+        long[] histogram = getJobLatencyHistogram();
+        for (int i = 0; i < buckets.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(buckets[i]).append("\":").append(histogram[i]);
+        }
+        return json.append("}}}").toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder[] adders : new LongAdder[][] { nanos, bytes, waitNanos, waits, jobLatencies }) {
+            for (LongAdder adder : adders) {
+                adder.reset();
+            }
+        }
+        buffersAllocated.reset();
+        tuningAdjustments.reset();
+        bytesAllocated.reset();
+        syncs.reset();
+        syncNanos.reset();
+        maxSyncNanos.reset();
+        completedJobs.reset();
+        failedJobs.reset();
+    }
+}
@@ -0,0 +1,143 @@
+package simplecipheraes;
+
+/**
+ * Management interface of {@link CipherMetrics}, as seen from JConsole or any other JMX client.
+ * Times are in nanoseconds and sizes in bytes, all counted since startup (or the last reset).
+ */
+public interface CipherMetricsMBean {
+    long getReadNanos();
+
+    long getReadBytes();
+
+    /**
+     * @return
+     *          Time the read stage spent waiting for a free buffer
+     */
+    long getReadWaitNanos();
+
+    long getReadWaits();
+
+    long getCipherNanos();
+
+    long getCipherBytes();
+
+    /**
+     * @return
+     *          Time the cipher stage spent waiting for input or for a free output buffer
+     */
+    long getCipherWaitNanos();
+
+    long getCipherWaits();
+
+    long getWriteNanos();
+
+    long getWriteBytes();
+
+    /**
+     * @return
+     *          Time the write stage spent waiting for output to write
+     */
+    long getWriteWaitNanos();
+
+    long getWriteWaits();
+
+    long getBuffersAllocated();
+
+    long getBytesAllocated();
+
+    /**
+     * @return
+     *          Number of times output was forced to disk while jobs were running
+     */
+    long getSyncs();
+
+    long getSyncNanos();
+
+    /**
+     * @return
+     *          Time the slowest of those forces took
+     */
+    long getMaxSyncNanos();
+
+    long getCipherContextHits();
+
+    long getCipherContextMisses();
+
+    long getCipherContextEvictions();
+
+    /**
+     * @return
+     *          Message digests reused from the {@link CipherContextCache}; not counted in the cipher hits
+     */
+    long getDigestContextHits();
+
+    long getDigestContextMisses();
+
+    int getActiveJobs();
+
+    int getQueuedJobs();
+
+    long getCompletedJobs();
+
+    long getFailedJobs();
+
+    /**
+     * @return
+     *          Threads the {@link AdaptiveTuner} gave the most recent job
+     */
+    int getTunedThreads();
+
+    int getTunedBufferSize();
+
+    int getTunedPipelineDepth();
+
+    /**
+     * @return
+     *          Threads of the most recent job allowed to work at once, as last set by its {@link AdaptiveThrottle}
+     */
+    int getTunedActiveThreads();
+
+    long getTuningAdjustments();
+
+    /**
+     * @return
+     *          Cipher throughput of a single thread, as measured by the tuner's calibration run; 0 if it hasn't run
+     */
+    long getCalibratedCipherBytesPerSecond();
+
+    /**
+     * @return
+     *          Mode and provider picked by the {@link CipherSelector}'s benchmark, e.g. "CTR SunJCE";
+     *          empty if it hasn't run
+     */
+    String getSelectedCipher();
+
+    /**
+     * @return
+     *          Encryption throughput of a single thread with the selected cipher; 0 if the benchmark hasn't run
+     */
+    long getSelectedCipherBytesPerSecond();
+
+    /**
+     * @return
+     *          Upper bounds of the job latency histogram's buckets, e.g. "<=100ms"
+     */
+    String[] getJobLatencyBuckets();
+
+    /**
+     * @return
+     *          Number of jobs that finished within each bucket of {@link #getJobLatencyBuckets()}
+     */
+    long[] getJobLatencyHistogram();
+
+    /**
+     * @return
+     *          All of the metrics as a single JSON object
+     */
+    String toJson();
+
+    /**
+     * Zeroes every counter, e.g. before reproducing a slow job. Gauges are left alone.
+     */
+    void reset();
+}
@@ -0,0 +1,113 @@
+package simplecipheraes;
+
+import java.io.IOException;
+
+/**
+ * How AES is applied to the blocks of a segment. Recorded in the
+ * {@link FileHeader}, so decryption uses the mode the file was encrypted with.
+ *
+ * Segments of {@link #CBC} and {@link #CTR} files start with a random IV of
+ * their own, so rewriting a segment under the same file key never repeats a
+ * CTR keystream. The IV is covered by the segment's tag.
+ */
+public enum CipherMode {
+    /**
+     * Every block encrypted on its own. Identical blocks of plaintext give
+     * identical ciphertext, so it's only used to read files made before the
+     * mode could be chosen.
+     */
+    ECB(0, "AES/ECB/PKCS5Padding", "AES/ECB/NoPadding", 0, true),
+
+    /**
+     * Cipher block chaining, with padding at the end of every segment
+     */
+    CBC(1, "AES/CBC/PKCS5Padding", "AES/CBC/NoPadding", SegmentLayout.BLOCK_SIZE, true),
+
+    /**
+     * Counter mode; the ciphertext is exactly as long as the plaintext
+     */
+    CTR(2, "AES/CTR/NoPadding", "AES/CTR/NoPadding", SegmentLayout.BLOCK_SIZE, false);
+
+    /**
+     * Mode of new files until a {@link CipherSelector} benchmark says otherwise
+     */
+    public static final CipherMode DEFAULT = CTR;
+
+    private final int id;
+    private final String transformation;
+    private final String blockTransformation;
+    private final int ivSize;
+    private final boolean padded;
+
+    CipherMode(int id, String transformation, String blockTransformation, int ivSize, boolean padded) {
+        this.id = id;
+        this.transformation = transformation;
+        this.blockTransformation = blockTransformation;
+        this.ivSize = ivSize;
+        this.padded = padded;
+    }
+
+    /**
+     * @return
+     *          Value stored in the file header
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return
+     *          Transformation whole segments are encrypted with
+     */
+    public String getTransformation() {
+        return this.transformation;
+    }
+
+    /**
+     * @return
+     *          Transformation that decrypts whole blocks from the middle of a
+     *          segment, i.e. without padding
+     */
+    public String getBlockTransformation() {
+        return this.blockTransformation;
+    }
+
+    /**
+     * @return
+     *          Bytes of IV at the start of every segment, 0 if the mode has none
+     */
+    public int getIvSize() {
+        return this.ivSize;
+    }
+
+    /**
+     * @return
+     *          Whether every segment ends with padding, i.e. grows by up to one block
+     */
+    public boolean isPadded() {
+        return this.padded;
+    }
+
+    /**
+     * @return
+     *          Whether new files may be encrypted with this mode
+     */
+    public boolean isAllowedForNewFiles() {
+        return this != ECB;
+    }
+
+    /**
+     * @param id
+     *          Value stored in the file header
+     * @return
+     *          The mode to decrypt the file with
+     */
+    public static CipherMode fromId(int id) throws IOException {
+        for (CipherMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        throw new IOException("File was encrypted with an unknown cipher mode (" + id + ")");
+    }
+}
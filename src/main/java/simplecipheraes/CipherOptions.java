@@ -0,0 +1,230 @@
+package simplecipheraes;
+
+/**
+ * Tuning options for a single encryption or decryption job.
+ * Other than compression and the cipher mode, none of these change the
+ * contents of the output file, only how fast (and with how much memory) it is made.
+ *
+ * Unless auto-tuning is turned off, the threads, buffer size and pipeline
+ * depth are picked for each job by the {@link AdaptiveTuner}; any of them
+ * that were set explicitly are kept as they are.
+ */
+public class CipherOptions {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int bufferSize = StreamingCipherEngine.DEFAULT_BUFFER_SIZE;
+    private IoBackend ioBackend = IoBackend.STREAM;
+    private int pipelineDepth = 4;
+    private long progressInterval = 100;
+    private Compression compression = Compression.NONE;
+    //Null to let the CipherSelector pick
+    private CipherMode mode;
+    private String provider;
+    private long syncIntervalBytes = DurableOutput.DEFAULT_SYNC_INTERVAL_BYTES;
+    private long syncIntervalMillis = DurableOutput.DEFAULT_SYNC_INTERVAL_MILLIS;
+    private boolean autoTune = true;
+
+    //Which of the tunable options were set by hand, and so are left alone by the tuner
+    private boolean threadsSet;
+    private boolean bufferSizeSet;
+    private boolean pipelineDepthSet;
+
+    public CipherOptions() {
+    }
+
+    /**
+     * Copies another set of options, including which of them were set by hand.
+     */
+    public CipherOptions(CipherOptions other) {
+        this.threads = other.threads;
+        this.bufferSize = other.bufferSize;
+        this.ioBackend = other.ioBackend;
+        this.pipelineDepth = other.pipelineDepth;
+        this.progressInterval = other.progressInterval;
+        this.compression = other.compression;
+        this.mode = other.mode;
+        this.provider = other.provider;
+        this.syncIntervalBytes = other.syncIntervalBytes;
+        this.syncIntervalMillis = other.syncIntervalMillis;
+        this.autoTune = other.autoTune;
+        this.threadsSet = other.threadsSet;
+        this.bufferSizeSet = other.bufferSizeSet;
+        this.pipelineDepthSet = other.pipelineDepthSet;
+    }
+
+    /**
+     * @return
+     *          Number of threads that process segments of the file concurrently
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        this.threadsSet = true;
+    }
+
+    /**
+     * @return
+     *          Size of the buffers each thread reads into and encrypts from, in bytes
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < SegmentLayout.BLOCK_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + SegmentLayout.BLOCK_SIZE);
+        }
+        this.bufferSize = bufferSize;
+        this.bufferSizeSet = true;
+    }
+
+    /**
+     * @return
+     *          How the file is read and written
+     */
+    public IoBackend getIoBackend() {
+        return this.ioBackend;
+    }
+
+    public void setIoBackend(IoBackend ioBackend) {
+        this.ioBackend = ioBackend;
+    }
+
+    /**
+     * @return
+     *          Number of buffers in flight between the read, cipher and write stages
+     *          of a single-threaded job; 0 if the stages shouldn't overlap
+     */
+    public int getPipelineDepth() {
+        return this.pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth == 1 || pipelineDepth < 0) {
+            throw new IllegalArgumentException("Pipeline depth must be 0 (disabled) or at least 2");
+        }
+        this.pipelineDepth = pipelineDepth;
+        this.pipelineDepthSet = true;
+    }
+
+    /**
+     * @return
+     *          Milliseconds between progress updates sent to the job's listener
+     */
+    public long getProgressInterval() {
+        return this.progressInterval;
+    }
+
+    public void setProgressInterval(long progressInterval) {
+        if (progressInterval < 1) {
+            throw new IllegalArgumentException("Progress interval must be at least 1 ms");
+        }
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * @return
+     *          How files are compressed before they're encrypted. Files being
+     *          decrypted are decompressed however their header says.
+     */
+    public Compression getCompression() {
+        return this.compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return
+     *          How the blocks of new files are encrypted, or null to let the
+     *          {@link CipherSelector} pick. Files being decrypted use whatever
+     *          mode their header says.
+     */
+    public CipherMode getMode() {
+        return this.mode;
+    }
+
+    public void setMode(CipherMode mode) {
+        if (mode != null && !mode.isAllowedForNewFiles()) {
+            throw new IllegalArgumentException(mode + " can only be used to decrypt old files");
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * @return
+     *          Name of the JCE provider new files are encrypted with, or null
+     *          to let the {@link CipherSelector} pick
+     */
+    public String getProvider() {
+        return this.provider;
+    }
+
+    public void setProvider(String provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @return
+     *          Bytes of output written between forces to disk while the job
+     *          runs; 0 to not force by size
+     */
+    public long getSyncIntervalBytes() {
+        return this.syncIntervalBytes;
+    }
+
+    public void setSyncIntervalBytes(long syncIntervalBytes) {
+        if (syncIntervalBytes < 0) {
+            throw new IllegalArgumentException("Sync interval can't be negative");
+        }
+        this.syncIntervalBytes = syncIntervalBytes;
+    }
+
+    /**
+     * @return
+     *          Longest time in milliseconds between forces to disk while the
+     *          job runs; 0 to not force by time. With both intervals at 0, the
+     *          output is only forced once it's complete.
+     */
+    public long getSyncIntervalMillis() {
+        return this.syncIntervalMillis;
+    }
+
+    public void setSyncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Sync interval can't be negative");
+        }
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * @return
+     *          Whether the threads, buffer size and pipeline depth that weren't
+     *          set explicitly are picked for each job and adjusted while it runs
+     */
+    public boolean isAutoTune() {
+        return this.autoTune;
+    }
+
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    boolean isThreadsSet() {
+        return this.threadsSet;
+    }
+
+    boolean isBufferSizeSet() {
+        return this.bufferSizeSet;
+    }
+
+    boolean isPipelineDepthSet() {
+        return this.pipelineDepthSet;
+    }
+}
@@ -0,0 +1,188 @@
+package simplecipheraes;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Picks the {@link CipherMode} and JCE provider new files are encrypted with.
+ * Providers differ a lot in speed, e.g. depending on whether they use the
+ * CPU's AES instructions, so the choice is made by measuring every provider
+ * and mode on this machine instead of trusting whichever provider is listed first.
+ *
+ * Only candidates that meet the security policy are considered: the mode must
+ * be allowed for new files (so never {@link CipherMode#ECB}), and the JCE
+ * policy must allow 128-bit AES keys for it.
+ *
+ * Like the {@link AdaptiveTuner}'s calibration, the benchmark only runs once,
+ * the first time a file of at least {@value #BENCHMARK_THRESHOLD} bytes is
+ * encrypted (or when asked to with {@link #benchmark()}), and takes a few tens of
+ * milliseconds per candidate. Until then, files are encrypted with
+ * {@link CipherMode#DEFAULT} and the default provider. A mode or provider set in
+ * the job's {@link CipherOptions} is always kept.
+ */
+public class CipherSelector {
+    /**
+     * Files smaller than this are never worth a benchmark run
+     */
+    public static final long BENCHMARK_THRESHOLD = 64 << 20;
+
+    private static final int BENCHMARK_BYTES = 4 << 20;
+    private static final int BENCHMARK_CHUNK_SIZE = 256 << 10;
+    private static final int KEY_SIZE = 16;
+
+    private static final CipherSelector SHARED = new CipherSelector();
+
+    //Fastest first; null until the benchmark has run
+    private volatile List<Candidate> results;
+
+    /**
+     * @return
+     *          The selector used by all jobs of this app
+     */
+    public static CipherSelector getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Picks the mode and provider of a job.
+     *
+     * @param options
+     *          Options given for the job; an explicit mode or provider is kept
+     * @param inputSize
+     *          Size of the file being encrypted, to tell if a benchmark is worth running
+     * @return
+     *          The fastest measured candidate that matches the options, or
+     *          the options' (or default) mode with the default provider if
+     *          nothing has been measured
+     */
+    public Candidate select(CipherOptions options, long inputSize) {
+        CipherMode mode = options.getMode();
+        String provider = options.getProvider();
+        if (mode == null || provider == null) {
+            List<Candidate> measured = inputSize >= BENCHMARK_THRESHOLD ? benchmark() : results;
+            if (measured != null) {
+                for (Candidate candidate : measured) {
+                    if ((mode == null || candidate.getMode() == mode)
+                            && (provider == null || candidate.getProvider().equals(provider))) {
+                        return candidate;
+                    }
+                }
+            }
+        }
+
+        mode = mode == null ? CipherMode.DEFAULT : mode;
+        if (provider == null) {
+            try {
+                provider = Cipher.getInstance(mode.getTransformation()).getProvider().getName();
+            } catch (GeneralSecurityException ex) {
+                //Left to the default provider, which reports the problem when the job starts
+            }
+        }
+        return new Candidate(mode, provider, 0);
+    }
+
+    /**
+     * Measures every candidate, once per run of the app.
+     *
+     * @return
+     *          The candidates that meet the security policy, fastest first
+     */
+    public synchronized List<Candidate> benchmark() {
+        if (results != null) {
+            return results;
+        }
+
+        byte[] in = new byte[BENCHMARK_CHUNK_SIZE];
+        byte[] out = new byte[BENCHMARK_CHUNK_SIZE + SegmentLayout.BLOCK_SIZE];
+        List<Candidate> measured = new ArrayList<>();
+        for (Provider provider : Security.getProviders()) {
+            for (CipherMode mode : CipherMode.values()) {
+                if (!mode.isAllowedForNewFiles()) {
+                    continue;
+                }
+                try {
+                    if (Cipher.getMaxAllowedKeyLength(mode.getTransformation()) < KEY_SIZE * 8) {
+                        continue;
+                    }
+                    Cipher cipher = Cipher.getInstance(mode.getTransformation(), provider);
+                    //The first run only warms up the JIT
+                    measure(cipher, mode, in, out);
+                    measured.add(new Candidate(mode, provider.getName(), measure(cipher, mode, in, out)));
+                } catch (GeneralSecurityException ex) {
+                    //This provider doesn't have the mode
+                }
+            }
+        }
+        measured.sort(Comparator.comparingLong(Candidate::getBytesPerSecond).reversed());
+
+        results = measured;
+        if (!measured.isEmpty()) {
+            Candidate fastest = measured.get(0);
+            CipherMetrics.getShared().recordCipherSelection(fastest.toString(), fastest.getBytesPerSecond());
+        }
+        return measured;
+    }
+
+    /**
+     * @return
+     *          Bytes encrypted per second, in chunks the size of a typical buffer
+     */
+    private static long measure(Cipher cipher, CipherMode mode, byte[] in, byte[] out)
+            throws GeneralSecurityException {
+        SecretKeySpec key = new SecretKeySpec(new byte[KEY_SIZE], "AES");
+        long start = System.nanoTime();
+        for (int done = 0; done < BENCHMARK_BYTES; done += BENCHMARK_CHUNK_SIZE) {
+            //A new IV for every chunk, like a new segment
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[mode.getIvSize()]));
+            cipher.doFinal(in, 0, in.length, out, 0);
+        }
+        return BENCHMARK_BYTES * 1_000_000_000L / Math.max(1, System.nanoTime() - start);
+    }
+
+    /**
+     * A mode and provider, and how fast they encrypt on this machine.
+     */
+    public static class Candidate {
+        private final CipherMode mode;
+        private final String provider;
+        private final long bytesPerSecond;
+
+        Candidate(CipherMode mode, String provider, long bytesPerSecond) {
+            this.mode = mode;
+            this.provider = provider;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public CipherMode getMode() {
+            return this.mode;
+        }
+
+        /**
+         * @return
+         *          Name of the JCE provider, or null if the default one couldn't be found
+         */
+        public String getProvider() {
+            return this.provider;
+        }
+
+        /**
+         * @return
+         *          Bytes encrypted per second by a single thread; 0 if it wasn't measured
+         */
+        public long getBytesPerSecond() {
+            return this.bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return mode + " " + provider;
+        }
+    }
+}
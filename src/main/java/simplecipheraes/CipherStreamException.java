@@ -0,0 +1,27 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown by the cipher streams when encryption fails, the key is wrong or the
+ * data was tampered with; streams can only throw IOExceptions, so the original
+ * error is carried as the cause.
+ */
+public class CipherStreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CipherStreamException(GeneralSecurityException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * @return
+     *          The error that stopped the stream, e.g. an
+     *          {@link java.security.InvalidKeyException} for a wrong key
+     */
+    @Override
+    public synchronized GeneralSecurityException getCause() {
+        return (GeneralSecurityException) super.getCause();
+    }
+}
@@ -0,0 +1,174 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything written to it into the underlying stream.
+ * The data is cut into blocks that are compressed independently of each other,
+ * so several blocks can be compressed at once on different threads while the
+ * output still comes out in order. Each block is written as a frame:
+ * <pre>
+ *   [uncompressed length: 4 bytes][data length: 4 bytes][data]
+ * </pre>
+ * Blocks that don't get any smaller are stored as they are, with both lengths equal.
+ * {@link DecompressingOutputStream} turns the frames back into the original stream.
+ *
+ * Call {@link #finish()} once everything has been written. Closing this
+ * stream stops its threads but doesn't close the stream it writes to.
+ */
+public class CompressingOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final OutputStream out;
+    private final Compression compression;
+    private final ExecutorService pool;
+    //Blocks being compressed, in the order they were written; at most 2 per thread
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int window;
+
+    private final int blockSize;
+    private byte[] block;
+    private int blockPosition;
+
+    /**
+     * @param out
+     *          Stream to write the compressed frames to
+     * @param compression
+     *          How to compress; must not be {@link Compression#NONE}
+     * @param blockSize
+     *          Number of bytes compressed independently of the rest
+     * @param threads
+     *          Number of blocks compressed at once
+     */
+    public CompressingOutputStream(OutputStream out, Compression compression, int blockSize, int threads) {
+        if (compression == Compression.NONE) {
+            throw new IllegalArgumentException("Nothing to compress with");
+        }
+        this.out = out;
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        this.window = 2 * threads;
+        this.pool = threads > 1
+                ? Executors.newFixedThreadPool(threads, daemon("compressor"))
+                : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int copied = Math.min(length, blockSize - blockPosition);
+            System.arraycopy(buffer, offset, block, blockPosition, copied);
+            blockPosition += copied;
+            offset += copied;
+            length -= copied;
+
+            if (blockPosition == blockSize) {
+                submit(block);
+                //The full block now belongs to whichever thread compresses it
+                block = new byte[blockSize];
+                blockPosition = 0;
+            }
+        }
+    }
+
+    private void submit(byte[] fullBlock) throws IOException {
+        //Keep every thread busy, but write out the oldest block before taking on more
+        if (pending.size() >= window) {
+            out.write(await(pending.poll()));
+        }
+
+        pending.add(pool == null
+                ? CompletableFuture.completedFuture(compress(fullBlock, compression))
+                : pool.submit(() -> compress(fullBlock, compression)));
+    }
+
+    /**
+     * Compresses the last, partial block and writes every remaining frame to the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (blockPosition > 0) {
+            submit(Arrays.copyOf(block, blockPosition));
+            blockPosition = 0;
+        }
+        while (!pending.isEmpty()) {
+            out.write(await(pending.poll()));
+        }
+    }
+
+    static byte[] compress(byte[] block, Compression compression) {
+        Deflater deflater = new Deflater(compression.getLevel(), true);
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+
+            //Anything that doesn't fit in the block's own size isn't worth compressing
+            byte[] frame = new byte[FRAME_HEADER_SIZE + block.length];
+            int dataLength = 0;
+            while (!deflater.finished() && dataLength < block.length) {
+                dataLength += deflater.deflate(frame, FRAME_HEADER_SIZE + dataLength, block.length - dataLength);
+            }
+            if (!deflater.finished() || dataLength >= block.length) {
+                System.arraycopy(block, 0, frame, FRAME_HEADER_SIZE, block.length);
+                dataLength = block.length;
+            }
+
+            ByteBuffer.wrap(frame).putInt(block.length).putInt(dataLength);
+            return Arrays.copyOf(frame, FRAME_HEADER_SIZE + dataLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on a block", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Stops the compression threads. The underlying stream is left open.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
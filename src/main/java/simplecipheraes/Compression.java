@@ -0,0 +1,67 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * How a file is compressed before it's encrypted. Recorded in the
+ * {@link FileHeader}, so decryption knows how to decompress it.
+ * Encrypted data can't be compressed, so this is the only chance to shrink
+ * files like logs and CSV exports.
+ */
+public enum Compression {
+    /**
+     * Encrypted as is
+     */
+    NONE(0, 0),
+
+    /**
+     * Deflate at its default level; a good balance of size and speed
+     */
+    DEFLATE(1, Deflater.DEFAULT_COMPRESSION),
+
+    /**
+     * Deflate at its fastest level; several times faster than {@link #DEFLATE}
+     * and usually only slightly larger. Decompressed the same way.
+     */
+    DEFLATE_FAST(1, Deflater.BEST_SPEED);
+
+    private final int id;
+    private final int level;
+
+    Compression(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * @return
+     *          Value stored in the file header
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return
+     *          Deflater level used when compressing
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * @param id
+     *          Value stored in the file header
+     * @return
+     *          The compression to decompress the file with
+     */
+    public static Compression fromId(int id) throws IOException {
+        for (Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IOException("File was compressed with an unknown method (" + id + ")");
+    }
+}
@@ -0,0 +1,161 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Takes the frames made by a {@link CompressingOutputStream} and writes the
+ * original stream to the underlying stream. Frames are decompressed on
+ * several threads at once, and written in order.
+ *
+ * Call {@link #finish()} once everything has been written, to write the last
+ * blocks and make sure the compressed data wasn't cut short. Closing this
+ * stream stops its threads but doesn't close the stream it writes to.
+ */
+public class DecompressingOutputStream extends OutputStream {
+    /**
+     * Largest block accepted, so a damaged frame can't make us allocate gigabytes
+     */
+    static final int MAX_BLOCK_SIZE = 64 << 20;
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int window;
+
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(CompressingOutputStream.FRAME_HEADER_SIZE);
+    private int rawLength;
+    //Null while the next frame's header is being read
+    private byte[] frameData;
+    private int frameDataPosition;
+
+    /**
+     * @param out
+     *          Stream to write the decompressed data to
+     * @param threads
+     *          Number of blocks decompressed at once
+     */
+    public DecompressingOutputStream(OutputStream out, int threads) {
+        this.out = out;
+        this.window = 2 * threads;
+        this.pool = threads > 1
+                ? Executors.newFixedThreadPool(threads, CompressingOutputStream.daemon("decompressor"))
+                : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (frameData == null) {
+                int copied = Math.min(end - offset, frameHeader.remaining());
+                frameHeader.put(buffer, offset, copied);
+                offset += copied;
+                if (!frameHeader.hasRemaining()) {
+                    startFrame();
+                }
+            } else {
+                int copied = Math.min(end - offset, frameData.length - frameDataPosition);
+                System.arraycopy(buffer, offset, frameData, frameDataPosition, copied);
+                frameDataPosition += copied;
+                offset += copied;
+            }
+
+            if (frameData != null && frameDataPosition == frameData.length) {
+                submit(rawLength, frameData);
+                frameData = null;
+            }
+        }
+    }
+
+    private void startFrame() throws IOException {
+        frameHeader.flip();
+        rawLength = frameHeader.getInt();
+        int dataLength = frameHeader.getInt();
+        frameHeader.clear();
+
+        if (rawLength <= 0 || rawLength > MAX_BLOCK_SIZE || dataLength <= 0 || dataLength > rawLength) {
+            throw new IOException("Compressed data is corrupted");
+        }
+        frameData = new byte[dataLength];
+        frameDataPosition = 0;
+    }
+
+    private void submit(int rawLength, byte[] data) throws IOException {
+        if (pending.size() >= window) {
+            out.write(CompressingOutputStream.await(pending.poll()));
+        }
+
+        pending.add(pool == null
+                ? CompletableFuture.completedFuture(decompress(rawLength, data))
+                : pool.submit(() -> decompress(rawLength, data)));
+    }
+
+    private static byte[] decompress(int rawLength, byte[] data) throws IOException {
+        //Stored as is
+        if (data.length == rawLength) {
+            return data;
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] block = new byte[rawLength];
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(block, inflated, rawLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed data is corrupted");
+            }
+            return block;
+        } catch (DataFormatException ex) {
+            throw new IOException("Compressed data is corrupted", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes every remaining block to the underlying stream.
+     *
+     * @throws IOException
+     *          If the data ended in the middle of a frame
+     */
+    public void finish() throws IOException {
+        if (frameData != null || frameHeader.position() > 0) {
+            throw new IOException("Compressed data is truncated");
+        }
+        while (!pending.isEmpty()) {
+            out.write(CompressingOutputStream.await(pending.poll()));
+        }
+    }
+
+    /**
+     * Stops the decompression threads. The underlying stream is left open.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
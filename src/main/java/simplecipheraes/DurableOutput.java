@@ -0,0 +1,160 @@
+package simplecipheraes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The output file of a job. Everything is written at explicit positions, so
+ * segments can be written in any order and from any number of threads.
+ *
+ * Written data is forced to disk every {@code syncIntervalBytes} bytes or
+ * {@code syncIntervalMillis} ms, whichever comes first, so a crash loses at
+ * most about that much. The force runs on a background thread and the writers
+ * don't wait for it. If more data becomes due while a force is running, it
+ * goes in the next force, so forces never pile up behind a slow disk.
+ *
+ * The caller still forces the file once more when it's complete; this only
+ * bounds how much unsynced data builds up on the way there.
+ */
+public class DurableOutput implements Closeable {
+    /**
+     * Data written between forces, unless set otherwise
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_BYTES = 64L << 20;
+
+    /**
+     * Longest time between forces while data is being written, unless set otherwise
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1_000;
+
+    private final FileChannel channel;
+    private final long syncIntervalBytes;
+    private final long syncIntervalNanos;
+    //Null if the output is only forced by the caller
+    private final ExecutorService syncer;
+
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    private volatile long lastSyncNanos = System.nanoTime();
+    private volatile IOException syncFailure;
+
+    /**
+     * @param channel
+     *          Output file; stays open when this is closed
+     * @param syncIntervalBytes
+     *          Data written between forces; 0 to not force by size
+     * @param syncIntervalMillis
+     *          Longest time between forces; 0 to not force by time
+     */
+    public DurableOutput(FileChannel channel, long syncIntervalBytes, long syncIntervalMillis) {
+        this.channel = channel;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.syncIntervalNanos = syncIntervalMillis * 1_000_000;
+        this.syncer = syncIntervalBytes > 0 || syncIntervalMillis > 0
+                ? Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "output-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    /**
+     * Writes all of the buffer at the given position.
+     * Safe to call from any number of threads.
+     *
+     * @return
+     *          Position just after the written data
+     * @throws IOException
+     *          If writing fails, or if an earlier background force did
+     */
+    public long write(ByteBuffer buffer, long position) throws IOException {
+        IOException failure = syncFailure;
+        if (failure != null) {
+            throw new IOException("Could not force the output to disk", failure);
+        }
+
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        written(length);
+        return position;
+    }
+
+    /**
+     * @param position
+     *          Position to start writing at
+     * @return
+     *          A stream writing to the file from the given position on, for
+     *          writers that produce the output in order
+     */
+    public OutputStream newOutputStream(long position) {
+        return new OutputStream() {
+            private long next = position;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                next = DurableOutput.this.write(ByteBuffer.wrap(buffer, offset, length), next);
+            }
+        };
+    }
+
+    private void written(long bytes) {
+        long unsynced = unsyncedBytes.addAndGet(bytes);
+        if (syncer == null) {
+            return;
+        }
+
+        boolean due = syncIntervalBytes > 0 && unsynced >= syncIntervalBytes
+                || syncIntervalNanos > 0 && System.nanoTime() - lastSyncNanos >= syncIntervalNanos;
+        if (due && syncing.compareAndSet(false, true)) {
+            syncer.execute(this::sync);
+        }
+    }
+
+    private void sync() {
+        long start = System.nanoTime();
+        //Anything written after this point may miss this force, so it counts towards the next one
+        unsyncedBytes.set(0);
+        try {
+            //Only the data needs forcing; a size that changed is forced along with it anyway
+            channel.force(false);
+        } catch (IOException ex) {
+            syncFailure = ex;
+        }
+        CipherMetrics.getShared().recordSync(start);
+        lastSyncNanos = System.nanoTime();
+        syncing.set(false);
+    }
+
+    /**
+     * Waits for a running force to finish, and stops the background thread.
+     * Doesn't close the channel.
+     */
+    @Override
+    public void close() {
+        if (syncer == null) {
+            return;
+        }
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,22 @@
 package simplecipheraes;
 
+import javax.crypto.Cipher;
+
 public enum EncryptionDirection {
-    ENCRYPT,
-    DECRYPT;
+    ENCRYPT(Cipher.ENCRYPT_MODE),
+    DECRYPT(Cipher.DECRYPT_MODE);
+
+    private final int cipherMode;
+
+    EncryptionDirection(int cipherMode) {
+        this.cipherMode = cipherMode;
+    }
+
+    /**
+     * @return
+     *          The matching {@link Cipher} operation mode
+     */
+    public int getCipherMode() {
+        return this.cipherMode;
+    }
 }
@@ -0,0 +1,469 @@
+package simplecipheraes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Header at the start of every encrypted file.
+ * It says how the rest of the file is laid out and carries a key check value,
+ * so a wrong password is rejected after reading a few bytes instead of after
+ * decrypting the whole file. The key check is always the header's last field,
+ * and authenticates every field before it.
+ *
+ * Files encrypted before the header existed start straight away with ciphertext;
+ * {@link #read} returns null for those, and they're processed with the
+ * legacy {@link SegmentLayout}.
+ *
+ * Since version 2 the header also says how the file's key is derived from
+ * the user's key (see {@link KeyDerivation}). Version 1 files, like files
+ * without a header, are encrypted with the user's key itself.
+ *
+ * The {@link CipherMode} and the JCE provider a file was encrypted with are
+ * recorded too. The provider is only a preference: files are decrypted with
+ * it if it's installed, and with the default provider otherwise.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   0  magic         8 bytes
+ *   8  version       1 byte
+ *   9  header length 2 bytes, including the magic
+ *  11  flags         1 byte, low 4 bits = {@link Compression} id,
+ *                             high 4 bits = {@link CipherMode} id
+ *  12  segment size  4 bytes, plaintext bytes per segment
+ *  16  KDF           1 byte, {@link KeyDerivation#PBKDF2_HMAC_SHA256}   (version 2)
+ *  17  iterations    4 bytes                                          (version 2)
+ *  21  KDF salt     16 bytes, shared by files encrypted together      (version 2)
+ *  37  file salt    16 bytes, different for every file                (version 2)
+ *  53  provider     32 bytes, ASCII name, zero-padded; all zero if none (version 2)
+ *  85  key check    16 bytes
+ * </pre>
+ */
+public class FileHeader {
+    public static final byte[] MAGIC = { (byte) 0x89, 'S', 'C', 'A', 'E', 'S', '\r', '\n' };
+    public static final int VERSION = 2;
+    public static final int LENGTH = 101;
+
+    /**
+     * Plaintext bytes per segment of new files. Small enough that a segment
+     * can be verified quickly when reading a random range of the file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    /**
+     * Bytes of HMAC-SHA256 kept for the key check value and segment tags
+     */
+    public static final int TAG_SIZE = 16;
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int FIXED_FIELDS_LENGTH = 11;
+    private static final int VERSION_1_LENGTH = 32;
+    private static final int KDF_OFFSET = 16;
+    private static final int PROVIDER_OFFSET = 53;
+    private static final int PROVIDER_SIZE = 32;
+    private static final int COMPRESSION_MASK = 0x0F;
+    private static final int MODE_SHIFT = 4;
+    private static final byte[] MAC_KEY_LABEL = "SimpleCipherAES segment MAC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_CHECK_LABEL = "SimpleCipherAES key check".getBytes(StandardCharsets.US_ASCII);
+
+    private final int version;
+    private final int length;
+    private final int flags;
+    private final int segmentSize;
+    //Null, and 0, in version 1 headers
+    private final byte[] kdfSalt;
+    private final byte[] fileSalt;
+    private final int iterations;
+    private final byte[] keyCheck;
+    private final Compression compression;
+    private final CipherMode mode;
+    //Null if none was recorded
+    private final String provider;
+
+    private FileHeader(int version, int length, Compression compression, CipherMode mode, String provider,
+                       int segmentSize, int iterations, byte[] kdfSalt, byte[] fileSalt, byte[] keyCheck) {
+        this.version = version;
+        this.length = length;
+        this.flags = compression.getId() | mode.getId() << MODE_SHIFT;
+        this.segmentSize = segmentSize;
+        this.iterations = iterations;
+        this.kdfSalt = kdfSalt;
+        this.fileSalt = fileSalt;
+        this.keyCheck = keyCheck;
+        this.compression = compression;
+        this.mode = mode;
+        this.provider = provider;
+    }
+
+    /**
+     * Makes the header for a file about to be encrypted, with a new file salt.
+     * The first file encrypted with a key in this run of the app pays for
+     * stretching the key; later ones reuse it.
+     *
+     * @param key
+     *          User-given key
+     * @param segmentSize
+     *          Plaintext bytes per segment
+     * @param mode
+     *          How the blocks of each segment are encrypted
+     * @param provider
+     *          Name of the JCE provider the file is encrypted with, or null to not record one
+     * @param compression
+     *          How the file is compressed before it's encrypted
+     */
+    public static FileHeader create(byte[] key, int segmentSize, CipherMode mode, String provider,
+                                    Compression compression) throws GeneralSecurityException {
+        KeyDerivation derivation = KeyDerivation.getShared();
+        int iterations = derivation.getIterations();
+        byte[] kdfSalt = derivation.sessionSalt(key, iterations);
+        byte[] fileSalt = derivation.newSalt();
+        //A name that doesn't fit is left out; the default provider can read the file all the same
+        if (provider != null && (provider.length() > PROVIDER_SIZE
+                || !StandardCharsets.US_ASCII.newEncoder().canEncode(provider))) {
+            provider = null;
+        }
+
+        FileHeader header = new FileHeader(VERSION, LENGTH, compression, mode, provider, segmentSize,
+                iterations, kdfSalt, fileSalt, new byte[TAG_SIZE]);
+        return new FileHeader(VERSION, LENGTH, compression, mode, provider, segmentSize,
+                iterations, kdfSalt, fileSalt, header.computeKeyCheck(key));
+    }
+
+    /**
+     * Makes the header for a file about to be encrypted with the given layout.
+     *
+     * @return
+     *          The header, or null if the layout is that of files without headers
+     * @throws IllegalArgumentException
+     *          If asked to compress a file without a header, which has nowhere to say so
+     */
+    public static FileHeader forLayout(byte[] key, SegmentLayout layout, Compression compression)
+            throws GeneralSecurityException {
+        if (!layout.isAuthenticated()) {
+            if (compression != Compression.NONE) {
+                throw new IllegalArgumentException("Only files with a header can be compressed");
+            }
+            return null;
+        }
+        return create(key, layout.getPlainSegmentSize(), layout.getMode(), layout.getProvider(), compression);
+    }
+
+    /**
+     * @return
+     *          Layout of new files with the given segment size, in the default mode
+     */
+    public static SegmentLayout newLayout(int segmentSize) {
+        return newLayout(segmentSize, CipherMode.DEFAULT, null);
+    }
+
+    /**
+     * @param mode
+     *          How the blocks of each segment are encrypted
+     * @param provider
+     *          Name of the JCE provider to encrypt with, or null for the default one
+     * @return
+     *          Layout of new files with the given segment size, mode and provider
+     */
+    public static SegmentLayout newLayout(int segmentSize, CipherMode mode, String provider) {
+        return new SegmentLayout(segmentSize, LENGTH, TAG_SIZE, mode, provider);
+    }
+
+    /**
+     * Reads the header at the start of a file.
+     *
+     * @param channel
+     *          Channel to read from; its position isn't changed
+     * @return
+     *          The header, or null if the file was encrypted before headers existed
+     */
+    public static FileHeader read(FileChannel channel) throws IOException {
+        ByteBuffer fixedFields = ByteBuffer.allocate(FIXED_FIELDS_LENGTH);
+        readFully(channel, fixedFields, 0);
+        if (!isHeader(fixedFields.array(), fixedFields.position())) {
+            return null;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(headerLength(fixedFields.array()));
+        if (readFully(channel, bytes, 0) < bytes.capacity()) {
+            throw new EOFException("File ended in the middle of its header");
+        }
+        return parse(bytes.array());
+    }
+
+    /**
+     * Reads the header of a partly written output file, so a job that picks up
+     * where it left off keeps encrypting with the same salts.
+     *
+     * @return
+     *          The header, or null if there's no usable header: none at all, a
+     *          different layout, compression, or one made with another key
+     */
+    static FileHeader readReusable(FileChannel channel, byte[] key, SegmentLayout layout) {
+        try {
+            FileHeader header = read(channel);
+            if (header == null
+                    || header.getCompression() != Compression.NONE
+                    || header.getMode() != layout.getMode()
+                    || header.getSegmentSize() != layout.getPlainSegmentSize()
+                    || header.getLength() != layout.getHeaderSize()) {
+                return null;
+            }
+            header.verifyKey(key);
+            return header;
+        } catch (IOException | GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Works out how long the header at the start of a stream is, from as much
+     * of the stream as has arrived so far.
+     *
+     * @param prefix
+     *          First bytes of the stream
+     * @param available
+     *          Number of bytes of the prefix that have arrived
+     * @return
+     *          Length of the header, 0 if the stream has no header,
+     *          or -1 if more bytes are needed to tell
+     */
+    static int lengthOf(byte[] prefix, int available) throws IOException {
+        if (available < FIXED_FIELDS_LENGTH) {
+            return -1;
+        }
+        return isHeader(prefix, available) ? headerLength(prefix) : 0;
+    }
+
+    private static boolean isHeader(byte[] bytes, int length) {
+        return length >= FIXED_FIELDS_LENGTH
+                && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    private static int headerLength(byte[] fixedFields) throws IOException {
+        int version = fixedFields[MAGIC.length] & 0xFF;
+        if (version > VERSION) {
+            throw new IOException("File was encrypted by a newer version of this app (format " + version + ")");
+        }
+
+        int length = ByteBuffer.wrap(fixedFields).getShort(MAGIC.length + 1) & 0xFFFF;
+        if (length < (version < 2 ? VERSION_1_LENGTH : LENGTH)) {
+            throw new IOException("File header is corrupted");
+        }
+        return length;
+    }
+
+    /**
+     * @param bytes
+     *          The whole header, as found by {@link #lengthOf}
+     */
+    static FileHeader parse(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int version = buffer.get(MAGIC.length) & 0xFF;
+        int flags = buffer.get(FIXED_FIELDS_LENGTH) & 0xFF;
+        Compression compression = Compression.fromId(flags & COMPRESSION_MASK);
+        CipherMode mode = CipherMode.fromId(flags >>> MODE_SHIFT);
+        int segmentSize = buffer.getInt(FIXED_FIELDS_LENGTH + 1);
+        if (segmentSize <= 0 || segmentSize % SegmentLayout.BLOCK_SIZE != 0) {
+            throw new IOException("File header is corrupted");
+        }
+
+        int iterations = 0;
+        byte[] kdfSalt = null;
+        byte[] fileSalt = null;
+        if (version >= 2) {
+            if ((buffer.get(KDF_OFFSET) & 0xFF) != KeyDerivation.PBKDF2_HMAC_SHA256) {
+                throw new IOException("File uses a key derivation this version of the app doesn't support");
+            }
+            iterations = buffer.getInt(KDF_OFFSET + 1);
+            if (iterations < 1 || iterations > KeyDerivation.MAX_ITERATIONS) {
+                throw new IOException("File header is corrupted");
+            }
+            int saltOffset = KDF_OFFSET + 5;
+            kdfSalt = Arrays.copyOfRange(bytes, saltOffset, saltOffset + KeyDerivation.SALT_SIZE);
+            fileSalt = Arrays.copyOfRange(bytes, saltOffset + KeyDerivation.SALT_SIZE,
+                    saltOffset + 2 * KeyDerivation.SALT_SIZE);
+        }
+        if (mode != CipherMode.ECB && version < 2) {
+            throw new IOException("File header is corrupted");
+        }
+
+        String provider = null;
+        if (version >= 2) {
+            int nameLength = 0;
+            while (nameLength < PROVIDER_SIZE && bytes[PROVIDER_OFFSET + nameLength] != 0) {
+                nameLength++;
+            }
+            if (nameLength > 0) {
+                provider = new String(bytes, PROVIDER_OFFSET, nameLength, StandardCharsets.US_ASCII);
+            }
+        }
+
+        //The key check is always the last field
+        byte[] keyCheck = Arrays.copyOfRange(bytes, bytes.length - TAG_SIZE, bytes.length);
+        return new FileHeader(version, bytes.length, compression, mode, provider, segmentSize,
+                iterations, kdfSalt, fileSalt, keyCheck);
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Checks that the given key is the one the file was encrypted with.
+     *
+     * @throws InvalidKeyException
+     *          If the key is wrong
+     */
+    public void verifyKey(byte[] key) throws GeneralSecurityException {
+        if (!MessageDigest.isEqual(keyCheck, computeKeyCheck(key))) {
+            throw new InvalidKeyException("Wrong password");
+        }
+    }
+
+    /**
+     * The key check authenticates all other header fields, too, so a tampered
+     * header looks the same as a wrong password.
+     */
+    private byte[] computeKeyCheck(byte[] key) throws GeneralSecurityException {
+        byte[] fileKey = fileKey(key);
+        try {
+            Mac mac = newMac(fileKey);
+            mac.update(KEY_CHECK_LABEL);
+            mac.update(toBytes(), 0, length - TAG_SIZE);
+            return Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+        } finally {
+            Arrays.fill(fileKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives the key this file is encrypted and authenticated with.
+     *
+     * @param key
+     *          User-given key
+     * @return
+     *          A new array the caller may overwrite once done with it
+     */
+    public byte[] fileKey(byte[] key) throws GeneralSecurityException {
+        if (kdfSalt == null) {
+            return key.clone();
+        }
+        return KeyDerivation.getShared().fileKey(key, kdfSalt, iterations, fileSalt);
+    }
+
+    /**
+     * Makes a MAC keyed for this file's segment tags.
+     * The MAC key is derived from the user's key so the same key is never
+     * used for both AES and HMAC.
+     */
+    public static Mac newMac(byte[] key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        byte[] macKey = mac.doFinal(MAC_KEY_LABEL);
+
+        mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(MAGIC);
+        buffer.put((byte) version);
+        buffer.putShort((short) length);
+        buffer.put((byte) flags);
+        buffer.putInt(segmentSize);
+        if (kdfSalt != null) {
+            buffer.put((byte) KeyDerivation.PBKDF2_HMAC_SHA256);
+            buffer.putInt(iterations);
+            buffer.put(kdfSalt);
+            buffer.put(fileSalt);
+        }
+        if (provider != null) {
+            buffer.put(PROVIDER_OFFSET, provider.getBytes(StandardCharsets.US_ASCII));
+        }
+        buffer.put(length - TAG_SIZE, keyCheck);
+        return buffer.array();
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return
+     *          Number of bytes the header takes up at the start of the file
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * @return
+     *          PBKDF2 iterations the user's key is stretched with, or 0 in version 1 headers
+     */
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    /**
+     * @return
+     *          Salt the user's key is stretched with, or null in version 1 headers
+     */
+    public byte[] getKdfSalt() {
+        return this.kdfSalt == null ? null : this.kdfSalt.clone();
+    }
+
+    /**
+     * @return
+     *          How the file was compressed before it was encrypted
+     */
+    public Compression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * @return
+     *          How the blocks of each segment were encrypted
+     */
+    public CipherMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return
+     *          Name of the JCE provider the file was encrypted with, or null if none was recorded
+     */
+    public String getProvider() {
+        return this.provider;
+    }
+
+    /**
+     * @return
+     *          Layout of the segments that follow this header, using the
+     *          recorded provider if it's installed
+     */
+    public SegmentLayout getLayout() {
+        String installed = provider != null && Security.getProvider(provider) != null ? provider : null;
+        return new SegmentLayout(segmentSize, length, TAG_SIZE, mode, installed);
+    }
+}
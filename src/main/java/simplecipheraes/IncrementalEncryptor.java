@@ -0,0 +1,267 @@
+package simplecipheraes;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import javax.crypto.Mac;
+
+/**
+ * Re-encrypts a file that was encrypted before, rewriting only the segments
+ * whose plaintext changed since. The file keeps its header, and with it the
+ * salts its key is derived from, so segments that are left alone still decrypt
+ * and verify under that key next to the rewritten ones. Every rewritten segment
+ * gets a fresh random IV, so segments are never compared by their ciphertext;
+ * which ones changed is only told by their plaintext hashes.
+ *
+ * Each segment of the plaintext is read once and hashed; the hashes are
+ * compared against the {@link SegmentManifest} saved by the last run, and only
+ * segments that differ are encrypted and written in place. Segments are
+ * handled in parallel the same way the {@link ParallelCipherEngine} processes
+ * them, so an unchanged file costs about one read of the plaintext.
+ *
+ * The manifest is deleted right before the encrypted file is first written to,
+ * and only saved again once the file has been fully updated, so if a run is
+ * interrupted the next one simply rewrites everything. A run that fails
+ * before writing anything (e.g. the plaintext can't be read) leaves both the
+ * file and the manifest as they were; {@link #hasWrittenInPlace()} tells the two apart.
+ */
+public class IncrementalEncryptor {
+    private final SegmentLayout layout;
+    private final int threads;
+    private final AtomicBoolean writtenInPlace = new AtomicBoolean();
+
+    /**
+     * @param layout
+     *          Layout of the encrypted file; must have a header, as the file's
+     *          segments have to be told apart
+     * @param threads
+     *          Number of segments hashed and encrypted at once
+     */
+    public IncrementalEncryptor(SegmentLayout layout, int threads) {
+        if (!layout.isAuthenticated()) {
+            throw new IllegalArgumentException("Only files with a header can be updated incrementally");
+        }
+        this.layout = layout;
+        this.threads = threads;
+    }
+
+    /**
+     * @return
+     *          Whether the last call to {@link #encrypt} got as far as writing to
+     *          the encrypted file; if it then failed, the file holds a mix of
+     *          the old and new versions
+     */
+    public boolean hasWrittenInPlace() {
+        return writtenInPlace.get();
+    }
+
+    /**
+     * Brings the encrypted file up to date with the plaintext.
+     *
+     * @param input
+     *          Plaintext file
+     * @param output
+     *          Encrypted file to update; created if it doesn't exist
+     * @param manifestFile
+     *          Where the segment hashes are kept between runs
+     * @param key
+     *          User-given key
+     * @param onSegmentDone
+     *          Called with the total number of plaintext bytes checked so far
+     *          each time a segment is completed; may be null
+     * @return
+     *          Number of segments that were rewritten
+     */
+    public long encrypt(File input, File output, File manifestFile, byte[] key, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        //The manifest is keyed like the file, so it can only be checked with the file's header
+        FileHeader existingHeader = null;
+        if (output.isFile()) {
+            try (FileChannel existing = FileChannel.open(output.toPath(), StandardOpenOption.READ)) {
+                existingHeader = FileHeader.readReusable(existing, key, layout);
+            }
+        }
+        SegmentManifest previous = existingHeader == null
+                ? null
+                : SegmentManifest.load(manifestFile, output, existingHeader.fileKey(key));
+        if (previous != null && previous.getSegmentSize() != layout.getPlainSegmentSize()) {
+            previous = null;
+        }
+        FileHeader header = previous != null
+                ? existingHeader
+                : FileHeader.forLayout(key, layout, Compression.NONE);
+        byte[] fileKey = header.fileKey(key);
+        writtenInPlace.set(false);
+
+        byte[] hashes;
+        AtomicLong rewritten = new AtomicLong();
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            if (previous == null) {
+                beginWriting(manifestFile);
+                write(out, ByteBuffer.wrap(header.toBytes()), 0);
+            }
+
+            long inputSize = in.size();
+            long segmentCount = layout.getSegmentCount(EncryptionDirection.ENCRYPT, inputSize);
+            if (segmentCount > Integer.MAX_VALUE / SegmentManifest.HASH_SIZE) {
+                throw new IOException(input + " has too many segments to be updated incrementally");
+            }
+            hashes = new byte[(int) segmentCount * SegmentManifest.HASH_SIZE];
+            SegmentManifest manifest = previous;
+            int workerCount = (int) Math.max(1, Math.min(threads, segmentCount));
+
+            AtomicLong nextSegment = new AtomicLong();
+            AtomicLong bytesDone = new AtomicLong();
+
+            ExecutorService pool = SegmentWorkers.getShared();
+            List<Future<Void>> workers = new ArrayList<>();
+            try {
+                for (int i = 0; i < workerCount; i++) {
+                    workers.add(pool.submit((Callable<Void>) () -> {
+                        SegmentCipher cipher = new SegmentCipher(key, EncryptionDirection.ENCRYPT, header);
+                        Mac mac = FileHeader.newMac(fileKey);
+                        //Whole segments are buffered, so a changed one doesn't have to be read twice
+                        ByteBuffer inBuffer = allocate(layout.getPlainSegmentSize());
+                        ByteBuffer outBuffer = allocate(SegmentCipher.maxOutputSize(layout.getPlainSegmentSize()));
+
+                        long segment;
+                        while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+                            if (processSegment(manifest, manifestFile, segment, segmentCount, inputSize,
+                                    in, out, cipher, mac, inBuffer, outBuffer, hashes)) {
+                                rewritten.incrementAndGet();
+                            }
+
+                            long done = bytesDone.addAndGet(
+                                    layout.getInputLength(EncryptionDirection.ENCRYPT, inputSize, segment));
+                            if (onSegmentDone != null) {
+                                onSegmentDone.accept(done);
+                            }
+                        }
+
+                        cipher.release();
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing " + input, ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                SegmentWorkers.cancel(workers);
+            }
+
+            //The file may have shrunk; the last segment's size is known without encrypting it
+            long lastLength = layout.getInputLength(EncryptionDirection.ENCRYPT, inputSize, segmentCount - 1);
+            beginWriting(manifestFile);
+            out.truncate(layout.getOutputOffset(EncryptionDirection.ENCRYPT, segmentCount - 1)
+                    + layout.getEncryptedLength((int) lastLength) + layout.getTagSize());
+            out.force(true);
+
+            new SegmentManifest(layout.getPlainSegmentSize(), inputSize, hashes).save(manifestFile, output, fileKey);
+        }
+        return rewritten.get();
+    }
+
+    /**
+     * Reads and hashes a single segment, then encrypts and writes it if it changed.
+     *
+     * @return
+     *          Whether the segment was rewritten
+     */
+    private boolean processSegment(SegmentManifest previous, File manifestFile,
+                                   long segment, long segmentCount, long inputSize,
+                                   FileChannel in, FileChannel out, SegmentCipher cipher, Mac mac,
+                                   ByteBuffer inBuffer, ByteBuffer outBuffer, byte[] hashes)
+            throws IOException, GeneralSecurityException {
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long position = layout.getInputOffset(EncryptionDirection.ENCRYPT, segment);
+        int length = layout.getInputLength(EncryptionDirection.ENCRYPT, inputSize, segment);
+
+        long start = System.nanoTime();
+        inBuffer.clear();
+        inBuffer.limit(length);
+        while (inBuffer.hasRemaining()) {
+            if (in.read(inBuffer, position + inBuffer.position()) < 0) {
+                throw new EOFException("File ended before segment " + segment + " was read");
+            }
+        }
+        inBuffer.flip();
+        metrics.record(CipherMetrics.Stage.READ, start, length);
+
+        int hashOffset = (int) segment * SegmentManifest.HASH_SIZE;
+        SegmentManifest.hash(mac, segment, inBuffer, hashes, hashOffset);
+
+        boolean last = segment == segmentCount - 1;
+        //Only the last segment's tag says it's last, so the old and new last ones change with the count
+        boolean changed = previous == null
+                || !previous.hashEquals(segment, hashes, hashOffset)
+                || (previous.getSegmentCount() != segmentCount
+                        && (last || segment == previous.getSegmentCount() - 1));
+        if (!changed) {
+            return false;
+        }
+
+        start = System.nanoTime();
+        inBuffer.rewind();
+        outBuffer.clear();
+        cipher.seek(segment);
+        cipher.update(inBuffer, outBuffer);
+        cipher.finish(outBuffer, last);
+        metrics.record(CipherMetrics.Stage.CIPHER, start, length);
+
+        outBuffer.flip();
+        beginWriting(manifestFile);
+        write(out, outBuffer, layout.getOutputOffset(EncryptionDirection.ENCRYPT, segment));
+        return true;
+    }
+
+    /**
+     * Called before anything is written to the encrypted file. The manifest
+     * is stale as soon as the first byte of the file changes, so it goes first.
+     */
+    private void beginWriting(File manifestFile) {
+        if (writtenInPlace.compareAndSet(false, true)) {
+            manifestFile.delete();
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        long start = System.nanoTime();
+        int chunkSize = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + chunkSize - buffer.remaining());
+        }
+        CipherMetrics.getShared().record(CipherMetrics.Stage.WRITE, start, chunkSize);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        CipherMetrics.getShared().recordAllocation(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+}
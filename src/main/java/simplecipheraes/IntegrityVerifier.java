@@ -0,0 +1,173 @@
+package simplecipheraes;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import javax.crypto.Mac;
+
+/**
+ * Checks that an encrypted file is intact without decrypting it or writing anything.
+ * Only the segment tags are recomputed, which is cheaper than decrypting, and
+ * segments are checked in parallel the same way the {@link ParallelCipherEngine}
+ * processes them, so a file can be verified about as fast as it can be read.
+ *
+ * Only files with a {@link FileHeader} can be verified; older files have no tags.
+ */
+public class IntegrityVerifier {
+    private final int threads;
+    private final int bufferSize;
+
+    public IntegrityVerifier(int threads, int bufferSize) {
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Checks every segment of the given file.
+     *
+     * @param encryptedFile
+     *          File to check
+     * @param key
+     *          User-given key
+     * @param onSegmentDone
+     *          Called with the total number of bytes checked so far
+     *          each time a segment is completed; may be null
+     * @return
+     *          Indexes of the segments that are corrupted or were tampered with, in order;
+     *          empty if the file is intact
+     * @throws java.security.InvalidKeyException
+     *          If the key is wrong
+     * @throws IOException
+     *          If the file has no header, so it can't be verified
+     */
+    public List<Long> verify(File encryptedFile, byte[] key, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel in = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ)) {
+            FileHeader header = FileHeader.read(in);
+            if (header == null) {
+                throw new IOException(encryptedFile + " was encrypted by an older version of this app"
+                        + " and has nothing to verify");
+            }
+            header.verifyKey(key);
+
+            SegmentLayout layout = header.getLayout();
+            long inputSize = in.size();
+            long segmentCount = layout.getSegmentCount(EncryptionDirection.DECRYPT, inputSize);
+            int workerCount = (int) Math.max(1, Math.min(threads, segmentCount));
+
+            AtomicLong nextSegment = new AtomicLong();
+            AtomicLong bytesDone = new AtomicLong(layout.getHeaderSize());
+            ConcurrentLinkedQueue<Long> corrupted = new ConcurrentLinkedQueue<>();
+
+            //Each worker gets its own MAC, keyed before they start so the file key can be wiped right away
+            List<Mac> macs = new ArrayList<>();
+            byte[] fileKey = header.fileKey(key);
+            try {
+                for (int i = 0; i < workerCount; i++) {
+                    macs.add(FileHeader.newMac(fileKey));
+                }
+            } finally {
+                Arrays.fill(fileKey, (byte) 0);
+            }
+
+            ExecutorService pool = SegmentWorkers.getShared();
+            List<Future<Void>> workers = new ArrayList<>();
+            try {
+                for (Mac mac : macs) {
+                    workers.add(pool.submit((Callable<Void>) () -> {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+                        long segment;
+                        while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+                            if (!verifySegment(layout, segment, segmentCount, inputSize, in, mac, buffer)) {
+                                corrupted.add(segment);
+                            }
+
+                            long done = bytesDone.addAndGet(
+                                    layout.getInputLength(EncryptionDirection.DECRYPT, inputSize, segment));
+                            if (onSegmentDone != null) {
+                                onSegmentDone.accept(done);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while verifying " + encryptedFile, ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                SegmentWorkers.cancel(workers);
+            }
+
+            List<Long> sorted = new ArrayList<>(corrupted);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * @return
+     *          Whether the segment's tag matches its contents
+     */
+    private static boolean verifySegment(SegmentLayout layout, long segment, long segmentCount, long inputSize,
+                                         FileChannel in, Mac mac, ByteBuffer buffer) throws IOException {
+        long position = layout.getInputOffset(EncryptionDirection.DECRYPT, segment);
+        int length = layout.getInputLength(EncryptionDirection.DECRYPT, inputSize, segment);
+        //Every segment has at least its IV or padding block, and its tag
+        if (length < layout.getMinEncryptedLength() + layout.getTagSize()) {
+            return false;
+        }
+        long end = position + length - layout.getTagSize();
+
+        SegmentCipher.beginTag(mac, segment);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            position += readFully(in, buffer, position, segment);
+            buffer.flip();
+            mac.update(buffer);
+        }
+        byte[] expected = SegmentCipher.finishTag(mac, segment == segmentCount - 1);
+
+        ByteBuffer tag = ByteBuffer.allocate(layout.getTagSize());
+        readFully(in, tag, end, segment);
+        return MessageDigest.isEqual(expected, tag.array());
+    }
+
+    private static int readFully(FileChannel in, ByteBuffer buffer, long position, long segment) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended before segment " + segment + " was read");
+            }
+        }
+        return buffer.position();
+    }
+}
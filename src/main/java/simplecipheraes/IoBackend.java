@@ -0,0 +1,21 @@
+package simplecipheraes;
+
+/**
+ * How file contents get from the disk to the cipher and back.
+ */
+public enum IoBackend {
+    /**
+     * Buffered streams reading into and writing from heap arrays
+     */
+    STREAM,
+    /**
+     * A {@link java.nio.channels.FileChannel} reading into and writing from
+     * direct buffers, so file contents never get copied into the Java heap
+     */
+    CHANNEL,
+    /**
+     * Like {@link #CHANNEL}, but the input file is memory-mapped one segment
+     * at a time instead of being read into a buffer
+     */
+    MAPPED;
+}
@@ -0,0 +1,261 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import javax.crypto.Mac;
+
+/**
+ * Records how much of a job's output is safely on disk, so a job that was
+ * interrupted can pick up where it left off instead of starting over.
+ *
+ * Segments can finish in any order, so only the run of finished segments at
+ * the start of the output counts. Every so often the output is forced to disk
+ * and the length of that run is saved in the checkpoint file, along with a MAC
+ * over the last segment of the run. On restart the MAC is checked against the
+ * output, so a checkpoint is only trusted if it was saved with the same key
+ * and the output still holds what it says. The MAC is keyed with the file's
+ * derived key rather than the user's, so a checkpoint left next to an
+ * encrypted file doesn't make guessing the password any cheaper. The checkpoint is written under a
+ * temporary name and renamed into place, so a crash never leaves half of one.
+ */
+public class JobCheckpoint {
+    /**
+     * Output written between checkpoints; at most this much is redone after a crash
+     */
+    public static final long DEFAULT_INTERVAL_BYTES = 128L << 20;
+
+    /**
+     * Longest time between checkpoints, for disks too slow to reach the byte interval quickly
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 10_000;
+
+    private static final byte[] MAGIC = { 'S', 'C', 'A', 'E', 'S', 'C', 'K', 'P' };
+    private static final int VERSION = 1;
+    private static final byte[] MAC_LABEL = "SimpleCipherAES checkpoint".getBytes(StandardCharsets.US_ASCII);
+
+    private final File file;
+    private final File source;
+    private final long intervalBytes;
+    private final long intervalNanos;
+    private LongConsumer onResume;
+
+    //Set by start()
+    private FileChannel out;
+    private byte[] key;
+    private EncryptionDirection direction;
+    private SegmentLayout layout;
+    private long segmentCount;
+
+    //Segments [0, contiguous) are done; the rest that are done wait here for the gap to close
+    private final Set<Long> finishedAhead = new HashSet<>();
+    private long contiguous;
+    private long saved;
+    private long lastSaveNanos;
+
+    /**
+     * @param file
+     *          Where the checkpoint is saved
+     * @param source
+     *          File being encrypted or decrypted; a checkpoint is dropped if it changes
+     */
+    public JobCheckpoint(File file, File source) {
+        this(file, source, DEFAULT_INTERVAL_BYTES, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param intervalBytes
+     *          Output written between checkpoints
+     * @param intervalMillis
+     *          Longest time between checkpoints
+     */
+    public JobCheckpoint(File file, File source, long intervalBytes, long intervalMillis) {
+        this.file = file;
+        this.source = source;
+        this.intervalBytes = intervalBytes;
+        this.intervalNanos = intervalMillis * 1_000_000;
+    }
+
+    /**
+     * @param onResume
+     *          Called with the number of input bytes skipped when a job resumes
+     */
+    public void setOnResume(LongConsumer onResume) {
+        this.onResume = onResume;
+    }
+
+    /**
+     * Loads the checkpoint, if there's one that matches this job and its output.
+     *
+     * @param out
+     *          Output of the job; must be readable, so the checkpoint can be checked against it
+     * @param key
+     *          Key of the encrypted file, as derived from its header
+     *          (see {@link FileHeader#fileKey}); kept until the job is done
+     * @param direction
+     *          If the job encrypts or decrypts
+     * @param layout
+     *          Layout of the encrypted file
+     * @param segmentCount
+     *          Number of segments in the job
+     * @return
+     *          First segment still to be processed; 0 if the job starts over
+     */
+    public synchronized long start(FileChannel out, byte[] key, EncryptionDirection direction,
+                                   SegmentLayout layout, long segmentCount)
+            throws IOException, GeneralSecurityException {
+        this.out = out;
+        this.key = key;
+        this.direction = direction;
+        this.layout = layout;
+        this.segmentCount = segmentCount;
+        this.finishedAhead.clear();
+        this.contiguous = load();
+        if (contiguous == 0) {
+            //Stale, so it must not outlive a job that fails before saving its own
+            delete();
+        }
+        this.saved = contiguous;
+        this.lastSaveNanos = System.nanoTime();
+
+        if (contiguous > 0 && onResume != null) {
+            onResume.accept(layout.getInputOffset(direction, contiguous));
+        }
+        return contiguous;
+    }
+
+    private long load() throws IOException, GeneralSecurityException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            byte[] fields = new byte[fields(0).length];
+            checkpoint.get(fields);
+            byte[] mac = new byte[FileHeader.TAG_SIZE];
+            checkpoint.get(mac);
+
+            long segments = ByteBuffer.wrap(fields, fields.length - Long.BYTES, Long.BYTES).getLong();
+            //Anything else means another job, another version of the source, or a damaged checkpoint
+            if (segments <= 0 || segments >= segmentCount || checkpoint.hasRemaining()
+                    || !Arrays.equals(fields, fields(segments))
+                    || out.size() < layout.getOutputOffset(direction, segments)
+                    || !MessageDigest.isEqual(mac, computeMac(fields, segments))) {
+                return 0;
+            }
+            return segments;
+        } catch (BufferUnderflowException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Marks a segment as written, saving a checkpoint if enough has been written since the last one.
+     * Safe to call from any number of threads.
+     */
+    public synchronized void segmentDone(long segment) throws IOException, GeneralSecurityException {
+        finishedAhead.add(segment);
+        while (finishedAhead.remove(contiguous)) {
+            contiguous++;
+        }
+
+        //The last segment is never recorded; a job with all of its segments done is simply finished
+        long committed = Math.min(contiguous, segmentCount - 1);
+        long unsavedBytes = layout.getOutputOffset(direction, committed) - layout.getOutputOffset(direction, saved);
+        if (committed > saved && (unsavedBytes >= intervalBytes
+                || System.nanoTime() - lastSaveNanos >= intervalNanos)) {
+            save(committed);
+        }
+    }
+
+    private void save(long segments) throws IOException, GeneralSecurityException {
+        //The output has to be on disk before the checkpoint says it is
+        out.force(true);
+
+        byte[] fields = fields(segments);
+        ByteBuffer checkpoint = ByteBuffer.allocate(fields.length + FileHeader.TAG_SIZE);
+        checkpoint.put(fields);
+        checkpoint.put(computeMac(fields, segments));
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            checkpoint.flip();
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        saved = segments;
+        lastSaveNanos = System.nanoTime();
+    }
+
+    /**
+     * @return
+     *          Whether a checkpoint has been saved that a rerun could resume from
+     */
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Deletes the checkpoint, once its job has finished or been abandoned.
+     */
+    public void delete() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    /**
+     * Everything that must match for a checkpoint to belong to this job, followed by its segment count.
+     */
+    private byte[] fields(long segments) {
+        ByteBuffer fields = ByteBuffer.allocate(MAGIC.length + 4 + 1 + 8 + 8 + 4 + 4 + 4 + 8);
+        fields.put(MAGIC);
+        fields.putInt(VERSION);
+        fields.put((byte) direction.ordinal());
+        fields.putLong(source.length());
+        fields.putLong(source.lastModified());
+        fields.putInt(layout.getPlainSegmentSize());
+        fields.putInt(layout.getHeaderSize());
+        fields.putInt(layout.getTagSize());
+        fields.putLong(segments);
+        return fields.array();
+    }
+
+    /**
+     * MAC over the checkpoint's fields and the output of the last segment it records.
+     */
+    private byte[] computeMac(byte[] fields, long segments) throws IOException, GeneralSecurityException {
+        long tailStart = layout.getOutputOffset(direction, segments - 1);
+        ByteBuffer tail = ByteBuffer.allocate((int) (layout.getOutputOffset(direction, segments) - tailStart));
+        while (tail.hasRemaining()) {
+            if (out.read(tail, tailStart + tail.position()) < 0) {
+                break;
+            }
+        }
+        tail.flip();
+
+        Mac mac = FileHeader.newMac(key);
+        mac.update(MAC_LABEL);
+        mac.update(fields);
+        mac.update(tail);
+        return Arrays.copyOf(mac.doFinal(), FileHeader.TAG_SIZE);
+    }
+}
@@ -0,0 +1,90 @@
+package simplecipheraes;
+
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+/**
+ * One queued file in the GUI's job list: its name, a progress bar, the same
+ * text an {@link AppProgressText} shows, and a button to cancel it.
+ * Like the text, the bar is updated from any thread with at most one
+ * {@link Platform#runLater} waiting at a time.
+ */
+public class JobRow implements ProgressListener {
+    private final VBox row = new VBox(4);
+    private final ProgressBar bar = new ProgressBar(0);
+    private final AppProgressText status = new AppProgressText("Queued");
+    private final Button cancel = new Button("Cancel");
+
+    //Latest fraction not shown yet; null when there's nothing waiting for the FX thread
+    private final AtomicReference<Double> pendingFraction = new AtomicReference<>();
+
+    /**
+     * @param title
+     *          What the job does, e.g. "Encrypt report.pdf"
+     */
+    public JobRow(String title) {
+        Text name = new Text(title);
+        name.setFont(new Font(13));
+        status.getSceneElement().setFont(new Font(11));
+
+        bar.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(bar, Priority.ALWAYS);
+        HBox controls = new HBox(8, bar, cancel);
+        controls.setAlignment(Pos.CENTER_LEFT);
+
+        row.setPadding(new Insets(6));
+        row.setStyle("-fx-background-color: white; -fx-background-radius: 4;");
+        row.getChildren().addAll(name, controls, status.getSceneElement());
+    }
+
+    /**
+     * Makes the cancel button cancel the given job, and disables it once the job is over.
+     */
+    public void bind(CipherJob job) {
+        cancel.setOnAction(event -> job.cancel());
+        job.getResult().whenComplete((output, error) -> Platform.runLater(() -> {
+            cancel.setDisable(true);
+            if (error == null) {
+                bar.setProgress(1);
+            }
+        }));
+    }
+
+    @Override
+    public void updateProgress(Progress progress) {
+        status.updateProgress(progress);
+
+        double fraction = progress.getTotalBytes() == 0
+                ? 1
+                : (double) progress.getCompletedBytes() / progress.getTotalBytes();
+        if (pendingFraction.getAndSet(fraction) == null) {
+            Platform.runLater(() -> bar.setProgress(pendingFraction.getAndSet(null)));
+        }
+    }
+
+    @Override
+    public void updateProgress(String message) {
+        status.updateProgress(message);
+    }
+
+    /**
+     * @return
+     *          Whether the job is over, so the row can be cleared
+     */
+    public boolean isFinished() {
+        return cancel.isDisabled();
+    }
+
+    public VBox getSceneElement() {
+        return this.row;
+    }
+}
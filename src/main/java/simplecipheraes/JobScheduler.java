@@ -0,0 +1,81 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs file jobs on a fixed number of workers, taking them from a priority
+ * queue, so any number of files can be queued at once without starting a
+ * thread for each. Each job is tuned as it starts, so the cores are split
+ * between however many jobs are running.
+ */
+public class JobScheduler {
+    /**
+     * Files processed at the same time by default; more would mostly fight over the disk
+     */
+    public static final int DEFAULT_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final SimpleCipherAES cipher;
+    private final ThreadPoolExecutor executor;
+    private final Set<CipherJob> unfinished = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param cipher
+     *          Runs the jobs
+     * @param workers
+     *          Number of jobs run at the same time
+     */
+    public JobScheduler(SimpleCipherAES cipher, int workers) {
+        this.cipher = cipher;
+        //Workers stop when idle, so the scheduler never keeps the app alive
+        this.executor = new ThreadPoolExecutor(workers, workers, 1, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), runnable -> new Thread(runnable, "cipher-job"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a file to be encrypted or decrypted.
+     *
+     * @param listener
+     *          Receives this job's progress, starting once it leaves the queue
+     * @return
+     *          The job, to follow or cancel it
+     */
+    public CipherJob submit(File file, byte[] key, EncryptionDirection direction, CipherOptions options,
+                            CipherJob.Priority priority, ProgressListener listener) {
+        CipherJob job = new CipherJob(cipher, executor, file, key, direction, options, priority, listener);
+        unfinished.add(job);
+        job.getResult().whenComplete((output, error) -> unfinished.remove(job));
+
+        //The key is derived in the background while the job waits its turn
+        KeyDerivation.getShared().prefetch(file, key, direction);
+        CipherMetrics.getShared().jobQueued();
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * @return
+     *          Jobs that are queued or running
+     */
+    public List<CipherJob> getUnfinishedJobs() {
+        return new ArrayList<>(unfinished);
+    }
+
+    /**
+     * Cancels every job, and waits a while for the running ones to clean up.
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        for (CipherJob job : getUnfinishedJobs()) {
+            job.cancel();
+        }
+        executor.shutdown();
+        executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,430 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns the user's key into the key of each file.
+ *
+ * The user's key is stretched with PBKDF2-HMAC-SHA256 and a random salt, so
+ * every password guess against a stolen file costs as much as the iteration
+ * count says. The key of the file is then the HMAC of the stretched key and
+ * the file's own salt, which is cheap, so no two files share a key while a
+ * batch only pays for the stretching once: files encrypted in the same run
+ * with the same key share a KDF salt.
+ *
+ * Stretched keys are kept in a bounded, least recently used cache keyed by
+ * (key, salt, iterations). A key that's being derived by one thread is
+ * waited for by the others instead of being derived twice. Keys evicted
+ * from the cache, or dropped by {@link #clear()}, are overwritten with
+ * zeros; callers only ever get copies.
+ */
+public class KeyDerivation {
+    /**
+     * Id of PBKDF2-HMAC-SHA256 in file headers
+     */
+    public static final int PBKDF2_HMAC_SHA256 = 1;
+
+    public static final int DEFAULT_ITERATIONS = 600_000;
+
+    /**
+     * Files asking for more iterations than this are rejected, so a crafted
+     * header can't keep the app busy for hours
+     */
+    public static final int MAX_ITERATIONS = 100_000_000;
+
+    public static final int SALT_SIZE = 16;
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int STRETCHED_KEY_SIZE = 32;
+    private static final int FILE_KEY_SIZE = 16;
+    private static final byte[] FILE_KEY_LABEL = "SimpleCipherAES file key".getBytes(StandardCharsets.US_ASCII);
+    //Distinct KDF salts remembered for encryption, one per key and iteration count
+    private static final int MAX_SESSION_SALTS = 16;
+
+    private static final KeyDerivation SHARED = new KeyDerivation(DEFAULT_CACHE_SIZE);
+
+    private static final ExecutorService PREFETCH_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "key-derivation");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final SecureRandom random = new SecureRandom();
+    private final int cacheSize;
+    //Access-ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<DerivationKey, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<DerivationKey, byte[]> sessionSalts = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int iterations = DEFAULT_ITERATIONS;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public KeyDerivation(int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one key");
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return
+     *          The derivation used by all jobs of this app
+     */
+    public static KeyDerivation getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets the KDF salt new files encrypted with this key get, making one up
+     * the first time the key is used with the given iteration count.
+     */
+    public byte[] sessionSalt(byte[] key, int iterations) {
+        DerivationKey id = new DerivationKey(key, new byte[0], iterations);
+        synchronized (sessionSalts) {
+            byte[] salt = sessionSalts.get(id);
+            if (salt == null) {
+                salt = newSalt();
+                sessionSalts.put(id, salt);
+                if (sessionSalts.size() > MAX_SESSION_SALTS) {
+                    Iterator<DerivationKey> eldest = sessionSalts.keySet().iterator();
+                    DerivationKey evicted = eldest.next();
+                    eldest.remove();
+                    evicted.clear();
+                }
+            } else {
+                id.clear();
+            }
+            return salt.clone();
+        }
+    }
+
+    /**
+     * @return
+     *          A new random salt
+     */
+    public byte[] newSalt() {
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Derives the key of a single file. Only the first call for a given key,
+     * KDF salt and iteration count is slow.
+     *
+     * @param key
+     *          User-given key
+     * @param kdfSalt
+     *          Salt the key is stretched with
+     * @param iterations
+     *          PBKDF2 iterations
+     * @param fileSalt
+     *          Salt of this file alone
+     * @return
+     *          Key the file is encrypted and authenticated with
+     */
+    public byte[] fileKey(byte[] key, byte[] kdfSalt, int iterations, byte[] fileSalt)
+            throws GeneralSecurityException {
+        byte[] stretched = stretch(key, kdfSalt, iterations);
+        try {
+            Mac mac = Mac.getInstance(FileHeader.MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(stretched, FileHeader.MAC_ALGORITHM));
+            mac.update(FILE_KEY_LABEL);
+            byte[] fileKey = mac.doFinal(fileSalt);
+            byte[] truncated = Arrays.copyOf(fileKey, FILE_KEY_SIZE);
+            Arrays.fill(fileKey, (byte) 0);
+            return truncated;
+        } finally {
+            Arrays.fill(stretched, (byte) 0);
+        }
+    }
+
+    /**
+     * @return
+     *          A copy of the stretched key, which the caller should zero once done with it
+     */
+    private byte[] stretch(byte[] key, byte[] salt, int iterations) throws GeneralSecurityException {
+        while (true) {
+            Entry entry;
+            boolean derive = false;
+            synchronized (cache) {
+                DerivationKey id = new DerivationKey(key, salt, iterations);
+                entry = cache.get(id);
+                if (entry != null) {
+                    id.clear();
+                    hits.increment();
+                } else {
+                    misses.increment();
+                    entry = new Entry(id);
+                    cache.put(id, entry);
+                    derive = true;
+                    evictOverflow();
+                }
+            }
+
+            if (derive) {
+                derive(entry, key, salt, iterations);
+            }
+            try {
+                entry.done.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) ex.getCause();
+                }
+                throw ex;
+            }
+
+            synchronized (cache) {
+                if (entry.value != null) {
+                    return entry.value.clone();
+                }
+            }
+            //Evicted between being derived and being read, which takes a cache full of other keys
+        }
+    }
+
+    private void derive(Entry entry, byte[] key, byte[] salt, int iterations) {
+        try {
+            byte[] value = pbkdf2(key, salt, iterations);
+            synchronized (cache) {
+                if (entry.evicted) {
+                    Arrays.fill(value, (byte) 0);
+                } else {
+                    entry.value = value;
+                }
+            }
+            entry.done.complete(null);
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            synchronized (cache) {
+                if (cache.remove(entry.id, entry)) {
+                    entry.id.clear();
+                }
+            }
+            entry.done.completeExceptionally(ex);
+        }
+    }
+
+    private static byte[] pbkdf2(byte[] key, byte[] salt, int iterations) throws GeneralSecurityException {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new GeneralSecurityException("Unsupported number of key derivation iterations: " + iterations);
+        }
+        //PBKDF2 takes its password as characters, so the key is passed in hex
+        char[] password = new char[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            password[2 * i] = Character.forDigit((key[i] >> 4) & 0xF, 16);
+            password[2 * i + 1] = Character.forDigit(key[i] & 0xF, 16);
+        }
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, STRETCHED_KEY_SIZE * 8);
+        Arrays.fill(password, '\0');
+        try {
+            return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    //Called with the cache locked
+    private void evictOverflow() {
+        Iterator<Map.Entry<DerivationKey, Entry>> eldest = cache.entrySet().iterator();
+        while (cache.size() > cacheSize) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            evicted.clear();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Starts deriving the keys a batch of files will need on background
+     * threads, so the jobs find them in the cache. Files that aren't
+     * encrypted with a salted key are skipped, as are any errors; the job
+     * itself reports those.
+     *
+     * @param file
+     *          File about to be encrypted or decrypted
+     * @param key
+     *          User-given key
+     */
+    public void prefetch(File file, byte[] key, EncryptionDirection direction) {
+        PREFETCH_POOL.execute(() -> {
+            try {
+                if (direction == EncryptionDirection.ENCRYPT) {
+                    int iterations = getIterations();
+                    byte[] salt = sessionSalt(key, iterations);
+                    Arrays.fill(stretch(key, salt, iterations), (byte) 0);
+                    return;
+                }
+
+                FileHeader header;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    header = FileHeader.read(channel);
+                }
+                if (header != null && header.getKdfSalt() != null) {
+                    Arrays.fill(stretch(key, header.getKdfSalt(), header.getIterations()), (byte) 0);
+                }
+            } catch (Exception ex) {
+                //The job runs into the same problem and reports it
+            }
+        });
+    }
+
+    /**
+     * Drops every cached key, overwriting it first.
+     */
+    public void clear() {
+        synchronized (cache) {
+            for (Entry entry : cache.values()) {
+                entry.clear();
+            }
+            cache.clear();
+        }
+        synchronized (sessionSalts) {
+            for (DerivationKey id : sessionSalts.keySet()) {
+                id.clear();
+            }
+            sessionSalts.clear();
+        }
+    }
+
+    /**
+     * @return
+     *          The cached stretched key itself rather than a copy, or null if
+     *          it isn't cached or is still being derived; lets tests check
+     *          that keys leaving the cache are overwritten
+     */
+    byte[] cachedKey(byte[] key, byte[] salt, int iterations) {
+        DerivationKey id = new DerivationKey(key, salt, iterations);
+        try {
+            synchronized (cache) {
+                //Looked up without get(), which would make it the most recently used
+                for (Map.Entry<DerivationKey, Entry> cached : cache.entrySet()) {
+                    if (cached.getKey().equals(id)) {
+                        return cached.getValue().value;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            id.clear();
+        }
+    }
+
+    /**
+     * @return
+     *          PBKDF2 iterations new files are encrypted with
+     */
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    public void setIterations(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations must be between 1 and " + MAX_ITERATIONS);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return
+     *          Number of times a stretched key was found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return
+     *          Number of times a key had to be stretched
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return
+     *          Number of stretched keys dropped to keep the cache bounded
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Entry {
+        private final DerivationKey id;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        //Both guarded by the cache's lock
+        private byte[] value;
+        private boolean evicted;
+
+        Entry(DerivationKey id) {
+            this.id = id;
+        }
+
+        //Called with the cache locked, once the entry is out of it
+        void clear() {
+            evicted = true;
+            if (value != null) {
+                Arrays.fill(value, (byte) 0);
+                value = null;
+            }
+            id.clear();
+        }
+    }
+
+    private static class DerivationKey {
+        private final byte[] key;
+        private final byte[] salt;
+        private final int iterations;
+        private final int hashCode;
+
+        DerivationKey(byte[] key, byte[] salt, int iterations) {
+            this.key = key.clone();
+            this.salt = salt.clone();
+            this.iterations = iterations;
+            this.hashCode = 31 * (31 * Arrays.hashCode(key) + Arrays.hashCode(salt)) + iterations;
+        }
+
+        //Only once the key is out of its map, since it no longer equals itself afterwards
+        void clear() {
+            Arrays.fill(key, (byte) 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DerivationKey)) {
+                return false;
+            }
+            DerivationKey that = (DerivationKey) other;
+            return this.iterations == that.iterations
+                    && MessageDigest.isEqual(this.key, that.key)
+                    && Arrays.equals(this.salt, that.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
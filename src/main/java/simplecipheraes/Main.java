@@ -1,9 +1,16 @@
 package simplecipheraes;
 
-import javafx.application.Application;
-
 public class Main {
+    /**
+     * Runs the command-line interface if any arguments are given, otherwise the GUI.
+     * The GUI is only referenced in its own branch so that JavaFX isn't loaded
+     * for headless runs.
+     */
     public static void main(String[] args) {
-        Application.launch(SimpleCipherGUI.class, args);
+        if (args.length > 0 && !args[0].equals("gui")) {
+            System.exit(new CipherCli().run(args));
+        }
+
+        SimpleCipherGUI.main(args);
     }
 }
@@ -0,0 +1,339 @@
+package simplecipheraes;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Encrypts or decrypts a file using multiple threads.
+ * Since every segment of the {@link SegmentLayout} is encrypted independently
+ * and (other than the last one) has a fixed size, each segment can be read,
+ * processed and written to its final position in the output file without
+ * waiting on any other segment. The output has the same format as that of the
+ * {@link StreamingCipherEngine} and the {@link PipelinedCipherEngine}, no matter
+ * how many threads are used, so every engine can decrypt what any other one
+ * encrypted. Since every file gets its own salts and every segment its own
+ * random IV, no two runs produce the same bytes.
+ *
+ * This is also the engine for the NIO backends: with {@link IoBackend#CHANNEL}
+ * the buffers are direct, and with {@link IoBackend#MAPPED} each segment of the
+ * input is memory-mapped instead of read, so the file's contents never pass
+ * through a heap array. The output is always written through a single
+ * {@link DurableOutput} that stays open for the whole job, and forced to
+ * disk every so often as segments land.
+ *
+ * When encrypting, the file is written with the given layout. When decrypting,
+ * the layout is read from the file's {@link FileHeader}, and every segment's
+ * tag is checked by the worker that decrypts it.
+ *
+ * Since segments land at fixed positions, an interrupted job can be resumed
+ * from a {@link JobCheckpoint} by skipping the segments it says are done.
+ *
+ * If given an {@link AdaptiveThrottle}, workers ask it before each segment,
+ * so fewer of them may be working at once than there are threads.
+ */
+public class ParallelCipherEngine {
+    private final SegmentLayout layout;
+    private final int threads;
+    private final int bufferSize;
+    private final IoBackend ioBackend;
+    private final AdaptiveThrottle throttle;
+    private final long syncIntervalBytes;
+    private final long syncIntervalMillis;
+
+    public ParallelCipherEngine(SegmentLayout layout, int threads, int bufferSize, IoBackend ioBackend) {
+        this(layout, threads, bufferSize, ioBackend, null);
+    }
+
+    public ParallelCipherEngine(SegmentLayout layout, int threads, int bufferSize, IoBackend ioBackend,
+                                AdaptiveThrottle throttle) {
+        this(layout, threads, bufferSize, ioBackend, throttle,
+                DurableOutput.DEFAULT_SYNC_INTERVAL_BYTES, DurableOutput.DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param throttle
+     *          Limits how many threads work at once while the job runs; may be null
+     * @param syncIntervalBytes
+     *          Output written between forces to disk; 0 to not force by size
+     * @param syncIntervalMillis
+     *          Longest time between forces to disk; 0 to not force by time
+     */
+    public ParallelCipherEngine(SegmentLayout layout, int threads, int bufferSize, IoBackend ioBackend,
+                                AdaptiveThrottle throttle, long syncIntervalBytes, long syncIntervalMillis) {
+        this.layout = layout;
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        this.ioBackend = ioBackend;
+        this.throttle = throttle;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Encrypts or decrypts the input file into the output file, replacing
+     * the output file if it exists.
+     *
+     * @param input
+     *          File to be encrypted or decrypted
+     * @param output
+     *          File to save the result to
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the input will be encrypted or decrypted
+     * @param onSegmentDone
+     *          Called with the total number of input bytes processed so far
+     *          each time a segment is completed; may be null
+     * @return
+     *          Total number of input bytes processed
+     */
+    public long process(File input, File output, byte[] key,
+                        EncryptionDirection direction, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        return process(input, output, key, direction, onSegmentDone, null);
+    }
+
+    /**
+     * Encrypts or decrypts the input file into the output file, resuming from
+     * the given checkpoint if it matches, and saving new checkpoints as the job goes.
+     * The output file is only replaced if the job can't be resumed.
+     *
+     * @param checkpoint
+     *          Where the job's progress is recorded; may be null
+     * @see #process(File, File, byte[], EncryptionDirection, LongConsumer)
+     */
+    public long process(File input, File output, byte[] key, EncryptionDirection direction,
+                        LongConsumer onSegmentDone, JobCheckpoint checkpoint)
+            throws IOException, GeneralSecurityException {
+        //A resumed job keeps what's already in the output, and reads it back to check it
+        StandardOpenOption[] outputOptions = checkpoint == null
+                ? new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING }
+                : new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ };
+
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output.toPath(), outputOptions);
+             DurableOutput durable = new DurableOutput(out, syncIntervalBytes, syncIntervalMillis)) {
+            FileHeader header;
+            SegmentLayout fileLayout;
+            if (direction == EncryptionDirection.ENCRYPT) {
+                //A resumed job must keep the salts, and so the key, its output was started with
+                FileHeader existing = checkpoint != null && layout.isAuthenticated()
+                        ? FileHeader.readReusable(out, key, layout)
+                        : null;
+                header = existing != null ? existing : FileHeader.forLayout(key, layout, Compression.NONE);
+                fileLayout = layout;
+            } else {
+                header = FileHeader.read(in);
+                fileLayout = SegmentLayout.of(header);
+                if (header != null) {
+                    header.verifyKey(key);
+                    if (header.getCompression() != Compression.NONE) {
+                        throw new IOException("Compressed files can only be decrypted by the StreamingCipherEngine");
+                    }
+                }
+            }
+
+            long inputSize = in.size();
+            long segmentCount = fileLayout.getSegmentCount(direction, inputSize);
+            long firstSegment = checkpoint == null
+                    ? 0
+                    : checkpoint.start(out, header == null ? key : header.fileKey(key), direction,
+                            fileLayout, segmentCount);
+            int workerCount = (int) Math.max(1, Math.min(threads, segmentCount - firstSegment));
+
+            if (header != null && direction == EncryptionDirection.ENCRYPT && firstSegment == 0) {
+                durable.write(ByteBuffer.wrap(header.toBytes()), 0);
+            }
+
+            //Workers claim the next unprocessed segment until there are none left,
+            //so each worker only needs one cipher and one pair of buffers
+            AtomicLong nextSegment = new AtomicLong(firstSegment);
+            AtomicLong bytesDone = new AtomicLong(fileLayout.getInputOffset(direction, firstSegment));
+            AtomicLong outputSize = new AtomicLong(fileLayout.getOutputOffset(direction, firstSegment));
+
+            //Shared with every other job, so the contexts this job's ciphers leave behind are reused
+            ExecutorService pool = SegmentWorkers.getShared();
+            List<Future<Void>> workers = new ArrayList<>();
+            try {
+                for (int i = 0; i < workerCount; i++) {
+                    workers.add(pool.submit((Callable<Void>) () -> {
+                        SegmentCipher cipher = new SegmentCipher(key, direction, header);
+                        //Mapped segments are fed to the cipher directly, so they don't need an input buffer
+                        ByteBuffer inBuffer = ioBackend == IoBackend.MAPPED
+                                ? null
+                                : allocate(bufferSize);
+                        ByteBuffer outBuffer = allocate(SegmentCipher.maxOutputSize(bufferSize));
+                        //Time this worker's current segment spent in each stage, for the throttle
+                        long[] stageNanos = new long[CipherMetrics.Stage.values().length];
+
+                        while (true) {
+                            if (throttle != null) {
+                                throttle.acquire();
+                            }
+                            long segment;
+                            long segmentEnd;
+                            int segmentLength = 0;
+                            Arrays.fill(stageNanos, 0);
+                            try {
+                                segment = nextSegment.getAndIncrement();
+                                if (segment >= segmentCount) {
+                                    break;
+                                }
+                                segmentEnd = processSegment(fileLayout, segment, segmentCount, inputSize,
+                                        in, durable, cipher, inBuffer, outBuffer, direction, stageNanos);
+                                segmentLength = fileLayout.getInputLength(direction, inputSize, segment);
+                            } finally {
+                                //Even a failed worker has to let the others go on, or they'd wait forever
+                                if (throttle != null) {
+                                    throttle.release(segmentLength, stageNanos);
+                                }
+                            }
+                            outputSize.accumulateAndGet(segmentEnd, Math::max);
+                            if (checkpoint != null) {
+                                checkpoint.segmentDone(segment);
+                            }
+
+                            long done = bytesDone.addAndGet(segmentLength);
+                            if (onSegmentDone != null) {
+                                onSegmentDone.accept(done);
+                            }
+                        }
+
+                        cipher.release();
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing " + input, ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                SegmentWorkers.cancel(workers);
+            }
+
+            //A resumed job's output may have held more than the job writes
+            out.truncate(outputSize.get());
+
+            return bytesDone.get();
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        CipherMetrics.getShared().recordAllocation(capacity);
+        return ioBackend == IoBackend.STREAM
+                ? ByteBuffer.allocate(capacity)
+                : ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Reads, encrypts/decrypts and writes a single segment.
+     *
+     * @param stageNanos
+     *          Gets the time spent in each stage added to it
+     * @return
+     *          Position in the output file just after the end of the segment
+     */
+    private long processSegment(SegmentLayout fileLayout, long segment, long segmentCount, long inputSize,
+                                FileChannel in, DurableOutput out, SegmentCipher cipher,
+                                ByteBuffer inBuffer, ByteBuffer outBuffer, EncryptionDirection direction,
+                                long[] stageNanos)
+            throws IOException, GeneralSecurityException {
+        cipher.seek(segment);
+        long inPosition = fileLayout.getInputOffset(direction, segment);
+        long inEnd = inPosition + fileLayout.getInputLength(direction, inputSize, segment);
+        long outPosition = fileLayout.getOutputOffset(direction, segment);
+
+        if (ioBackend == IoBackend.MAPPED) {
+            //Mapping is the read stage; the page faults it defers are counted as cipher time
+            long start = System.nanoTime();
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, inPosition, inEnd - inPosition);
+            record(stageNanos, CipherMetrics.Stage.READ, start, inEnd - inPosition);
+            //The cipher consumes all of its input, so only hand it as much as the output buffer can hold
+            while (mapped.position() < mapped.capacity()) {
+                start = System.nanoTime();
+                int chunkStart = mapped.position();
+                mapped.limit(Math.min(mapped.capacity(), mapped.position() + bufferSize));
+                outBuffer.clear();
+                cipher.update(mapped, outBuffer);
+                record(stageNanos, CipherMetrics.Stage.CIPHER, start, mapped.position() - chunkStart);
+                outPosition = write(out, outBuffer, outPosition, stageNanos);
+            }
+            inPosition = inEnd;
+        }
+
+        while (inPosition < inEnd) {
+            long start = System.nanoTime();
+            inBuffer.clear();
+            inBuffer.limit((int) Math.min(inBuffer.capacity(), inEnd - inPosition));
+            while (inBuffer.hasRemaining()) {
+                int bytesRead = in.read(inBuffer, inPosition + inBuffer.position());
+                if (bytesRead < 0) {
+                    throw new EOFException("File ended before segment " + segment + " was read");
+                }
+            }
+            inPosition += inBuffer.position();
+            inBuffer.flip();
+            record(stageNanos, CipherMetrics.Stage.READ, start, inBuffer.remaining());
+
+            start = System.nanoTime();
+            int chunkSize = inBuffer.remaining();
+            outBuffer.clear();
+            cipher.update(inBuffer, outBuffer);
+            record(stageNanos, CipherMetrics.Stage.CIPHER, start, chunkSize);
+            outPosition = write(out, outBuffer, outPosition, stageNanos);
+        }
+
+        //Resets the cipher, so it's ready for the worker's next segment
+        long start = System.nanoTime();
+        outBuffer.clear();
+        cipher.finish(outBuffer, segment == segmentCount - 1);
+        record(stageNanos, CipherMetrics.Stage.CIPHER, start, 0);
+        return write(out, outBuffer, outPosition, stageNanos);
+    }
+
+    private static long write(DurableOutput out, ByteBuffer buffer, long position, long[] stageNanos)
+            throws IOException {
+        long start = System.nanoTime();
+        buffer.flip();
+        int chunkSize = buffer.remaining();
+        position = out.write(buffer, position);
+        record(stageNanos, CipherMetrics.Stage.WRITE, start, chunkSize);
+        return position;
+    }
+
+    /**
+     * Records a chunk in the app's {@link CipherMetrics}, and in the job's own stage timings.
+     */
+    private static void record(long[] stageNanos, CipherMetrics.Stage stage, long startNanos, long chunkBytes) {
+        stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+        CipherMetrics.getShared().record(stage, startNanos, chunkBytes);
+    }
+}
@@ -0,0 +1,361 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Encrypts or decrypts a file in three overlapping stages: one thread reads,
+ * the calling thread runs the cipher, and one thread writes.
+ * The stages hand each other chunks through bounded queues, and every chunk is
+ * recycled once it has been consumed, so while chunk N is being encrypted,
+ * chunk N+1 can already be read and chunk N-1 written. A job then takes about
+ * as long as its slowest stage instead of the sum of all of them, and only
+ * ever uses {@code 2 * depth} buffers.
+ *
+ * When encrypting, the file is written with the given layout. When decrypting,
+ * the layout is read from the file's {@link FileHeader}. An interrupted job can
+ * be resumed from a {@link JobCheckpoint}, starting at the first segment it doesn't record.
+ *
+ * The output goes through a {@link DurableOutput}, which forces it to disk
+ * every so often while the writer runs.
+ */
+public class PipelinedCipherEngine {
+    /**
+     * Tells the next stage that there are no more chunks; never recycled
+     */
+    private static final Chunk END = new Chunk(ByteBuffer.allocate(0));
+
+    private static final long STAGE_POLL_MILLIS = 50;
+
+    private final SegmentLayout layout;
+    private final int depth;
+    private final int bufferSize;
+    private final IoBackend ioBackend;
+    private final long syncIntervalBytes;
+    private final long syncIntervalMillis;
+
+    public PipelinedCipherEngine(SegmentLayout layout, int depth, int bufferSize, IoBackend ioBackend) {
+        this(layout, depth, bufferSize, ioBackend,
+                DurableOutput.DEFAULT_SYNC_INTERVAL_BYTES, DurableOutput.DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param syncIntervalBytes
+     *          Output written between forces to disk; 0 to not force by size
+     * @param syncIntervalMillis
+     *          Longest time between forces to disk; 0 to not force by time
+     */
+    public PipelinedCipherEngine(SegmentLayout layout, int depth, int bufferSize, IoBackend ioBackend,
+                                 long syncIntervalBytes, long syncIntervalMillis) {
+        if (depth < 2) {
+            throw new IllegalArgumentException("A pipeline needs at least two buffers per stage");
+        }
+        this.layout = layout;
+        this.depth = depth;
+        this.bufferSize = bufferSize;
+        this.ioBackend = ioBackend;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Encrypts or decrypts the input file into the output file, replacing
+     * the output file if it exists.
+     *
+     * @param input
+     *          File to be encrypted or decrypted
+     * @param output
+     *          File to save the result to
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the input will be encrypted or decrypted
+     * @param onSegmentDone
+     *          Called with the total number of input bytes processed so far
+     *          each time a segment is completed; may be null
+     * @return
+     *          Total number of input bytes processed
+     */
+    public long process(File input, File output, byte[] key,
+                        EncryptionDirection direction, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        return process(input, output, key, direction, onSegmentDone, null);
+    }
+
+    /**
+     * Encrypts or decrypts the input file into the output file, resuming from
+     * the given checkpoint if it matches, and saving new checkpoints as the job goes.
+     * The output file is only replaced if the job can't be resumed.
+     *
+     * @param checkpoint
+     *          Where the job's progress is recorded; may be null
+     * @see #process(File, File, byte[], EncryptionDirection, LongConsumer)
+     */
+    public long process(File input, File output, byte[] key, EncryptionDirection direction,
+                        LongConsumer onSegmentDone, JobCheckpoint checkpoint)
+            throws IOException, GeneralSecurityException {
+        //A resumed job keeps what's already in the output, and reads it back to check it
+        StandardOpenOption[] outputOptions = checkpoint == null
+                ? new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING }
+                : new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ };
+
+        BlockingQueue<Chunk> freeInput = new ArrayBlockingQueue<>(depth);
+        BlockingQueue<Chunk> freeOutput = new ArrayBlockingQueue<>(depth);
+        //One extra slot in each so END always fits
+        BlockingQueue<Chunk> readChunks = new ArrayBlockingQueue<>(depth + 1);
+        BlockingQueue<Chunk> cipheredChunks = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            freeInput.add(new Chunk(allocate(bufferSize)));
+            freeOutput.add(new Chunk(allocate(SegmentCipher.maxOutputSize(bufferSize))));
+        }
+
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output.toPath(), outputOptions);
+             DurableOutput durable = new DurableOutput(out, syncIntervalBytes, syncIntervalMillis)) {
+            FileHeader header;
+            SegmentLayout fileLayout;
+            if (direction == EncryptionDirection.ENCRYPT) {
+                //A resumed job must keep the salts, and so the key, its output was started with
+                FileHeader existing = checkpoint != null && layout.isAuthenticated()
+                        ? FileHeader.readReusable(out, key, layout)
+                        : null;
+                header = existing != null ? existing : FileHeader.forLayout(key, layout, Compression.NONE);
+                fileLayout = layout;
+            } else {
+                header = FileHeader.read(in);
+                fileLayout = SegmentLayout.of(header);
+                if (header != null) {
+                    header.verifyKey(key);
+                    if (header.getCompression() != Compression.NONE) {
+                        throw new IOException("Compressed files can only be decrypted by the StreamingCipherEngine");
+                    }
+                }
+            }
+            long inputSize = in.size();
+            long segmentCount = fileLayout.getSegmentCount(direction, inputSize);
+            long firstSegment = checkpoint == null
+                    ? 0
+                    : checkpoint.start(out, header == null ? key : header.fileKey(key), direction,
+                            fileLayout, segmentCount);
+
+            if (header != null && direction == EncryptionDirection.ENCRYPT && firstSegment == 0) {
+                durable.write(ByteBuffer.wrap(header.toBytes()), 0);
+            }
+            in.position(fileLayout.getInputOffset(direction, firstSegment));
+            long outputStart = fileLayout.getOutputOffset(direction, firstSegment);
+
+            SegmentCipher cipher = new SegmentCipher(key, direction, header);
+            cipher.seek(firstSegment);
+            int segmentSize = fileLayout.getInputSegmentSize(direction);
+
+            Future<?> reader = stages.submit(() -> {
+                read(in, segmentSize, freeInput, readChunks);
+                return null;
+            });
+            Future<Long> writer = stages.submit(() ->
+                    write(durable, outputStart, cipheredChunks, freeOutput, checkpoint));
+
+            long totalBytesRead = fileLayout.getInputOffset(direction, firstSegment);
+            long segment = firstSegment;
+            //A segment is only finished once more input shows up, since the last one is finished differently
+            boolean finishPending = false;
+            Chunk inChunk;
+            while ((inChunk = take(readChunks, reader, writer)) != END) {
+                Chunk outChunk = take(freeOutput, reader, writer);
+                long start = System.nanoTime();
+                outChunk.buffer.clear();
+                outChunk.finishedSegment = -1;
+                if (finishPending) {
+                    cipher.finish(outChunk.buffer, false);
+                    outChunk.finishedSegment = segment++;
+                    finishPending = false;
+                }
+
+                int chunkSize = inChunk.buffer.remaining();
+                totalBytesRead += chunkSize;
+                cipher.update(inChunk.buffer, outChunk.buffer);
+                finishPending = inChunk.endOfSegment;
+                CipherMetrics.getShared().record(CipherMetrics.Stage.CIPHER, start, chunkSize);
+
+                outChunk.buffer.flip();
+                cipheredChunks.put(outChunk);
+                freeInput.put(inChunk);
+
+                if (inChunk.endOfSegment && onSegmentDone != null) {
+                    onSegmentDone.accept(totalBytesRead);
+                }
+            }
+
+            //Finish the last segment
+            boolean partialSegment = cipher.isSegmentOpen() && !finishPending;
+            Chunk outChunk = take(freeOutput, reader, writer);
+            outChunk.buffer.clear();
+            cipher.finish(outChunk.buffer, true);
+            outChunk.finishedSegment = segment;
+            outChunk.buffer.flip();
+            cipheredChunks.put(outChunk);
+
+            if (partialSegment && onSegmentDone != null) {
+                onSegmentDone.accept(totalBytesRead);
+            }
+            cipheredChunks.put(END);
+
+            reader.get();
+            //A resumed job's output may have held more than the job writes
+            out.truncate(writer.get());
+
+            cipher.release();
+            return totalBytesRead;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + input, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            //Unblocks the reader and writer if the cipher stage failed
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Reader stage: fills free chunks from the file, never letting a chunk
+     * cross a segment boundary.
+     */
+    private static void read(FileChannel in, int segmentSize, BlockingQueue<Chunk> freeChunks,
+                             BlockingQueue<Chunk> readChunks) throws IOException, InterruptedException {
+        long segmentRemaining = segmentSize;
+
+        while (true) {
+            Chunk chunk = take(freeChunks, CipherMetrics.Stage.READ);
+            long start = System.nanoTime();
+            ByteBuffer buffer = chunk.buffer;
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), segmentRemaining));
+
+            int bytesRead = 0;
+            while (buffer.hasRemaining() && bytesRead >= 0) {
+                bytesRead = in.read(buffer);
+            }
+            buffer.flip();
+            CipherMetrics.getShared().record(CipherMetrics.Stage.READ, start, buffer.remaining());
+
+            if (!buffer.hasRemaining()) {
+                readChunks.put(END);
+                return;
+            }
+
+            segmentRemaining -= buffer.remaining();
+            chunk.endOfSegment = segmentRemaining == 0;
+            if (chunk.endOfSegment) {
+                segmentRemaining = segmentSize;
+            }
+            readChunks.put(chunk);
+        }
+    }
+
+    /**
+     * Writer stage: writes ciphered chunks in order, then hands them back.
+     * A segment is only done once the chunk holding its end has been written.
+     *
+     * @return
+     *          Position just after the last chunk written
+     */
+    private static long write(DurableOutput out, long position, BlockingQueue<Chunk> cipheredChunks,
+                              BlockingQueue<Chunk> freeChunks, JobCheckpoint checkpoint)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        Chunk chunk;
+        while ((chunk = take(cipheredChunks, CipherMetrics.Stage.WRITE)) != END) {
+            long start = System.nanoTime();
+            int chunkSize = chunk.buffer.remaining();
+            position = out.write(chunk.buffer, position);
+            CipherMetrics.getShared().record(CipherMetrics.Stage.WRITE, start, chunkSize);
+            if (checkpoint != null && chunk.finishedSegment >= 0) {
+                checkpoint.segmentDone(chunk.finishedSegment);
+            }
+            freeChunks.put(chunk);
+        }
+        return position;
+    }
+
+    /**
+     * Waits for the next chunk, giving up if one of the other stages has died
+     * so the cipher stage never waits on a chunk that will never come.
+     */
+    private static Chunk take(BlockingQueue<Chunk> queue, Future<?>... otherStages)
+            throws InterruptedException, ExecutionException {
+        Chunk chunk = queue.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        long start = System.nanoTime();
+        while (true) {
+            chunk = queue.poll(STAGE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                CipherMetrics.getShared().recordWait(CipherMetrics.Stage.CIPHER, start);
+                return chunk;
+            }
+            for (Future<?> stage : otherStages) {
+                if (stage.isDone()) {
+                    //Throws the stage's exception if it failed
+                    stage.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next chunk on the reader or writer stage, counting the wait if there was one.
+     */
+    private static Chunk take(BlockingQueue<Chunk> queue, CipherMetrics.Stage waiter) throws InterruptedException {
+        Chunk chunk = queue.poll();
+        if (chunk == null) {
+            long start = System.nanoTime();
+            chunk = queue.take();
+            CipherMetrics.getShared().recordWait(waiter, start);
+        }
+        return chunk;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        CipherMetrics.getShared().recordAllocation(capacity);
+        return ioBackend == IoBackend.STREAM
+                ? ByteBuffer.allocate(capacity)
+                : ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * A reusable buffer passed between the stages.
+     */
+    private static class Chunk {
+        final ByteBuffer buffer;
+        boolean endOfSegment;
+        //Segment whose end is in this ciphered chunk, or -1
+        long finishedSegment = -1;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package simplecipheraes;
+
+/**
+ * Snapshot of how far along a job is, as sampled by a {@link ProgressTracker}.
+ */
+public final class Progress {
+    private final long completedBytes;
+    private final long totalBytes;
+    private final double bytesPerSecond;
+    private final long elapsedMillis;
+
+    public Progress(long completedBytes, long totalBytes, double bytesPerSecond, long elapsedMillis) {
+        this.completedBytes = completedBytes;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return
+     *          Number of bytes processed so far
+     */
+    public long getCompletedBytes() {
+        return this.completedBytes;
+    }
+
+    /**
+     * @return
+     *          Size of the file, in bytes
+     */
+    public long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * @return
+     *          Smoothed recent throughput
+     */
+    public double getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+
+    /**
+     * @return
+     *          Fraction of the file processed so far, from 0 to 1
+     */
+    public double getFraction() {
+        return totalBytes <= 0 ? 1 : Math.min(1, (double) completedBytes / totalBytes);
+    }
+
+    /**
+     * @return
+     *          Estimated number of seconds until the job is done,
+     *          or -1 if nothing has been processed yet to estimate from
+     */
+    public long getEtaSeconds() {
+        if (completedBytes >= totalBytes) {
+            return 0;
+        }
+        if (bytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil((totalBytes - completedBytes) / bytesPerSecond);
+    }
+}
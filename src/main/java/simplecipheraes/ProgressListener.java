@@ -0,0 +1,25 @@
+package simplecipheraes;
+
+/**
+ * Receives progress updates from an encryption/decryption job.
+ * Implementations must not depend on being called from any particular thread.
+ * Jobs send their byte counts through a {@link ProgressTracker}, so numeric
+ * updates arrive at a steady rate no matter how fast the job is.
+ */
+public interface ProgressListener {
+    /**
+     * Called as the job works its way through the file.
+     *
+     * @param progress
+     *          How far along the job is, and how fast it's going
+     */
+    void updateProgress(Progress progress);
+
+    /**
+     * Called when there is something to say other than how far along the job is.
+     *
+     * @param message
+     *          Text describing what's happening
+     */
+    void updateProgress(String message);
+}
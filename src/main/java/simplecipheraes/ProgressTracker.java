@@ -0,0 +1,124 @@
+package simplecipheraes;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Decouples a job's progress from its {@link ProgressListener}.
+ * Engines report progress as often as they like by passing this tracker
+ * their running byte count, which only costs an atomic update. A shared
+ * background thread samples the count on a fixed tick and sends the listener
+ * at most one {@link Progress} per tick, with the throughput and ETA worked out,
+ * so slow listeners (a console, a UI) never hold up the engine no matter how
+ * small its chunks are.
+ *
+ * Close the tracker when the job ends; that sends the final update.
+ */
+public class ProgressTracker implements LongConsumer, AutoCloseable {
+    /**
+     * How much each tick's throughput counts towards the displayed rate;
+     * lower is smoother but slower to react
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "progress-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ProgressListener listener;
+    private final long totalBytes;
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private final ScheduledFuture<?> tick;
+
+    //Only touched while holding the lock, by the ticker or by close()
+    private long lastBytes;
+    private long lastNanos = startNanos;
+    private double bytesPerSecond;
+    private long resumedBytes;
+    private boolean closed;
+
+    /**
+     * @param listener
+     *          Receives the sampled progress
+     * @param totalBytes
+     *          Size of the file, in bytes
+     * @param intervalMillis
+     *          Time between updates sent to the listener
+     */
+    public ProgressTracker(ProgressListener listener, long totalBytes, long intervalMillis) {
+        this.listener = listener;
+        this.totalBytes = totalBytes;
+        this.tick = TICKER.scheduleAtFixedRate(() -> publish(false),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the total number of bytes processed so far. Safe to call from
+     * any number of threads; counts reported out of order are ignored.
+     */
+    @Override
+    public void accept(long totalBytesDone) {
+        completedBytes.accumulateAndGet(totalBytesDone, Math::max);
+    }
+
+    /**
+     * Records that the job picked up where an earlier run left off. The bytes
+     * skipped count as done, but not towards the rate.
+     */
+    public synchronized void resumeFrom(long bytesDone) {
+        completedBytes.accumulateAndGet(bytesDone, Math::max);
+        lastBytes = Math.max(lastBytes, bytesDone);
+        resumedBytes = bytesDone;
+    }
+
+    /**
+     * Stops sampling and sends the listener the final progress of the job.
+     */
+    @Override
+    public void close() {
+        tick.cancel(false);
+        publish(true);
+    }
+
+    private synchronized void publish(boolean last) {
+        if (closed) {
+            return;
+        }
+        closed = last;
+
+        long now = System.nanoTime();
+        long bytes = completedBytes.get();
+        //Nothing new to say
+        if (bytes == lastBytes && !last) {
+            return;
+        }
+
+        if (now > lastNanos) {
+            double tickRate = (bytes - lastBytes) * 1e9 / (now - lastNanos);
+            bytesPerSecond = bytesPerSecond == 0
+                    ? tickRate
+                    : RATE_SMOOTHING * tickRate + (1 - RATE_SMOOTHING) * bytesPerSecond;
+        }
+        if (last && now > startNanos) {
+            //The overall average is more useful once the job is done
+            bytesPerSecond = (bytes - resumedBytes) * 1e9 / (now - startNanos);
+        }
+        lastBytes = bytes;
+        lastNanos = now;
+
+        try {
+            listener.updateProgress(new Progress(bytes, totalBytes, bytesPerSecond,
+                    TimeUnit.NANOSECONDS.toMillis(now - startNanos)));
+        } catch (RuntimeException ex) {
+            //A broken listener must not stop the ticker for every other job
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Read-only view of the decrypted contents of an encrypted file.
+ * Every segment has a fixed size, so any byte of the plaintext maps to a known
+ * block of the encrypted file, and no mode needs more than one other block to
+ * decrypt it: ECB blocks are encrypted independently of each other, a CTR
+ * block only needs its segment's IV, and a CBC block the block before it.
+ * Reading a range only decrypts the blocks that cover it, e.g. reading 4 KB
+ * from the middle of a 50 GB file only decrypts 4 KB.
+ *
+ * For files with a {@link FileHeader}, the tag of every segment a read touches
+ * is checked the first time that segment is read, so a read never returns
+ * tampered data. A tag covers a whole segment, so the first read from a
+ * segment reads and MACs all of it (1 MiB with the
+ * {@link FileHeader#DEFAULT_SEGMENT_SIZE default segment size}), however few
+ * bytes it asks for; later reads from the same segment only decrypt their
+ * blocks. Opening the channel checks the last segment the same way, since the
+ * size of the plaintext is only trusted once it has been. So the 4 KB read
+ * above reads up to 2 MiB from disk, but never more, however large the file is.
+ *
+ * Not thread-safe; open one channel per reader.
+ */
+public class SeekableDecryptingChannel implements SeekableByteChannel {
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final FileChannel encrypted;
+    private final SegmentLayout layout;
+    private final CipherMode mode;
+    //Null for files without a header
+    private final Mac mac;
+    private final BitSet verifiedSegments = new BitSet();
+    private final CipherContextCache.CipherContext context;
+    private final Cipher cipher;
+    //False while a decryption is in progress, so a cipher that failed midway isn't reused
+    private boolean cipherReusable = true;
+    private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private final long size;
+    private long position;
+
+    public SeekableDecryptingChannel(File encryptedFile, byte[] key) throws IOException, GeneralSecurityException {
+        this.encrypted = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ);
+
+        try {
+            FileHeader header = FileHeader.read(encrypted);
+            if (header != null) {
+                header.verifyKey(key);
+                if (header.getCompression() != Compression.NONE) {
+                    throw new IOException("Compressed files can't be read at random positions");
+                }
+            }
+            this.layout = SegmentLayout.of(header);
+            this.mode = layout.getMode();
+            byte[] fileKey = header == null ? key.clone() : header.fileKey(key);
+            try {
+                this.mac = header == null ? null : FileHeader.newMac(fileKey);
+
+                //Blocks in the middle of a segment have no padding, so they are decrypted without it
+                this.context = CipherContextCache.getShared().acquire(mode.getBlockTransformation(),
+                        layout.getProvider(), fileKey, mode.getIvSize(), EncryptionDirection.DECRYPT);
+            } finally {
+                Arrays.fill(fileKey, (byte) 0);
+            }
+            this.cipher = context.getCipher();
+            this.size = readPlainSize();
+        } catch (IOException | GeneralSecurityException ex) {
+            this.encrypted.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Finds the size of the plaintext from the size of the last segment,
+     * decrypting the padding at the very end of the file if the mode has any.
+     */
+    private long readPlainSize() throws IOException, GeneralSecurityException {
+        long encryptedSize = encrypted.size();
+        long segments = layout.getSegmentCount(EncryptionDirection.DECRYPT, encryptedSize);
+        if (segments == 0) {
+            return 0;
+        }
+
+        long lastSegment = segments - 1;
+        int ivSize = mode.getIvSize();
+        int lastLength = layout.getInputLength(EncryptionDirection.DECRYPT, encryptedSize, lastSegment)
+                - layout.getTagSize();
+        if (lastLength < layout.getMinEncryptedLength()
+                || mode.isPadded() && (lastLength - ivSize) % SegmentLayout.BLOCK_SIZE != 0) {
+            throw new IOException("Encrypted file is truncated or is not an encrypted file");
+        }
+        //The size (and padding) is only trusted once the last segment has been verified,
+        //so a file cut off after a whole segment can't pass for a shorter one
+        verifySegment(lastSegment);
+        long plainSize = lastSegment * layout.getPlainSegmentSize() + lastLength - ivSize;
+        if (!mode.isPadded()) {
+            return plainSize;
+        }
+
+        byte[] lastBlock = decryptBlocks(lastSegment, lastLength - ivSize - SegmentLayout.BLOCK_SIZE,
+                SegmentLayout.BLOCK_SIZE);
+        int padding = lastBlock[SegmentLayout.BLOCK_SIZE - 1];
+        if (padding < 1 || padding > SegmentLayout.BLOCK_SIZE) {
+            throw new GeneralSecurityException("Wrong key, or the file is not an encrypted file");
+        }
+
+        return plainSize - padding;
+    }
+
+    /**
+     * Checks the tag of the given segment, unless it has already been checked.
+     *
+     * @throws AEADBadTagException
+     *          If the segment has been tampered with or corrupted
+     */
+    private void verifySegment(long segment) throws IOException, GeneralSecurityException {
+        if (mac == null || verifiedSegments.get((int) segment)) {
+            return;
+        }
+
+        long start = layout.getInputOffset(EncryptionDirection.DECRYPT, segment);
+        int length = layout.getInputLength(EncryptionDirection.DECRYPT, encrypted.size(), segment)
+                - layout.getTagSize();
+        boolean last = start + length + layout.getTagSize() >= encrypted.size();
+
+        SegmentCipher.beginTag(mac, segment);
+        for (long position = start; position < start + length; ) {
+            read(position, (int) Math.min(SCRATCH_SIZE, start + length - position));
+            position += scratch.remaining();
+            mac.update(scratch);
+        }
+        byte[] expected = SegmentCipher.finishTag(mac, last);
+
+        read(start + length, layout.getTagSize());
+        byte[] tag = new byte[layout.getTagSize()];
+        scratch.get(tag);
+        if (!MessageDigest.isEqual(expected, tag)) {
+            throw new AEADBadTagException("Segment " + segment + " is corrupted or was tampered with");
+        }
+        verifiedSegments.set((int) segment);
+    }
+
+    /**
+     * Decrypts the given range of the plaintext.
+     *
+     * @param position
+     *          Position in the plaintext to start reading from
+     * @param dst
+     *          Buffer to read into; filled as much as possible
+     * @return
+     *          Number of bytes read, or -1 if the position is at or past the end
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        if (position >= size) {
+            return -1;
+        }
+
+        int segmentSize = layout.getPlainSegmentSize();
+        long end = Math.min(size, position + dst.remaining());
+        int bytesRead = 0;
+
+        while (position < end) {
+            long segment = position / segmentSize;
+            int offsetInSegment = (int) (position % segmentSize);
+            int firstBlock = offsetInSegment - offsetInSegment % SegmentLayout.BLOCK_SIZE;
+
+            //Never cross a segment boundary or decrypt more than fits in the scratch buffer
+            int length = (int) Math.min(end - position, Math.min(
+                    segmentSize - offsetInSegment,
+                    SCRATCH_SIZE - (offsetInSegment - firstBlock)));
+            int blocksLength = roundUpToBlock(offsetInSegment + length) - firstBlock;
+
+            byte[] plain;
+            try {
+                verifySegment(segment);
+                plain = decryptBlocks(segment, firstBlock, blocksLength);
+            } catch (GeneralSecurityException ex) {
+                throw new CipherStreamException(ex);
+            }
+
+            dst.put(plain, offsetInSegment - firstBlock, length);
+            position += length;
+            bytesRead += length;
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * @param offset
+     *          Position of the first block in the segment's ciphertext, after its IV
+     */
+    private byte[] decryptBlocks(long segment, int offset, int length) throws IOException, GeneralSecurityException {
+        long dataStart = layout.getOutputOffset(EncryptionDirection.ENCRYPT, segment) + mode.getIvSize();
+        cipherReusable = false;
+        if (mode.getIvSize() > 0) {
+            context.init(blockIv(dataStart, offset));
+        }
+        read(dataStart + offset, length);
+
+        byte[] plain = cipher.doFinal(scratch.array(), 0, length);
+        cipherReusable = true;
+        return plain;
+    }
+
+    /**
+     * @return
+     *          IV that decrypts a segment's ciphertext starting from the given block
+     */
+    private byte[] blockIv(long dataStart, int offset) throws IOException {
+        byte[] iv = new byte[mode.getIvSize()];
+        if (mode == CipherMode.CTR) {
+            //The counter starts at the segment's IV and goes up by one every block
+            read(dataStart - iv.length, iv.length);
+            scratch.get(iv);
+            long blocks = offset / SegmentLayout.BLOCK_SIZE;
+            for (int i = iv.length - 1; i >= 0 && blocks != 0; i--) {
+                int sum = (iv[i] & 0xFF) + (int) (blocks & 0xFF);
+                iv[i] = (byte) sum;
+                blocks = (blocks >>> 8) + (sum >>> 8);
+            }
+        } else {
+            //Every CBC block is chained to the one before it, and the first block to the IV right before it
+            read(dataStart + offset - iv.length, iv.length);
+            scratch.get(iv);
+        }
+        return iv;
+    }
+
+    /**
+     * Reads the given range of the encrypted file into the scratch buffer, ready to be consumed.
+     */
+    private void read(long encryptedPosition, int length) throws IOException {
+        scratch.clear();
+        scratch.limit(length);
+        while (scratch.hasRemaining()) {
+            if (encrypted.read(scratch, encryptedPosition + scratch.position()) < 0) {
+                throw new IOException("Encrypted file is truncated");
+            }
+        }
+        scratch.flip();
+    }
+
+    private static int roundUpToBlock(int length) {
+        return (length + SegmentLayout.BLOCK_SIZE - 1) / SegmentLayout.BLOCK_SIZE * SegmentLayout.BLOCK_SIZE;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int bytesRead = read(dst, position);
+        if (bytesRead > 0) {
+            position += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableDecryptingChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return
+     *          Size of the decrypted contents, in bytes
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return encrypted.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (encrypted.isOpen() && cipherReusable) {
+            context.release();
+        }
+        encrypted.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package simplecipheraes;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Encrypts or decrypts a file one segment at a time, adding (or checking)
+ * each segment's authentication tag. All engines go through this class, so
+ * they only need to know where segments start and end.
+ *
+ * Segments of modes with an IV (see {@link CipherMode}) start with a new
+ * random IV, written before the ciphertext; when decrypting, it's collected
+ * from the start of the segment before the cipher is started.
+ *
+ * A segment's tag is the HMAC of its index, its IV and ciphertext, and whether it's the
+ * last segment of the file, so segments can't be reordered, swapped between
+ * files or dropped from the end without being noticed. When decrypting, the
+ * last {@link FileHeader#TAG_SIZE} bytes seen are held back from the cipher
+ * until {@link #finish} is called, since they might be the segment's tag.
+ *
+ * Files without a header have no tags, and go straight through the cipher.
+ *
+ * Not thread-safe; use one per thread.
+ */
+public class SegmentCipher {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final EncryptionDirection direction;
+    private final CipherContextCache.CipherContext context;
+    private final Cipher cipher;
+    private final Mac mac;
+    //Empty for modes without an IV
+    private final byte[] iv;
+    private int ivLength;
+
+    private final byte[] heldBack = new byte[FileHeader.TAG_SIZE];
+    private int heldBackLength;
+
+    private long segment;
+    private boolean segmentOpen;
+
+    /**
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the file will be encrypted or decrypted
+     * @param header
+     *          Header of the file, or null if the file doesn't have one
+     */
+    public SegmentCipher(byte[] key, EncryptionDirection direction, FileHeader header)
+            throws GeneralSecurityException {
+        this(header == null ? key.clone() : header.fileKey(key), direction, SegmentLayout.of(header));
+    }
+
+    /**
+     * @param fileKey
+     *          Key the file is encrypted with, as derived from its header;
+     *          overwritten once the cipher and MAC have their own copies
+     * @param layout
+     *          Layout of the file, for its mode and whether segments have tags
+     */
+    SegmentCipher(byte[] fileKey, EncryptionDirection direction, SegmentLayout layout)
+            throws GeneralSecurityException {
+        this.direction = direction;
+        CipherMode mode = layout.getMode();
+        this.iv = new byte[mode.getIvSize()];
+        try {
+            this.context = CipherContextCache.getShared().acquire(mode.getTransformation(),
+                    layout.getProvider(), fileKey, iv.length, direction);
+            this.cipher = context.getCipher();
+            this.mac = layout.isAuthenticated() ? FileHeader.newMac(fileKey) : null;
+        } finally {
+            Arrays.fill(fileKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Largest output {@link #update} and {@link #finish} can produce together
+     * for the given amount of input.
+     */
+    public static int maxOutputSize(int inputSize) {
+        //Room for held back bytes, an IV, a padding block and a tag
+        return inputSize + 4 * SegmentLayout.BLOCK_SIZE + FileHeader.TAG_SIZE;
+    }
+
+    /**
+     * Sets the index of the next segment, for engines that don't process segments in order.
+     */
+    public void seek(long segment) {
+        if (segmentOpen) {
+            throw new IllegalStateException("Segment " + this.segment + " hasn't been finished");
+        }
+        this.segment = segment;
+    }
+
+    /**
+     * @return
+     *          Whether a segment has been started but not finished yet
+     */
+    public boolean isSegmentOpen() {
+        return this.segmentOpen;
+    }
+
+    /**
+     * Encrypts or decrypts the input into the output, starting a new segment
+     * if needed. The input must not go past the end of the current segment.
+     */
+    public void update(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        if (!segmentOpen) {
+            begin(out);
+        }
+
+        if (mac == null) {
+            cipher.update(in, out);
+        } else if (direction == EncryptionDirection.ENCRYPT) {
+            int start = out.position();
+            cipher.update(in, out);
+            authenticate(out, start);
+        } else {
+            if (ivLength < iv.length && !collectIv(in)) {
+                return;
+            }
+            decryptHoldingBackTag(in, out);
+        }
+    }
+
+    /**
+     * Finishes the current segment, writing the rest of its output (and its tag, if encrypting).
+     *
+     * @param out
+     *          Buffer to write to
+     * @param last
+     *          If this is the last segment of the file
+     * @throws AEADBadTagException
+     *          If decrypting and the segment has been tampered with or corrupted
+     */
+    public void finish(ByteBuffer out, boolean last) throws GeneralSecurityException {
+        if (!segmentOpen) {
+            //Authenticated files always end with a segment, even if it's empty
+            if (!last || mac == null) {
+                return;
+            }
+            begin(out);
+        }
+
+        if (mac == null) {
+            cipher.doFinal(EMPTY, out);
+        } else if (direction == EncryptionDirection.ENCRYPT) {
+            int start = out.position();
+            cipher.doFinal(EMPTY, out);
+            authenticate(out, start);
+            out.put(finishTag(mac, last));
+        } else {
+            byte[] expected = finishTag(mac, last);
+            if (ivLength < iv.length || heldBackLength != FileHeader.TAG_SIZE
+                    || !MessageDigest.isEqual(heldBack, expected)) {
+                //The segment stays open, so the half-used cipher is never released back to the cache
+                throw new AEADBadTagException("Segment " + segment + " is corrupted or was tampered with");
+            }
+            cipher.doFinal(EMPTY, out);
+        }
+
+        segmentOpen = false;
+        segment++;
+    }
+
+    /**
+     * Returns the cipher to the {@link CipherContextCache}. Only call this
+     * once the whole file has been processed successfully; a cipher that's
+     * in the middle of a segment is never returned.
+     */
+    public void release() {
+        if (!segmentOpen) {
+            context.release();
+        }
+    }
+
+    /**
+     * Starts a segment; when encrypting, this writes the segment's IV.
+     */
+    private void begin(ByteBuffer out) throws GeneralSecurityException {
+        segmentOpen = true;
+        heldBackLength = 0;
+        ivLength = 0;
+        if (mac != null) {
+            beginTag(mac, segment);
+        }
+
+        if (iv.length > 0 && direction == EncryptionDirection.ENCRYPT) {
+            RANDOM.nextBytes(iv);
+            ivLength = iv.length;
+            context.init(iv);
+            out.put(iv);
+            mac.update(iv);
+        }
+    }
+
+    /**
+     * Takes as much of the segment's IV from the input as it has, starting the
+     * cipher once the whole IV has arrived.
+     *
+     * @return
+     *          Whether the whole IV has arrived
+     */
+    private boolean collectIv(ByteBuffer in) throws GeneralSecurityException {
+        int length = Math.min(in.remaining(), iv.length - ivLength);
+        in.get(iv, ivLength, length);
+        mac.update(iv, ivLength, length);
+        ivLength += length;
+
+        if (ivLength < iv.length) {
+            return false;
+        }
+        context.init(iv);
+        return true;
+    }
+
+    /**
+     * Starts computing the tag of the given segment; its ciphertext goes into the MAC next.
+     */
+    static void beginTag(Mac mac, long segment) {
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, segment));
+    }
+
+    /**
+     * Finishes computing a segment's tag, resetting the MAC for the next segment.
+     */
+    static byte[] finishTag(Mac mac, boolean last) {
+        mac.update((byte) (last ? 1 : 0));
+        return Arrays.copyOf(mac.doFinal(), FileHeader.TAG_SIZE);
+    }
+
+    /**
+     * Adds the output written since the given position to the MAC.
+     */
+    private void authenticate(ByteBuffer out, int start) {
+        ByteBuffer written = out.duplicate();
+        written.flip();
+        written.position(start);
+        mac.update(written);
+    }
+
+    private void decryptHoldingBackTag(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        int available = heldBackLength + in.remaining();
+        int release = Math.max(0, available - FileHeader.TAG_SIZE);
+
+        //Bytes held back from before come first
+        int fromHeldBack = Math.min(heldBackLength, release);
+        if (fromHeldBack > 0) {
+            ByteBuffer held = ByteBuffer.wrap(heldBack, 0, fromHeldBack);
+            mac.update(held.duplicate());
+            cipher.update(held, out);
+            System.arraycopy(heldBack, fromHeldBack, heldBack, 0, heldBackLength - fromHeldBack);
+            heldBackLength -= fromHeldBack;
+        }
+
+        int fromInput = release - fromHeldBack;
+        if (fromInput > 0) {
+            ByteBuffer released = in.duplicate();
+            released.limit(in.position() + fromInput);
+            mac.update(released.duplicate());
+            cipher.update(released, out);
+            in.position(in.position() + fromInput);
+        }
+
+        //Whatever is left might be the tag
+        int remaining = in.remaining();
+        in.get(heldBack, heldBackLength, remaining);
+        heldBackLength += remaining;
+    }
+}
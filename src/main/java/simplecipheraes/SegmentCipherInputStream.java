@@ -0,0 +1,131 @@
+package simplecipheraes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Encrypts or decrypts another stream as it's read, e.g. to decrypt a
+ * download straight into a parser. Works like a
+ * {@link SegmentCipherOutputStream} turned around: chunks are read from the
+ * underlying stream as needed and pushed through the cipher, and the result
+ * is handed out from a small buffer.
+ *
+ * Encryption and integrity errors are thrown as {@link CipherStreamException}s.
+ * When decrypting, each segment is read in full and its tag checked before
+ * any of it is returned, so nothing from a corrupted segment ever is; reads
+ * then come out a segment at a time.
+ *
+ * Not thread-safe.
+ */
+public class SegmentCipherInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] readBuffer;
+    private final ExposedBuffer pending = new ExposedBuffer();
+    private final SegmentCipherOutputStream cipher;
+    private int pendingPosition;
+    private boolean endOfStream;
+    //Thrown once the segments checked before it have been read
+    private IOException failure;
+
+    /**
+     * @param in
+     *          Stream to read the original data from
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the data read will be encrypted or decrypted
+     * @param layout
+     *          Layout to encrypt with; files being decrypted say which layout they use
+     * @param compression
+     *          How to compress the data before encrypting it
+     * @param compressionThreads
+     *          Number of blocks compressed or decompressed at once
+     * @param bufferSize
+     *          Size of the chunks the underlying stream is read in
+     */
+    public SegmentCipherInputStream(InputStream in, byte[] key, EncryptionDirection direction,
+                                    SegmentLayout layout, Compression compression,
+                                    int compressionThreads, int bufferSize) {
+        this.in = in;
+        this.readBuffer = new byte[bufferSize];
+        this.cipher = new SegmentCipherOutputStream(pending, key, direction, layout,
+                compression, compressionThreads, bufferSize);
+        CipherMetrics.getShared().recordAllocation(readBuffer.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        //Compressed data may take a few chunks before anything comes out
+        while (pendingPosition == pending.size()) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (endOfStream) {
+                return -1;
+            }
+            fill();
+        }
+
+        int copied = Math.min(length, pending.size() - pendingPosition);
+        System.arraycopy(pending.array(), pendingPosition, buffer, offset, copied);
+        pendingPosition += copied;
+        return copied;
+    }
+
+    private void fill() throws IOException {
+        pending.reset();
+        pendingPosition = 0;
+
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long start = System.nanoTime();
+        int bytesRead = in.read(readBuffer);
+        try {
+            if (bytesRead == -1) {
+                endOfStream = true;
+                cipher.finish();
+            } else {
+                metrics.record(CipherMetrics.Stage.READ, start, bytesRead);
+                cipher.write(readBuffer, 0, bytesRead);
+            }
+        } catch (IOException ex) {
+            //A chunk can hold the end of a good segment and all of a bad one
+            if (pending.size() == 0) {
+                throw ex;
+            }
+            failure = ex;
+        }
+    }
+
+    @Override
+    public int available() {
+        return pending.size() - pendingPosition;
+    }
+
+    /**
+     * Closes the underlying stream. Anything not read yet is dropped without being checked.
+     */
+    @Override
+    public void close() throws IOException {
+        cipher.abort();
+        in.close();
+    }
+
+    /**
+     * Lets the result be copied out without copying the whole buffer first.
+     */
+    private static class ExposedBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
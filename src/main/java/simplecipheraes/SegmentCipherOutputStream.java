@@ -0,0 +1,354 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Encrypts or decrypts everything written to it into the underlying stream,
+ * in the same format as every other engine. This is the core of the
+ * {@link StreamingCipherEngine}, and lets the cipher be dropped in front of
+ * any stream, e.g. to encrypt an upload while it's being sent.
+ *
+ * When encrypting, the header is written first, and the data is compressed
+ * before it's encrypted if asked to. When decrypting, the header is taken from
+ * the first bytes written; the key is checked before anything is decrypted,
+ * and the data is decompressed if the header says so.
+ *
+ * Call {@link #finish()} (or {@link #close()}) once everything has been
+ * written; until then the last segment is missing. Encryption and integrity
+ * errors are thrown as {@link CipherStreamException}s, since OutputStream
+ * methods can only throw IOExceptions.
+ *
+ * When decrypting a file with tags, each segment is held back until its tag
+ * has been checked, so nothing from a corrupted segment ever reaches the
+ * underlying stream. This costs a buffer the size of a segment.
+ *
+ * Not thread-safe.
+ */
+public class SegmentCipherOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] key;
+    private final EncryptionDirection direction;
+    private final SegmentLayout layout;
+    private final Compression compression;
+    private final int compressionThreads;
+    private final int bufferSize;
+    private final CipherMetrics metrics = CipherMetrics.getShared();
+
+    //Where the data written to this stream goes first; this stream's own
+    //segment processing, or a compressor in front of it
+    private OutputStream front;
+    //Where ciphered data goes; the underlying stream, or a decompressor in front of it
+    private OutputStream back;
+    private CompressingOutputStream compressor;
+    private DecompressingOutputStream decompressor;
+
+    //Start of a stream being decrypted, until there is enough of it to read the header
+    private byte[] headerPrefix = new byte[FileHeader.LENGTH];
+    private int headerPrefixLength;
+
+    private SegmentCipher cipher;
+    private byte[] outputBuffer;
+    private ByteBuffer outBuffer;
+    //Plaintext of the segment being decrypted, until its tag has been checked; null if it isn't held back
+    private byte[] segmentPlain;
+    private int segmentPlainLength;
+    private int segmentSize;
+    private long segmentRemaining;
+    //A segment is only finished once more input shows up, since the last one is finished differently
+    private boolean finishPending;
+    private boolean finished;
+
+    /**
+     * @param out
+     *          Stream to write the result to
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the data written will be encrypted or decrypted
+     * @param layout
+     *          Layout to encrypt with; files being decrypted say which layout they use
+     * @param compression
+     *          How to compress the data before encrypting it
+     * @param compressionThreads
+     *          Number of blocks compressed or decompressed at once
+     * @param bufferSize
+     *          Largest chunk handed to the cipher at once
+     */
+    public SegmentCipherOutputStream(OutputStream out, byte[] key, EncryptionDirection direction,
+                                     SegmentLayout layout, Compression compression,
+                                     int compressionThreads, int bufferSize) {
+        if (bufferSize < SegmentLayout.BLOCK_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + SegmentLayout.BLOCK_SIZE);
+        }
+        this.out = out;
+        this.key = key;
+        this.direction = direction;
+        this.layout = layout;
+        this.compression = compression;
+        this.compressionThreads = compressionThreads;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+        if (front == null) {
+            if (direction == EncryptionDirection.ENCRYPT) {
+                startEncrypting();
+            } else {
+                //Hold on to the start of the stream until the header can be read
+                int copied = Math.min(length, headerPrefix.length - headerPrefixLength);
+                System.arraycopy(buffer, offset, headerPrefix, headerPrefixLength, copied);
+                headerPrefixLength += copied;
+                offset += copied;
+                length -= copied;
+                if (!tryStartDecrypting(false)) {
+                    return;
+                }
+            }
+        }
+
+        front.write(buffer, offset, length);
+    }
+
+    private void startEncrypting() throws IOException {
+        try {
+            FileHeader header = FileHeader.forLayout(key, layout, compression);
+            if (header != null) {
+                out.write(header.toBytes());
+            }
+            start(header, layout);
+        } catch (GeneralSecurityException ex) {
+            throw new CipherStreamException(ex);
+        }
+
+        if (compression != Compression.NONE) {
+            compressor = new CompressingOutputStream(front, compression,
+                    CompressingOutputStream.DEFAULT_BLOCK_SIZE, compressionThreads);
+            front = compressor;
+        }
+    }
+
+    /**
+     * Reads the header from the start of the stream, if enough of it has arrived.
+     *
+     * @param endOfStream
+     *          If nothing more will be written
+     * @return
+     *          Whether the stream could be started
+     */
+    private boolean tryStartDecrypting(boolean endOfStream) throws IOException {
+        int headerLength = FileHeader.lengthOf(headerPrefix, headerPrefixLength);
+        if (headerLength > headerPrefix.length) {
+            //A header from a later version of the format; wait for all of it
+            headerPrefix = Arrays.copyOf(headerPrefix, headerLength);
+            return false;
+        }
+        if (!endOfStream && (headerLength < 0 || headerPrefixLength < headerLength)) {
+            return false;
+        }
+        if (headerPrefixLength < headerLength) {
+            throw new IOException("File ended in the middle of its header");
+        }
+
+        //Too short to have a header at all, so it's either an old file or not an encrypted file
+        FileHeader header = headerLength > 0
+                ? FileHeader.parse(Arrays.copyOf(headerPrefix, headerLength))
+                : null;
+        try {
+            if (header != null) {
+                header.verifyKey(key);
+            }
+            start(header, SegmentLayout.of(header));
+        } catch (GeneralSecurityException ex) {
+            throw new CipherStreamException(ex);
+        }
+
+        if (header != null && header.getCompression() != Compression.NONE) {
+            decompressor = new DecompressingOutputStream(out, compressionThreads);
+            back = decompressor;
+        }
+
+        //Whatever followed the header is the start of the first segment
+        int headerEnd = Math.max(0, headerLength);
+        front.write(headerPrefix, headerEnd, headerPrefixLength - headerEnd);
+        headerPrefix = null;
+        return true;
+    }
+
+    private void start(FileHeader header, SegmentLayout fileLayout) throws GeneralSecurityException {
+        cipher = new SegmentCipher(key, direction, header);
+        outputBuffer = new byte[SegmentCipher.maxOutputSize(bufferSize)];
+        outBuffer = ByteBuffer.wrap(outputBuffer);
+        metrics.recordAllocation(outputBuffer.length);
+
+        if (direction == EncryptionDirection.DECRYPT && fileLayout.isAuthenticated()) {
+            segmentPlain = new byte[fileLayout.getPlainSegmentSize()];
+            metrics.recordAllocation(segmentPlain.length);
+        }
+
+        segmentSize = fileLayout.getInputSegmentSize(direction);
+        segmentRemaining = segmentSize;
+        back = out;
+        front = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                processSegments(buffer, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Feeds the data to the cipher a chunk at a time, never letting a chunk cross a segment boundary.
+     */
+    private void processSegments(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            while (length > 0) {
+                int chunkSize = (int) Math.min(length, Math.min(bufferSize, segmentRemaining));
+
+                long start = System.nanoTime();
+                outBuffer.clear();
+                if (finishPending) {
+                    cipher.finish(outBuffer, false);
+                    finishPending = false;
+                    writeOutput();
+                    releaseSegment();
+                    outBuffer.clear();
+                }
+                cipher.update(ByteBuffer.wrap(buffer, offset, chunkSize), outBuffer);
+                metrics.record(CipherMetrics.Stage.CIPHER, start, chunkSize);
+                writeOutput();
+
+                offset += chunkSize;
+                length -= chunkSize;
+                segmentRemaining -= chunkSize;
+                if (segmentRemaining == 0) {
+                    finishPending = true;
+                    segmentRemaining = segmentSize;
+                }
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new CipherStreamException(ex);
+        }
+    }
+
+    private void writeOutput() throws IOException {
+        if (segmentPlain != null) {
+            System.arraycopy(outputBuffer, 0, segmentPlain, segmentPlainLength, outBuffer.position());
+            segmentPlainLength += outBuffer.position();
+            return;
+        }
+        long start = System.nanoTime();
+        back.write(outputBuffer, 0, outBuffer.position());
+        metrics.record(CipherMetrics.Stage.WRITE, start, outBuffer.position());
+    }
+
+    /**
+     * Writes out the plaintext of a segment whose tag has just been checked.
+     */
+    private void releaseSegment() throws IOException {
+        if (segmentPlain == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        back.write(segmentPlain, 0, segmentPlainLength);
+        metrics.record(CipherMetrics.Stage.WRITE, start, segmentPlainLength);
+        segmentPlainLength = 0;
+    }
+
+    /**
+     * Finishes the last segment and writes everything that's left to the
+     * underlying stream, without closing it. Nothing can be written afterwards.
+     *
+     * @throws CipherStreamException
+     *          If decrypting and the data was corrupted or cut short
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (front == null) {
+            if (direction == EncryptionDirection.ENCRYPT) {
+                startEncrypting();
+            } else {
+                tryStartDecrypting(true);
+            }
+        }
+        finished = true;
+
+        try {
+            if (compressor != null) {
+                compressor.finish();
+            }
+
+            long start = System.nanoTime();
+            outBuffer.clear();
+            cipher.finish(outBuffer, true);
+            metrics.record(CipherMetrics.Stage.CIPHER, start, 0);
+            writeOutput();
+            releaseSegment();
+
+            if (decompressor != null) {
+                decompressor.finish();
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new CipherStreamException(ex);
+        } finally {
+            stopThreads();
+        }
+
+        cipher.release();
+    }
+
+    /**
+     * Gives up on the stream without finishing it, stopping any compression threads.
+     * The underlying stream is left open.
+     */
+    void abort() {
+        finished = true;
+        stopThreads();
+    }
+
+    private void stopThreads() {
+        if (compressor != null) {
+            compressor.close();
+        }
+        if (decompressor != null) {
+            decompressor.close();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes the stream, then closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            stopThreads();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package simplecipheraes;
+
+/**
+ * Describes how a file is split into independently encrypted segments.
+ * Each segment of plaintext is encrypted on its own, i.e. it gets its own
+ * IV and padding (if its {@link CipherMode} has them), so a full segment of
+ * plaintext grows by the same amount when it is encrypted. This is what
+ * allows files of any size to be processed without ever holding more than
+ * a small buffer in memory.
+ *
+ * Encrypted files start with a {@link FileHeader} and every segment is followed
+ * by its authentication tag:
+ * <pre>
+ *   [header][segment 0][tag 0][segment 1][tag 1]...[segment n][tag n]
+ * </pre>
+ * Files encrypted before headers existed have neither a header nor tags.
+ */
+public class SegmentLayout {
+    /**
+     * Size of a single AES block, in bytes
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * Plaintext bytes per segment of files encrypted before headers existed.
+     * Changing this would make those files (>100 MB) unreadable.
+     */
+    public static final int LEGACY_SEGMENT_SIZE = 100_000_000;
+
+    private final int segmentSize;
+    private final int headerSize;
+    private final int tagSize;
+    private final CipherMode mode;
+    //Null to use the first installed provider that has the mode
+    private final String provider;
+
+    /**
+     * Layout of files encrypted before headers existed
+     */
+    public SegmentLayout() {
+        this(LEGACY_SEGMENT_SIZE);
+    }
+
+    public SegmentLayout(int segmentSize) {
+        this(segmentSize, 0, 0);
+    }
+
+    public SegmentLayout(int segmentSize, int headerSize, int tagSize) {
+        this(segmentSize, headerSize, tagSize, CipherMode.ECB, null);
+    }
+
+    /**
+     * @param mode
+     *          How the blocks of each segment are encrypted
+     * @param provider
+     *          Name of the JCE provider to cipher with, or null for the default one
+     */
+    public SegmentLayout(int segmentSize, int headerSize, int tagSize, CipherMode mode, String provider) {
+        if (segmentSize <= 0 || segmentSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Segment size must be a positive multiple of " + BLOCK_SIZE);
+        }
+        //The mode is recorded in the header, so files without one are always ECB
+        if (mode != CipherMode.ECB && tagSize == 0) {
+            throw new IllegalArgumentException("Only files with a header can use " + mode);
+        }
+        this.segmentSize = segmentSize;
+        this.headerSize = headerSize;
+        this.tagSize = tagSize;
+        this.mode = mode;
+        this.provider = provider;
+    }
+
+    /**
+     * @param header
+     *          Header of the file, or null if it doesn't have one
+     * @return
+     *          Layout of the file with the given header
+     */
+    public static SegmentLayout of(FileHeader header) {
+        return header == null ? new SegmentLayout() : header.getLayout();
+    }
+
+    /**
+     * @return
+     *          Whether segments are followed by authentication tags
+     */
+    public boolean isAuthenticated() {
+        return this.tagSize > 0;
+    }
+
+    public int getHeaderSize() {
+        return this.headerSize;
+    }
+
+    public int getTagSize() {
+        return this.tagSize;
+    }
+
+    public CipherMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return
+     *          Name of the JCE provider to cipher with, or null for the default one
+     */
+    public String getProvider() {
+        return this.provider;
+    }
+
+    /**
+     * @return
+     *          Number of plaintext bytes in a full segment
+     */
+    public int getPlainSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * @return
+     *          Number of encrypted bytes in a full segment (IV + plaintext + padding block),
+     *          not counting its tag
+     */
+    public int getEncryptedSegmentSize() {
+        return getEncryptedLength(this.segmentSize);
+    }
+
+    /**
+     * @param plainLength
+     *          Plaintext bytes in a segment
+     * @return
+     *          Number of encrypted bytes the segment turns into, not counting its tag
+     */
+    public int getEncryptedLength(int plainLength) {
+        int padded = mode.isPadded()
+                ? (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE
+                : plainLength;
+        return mode.getIvSize() + padded;
+    }
+
+    /**
+     * @return
+     *          Smallest number of encrypted bytes a segment can have, not counting its tag
+     */
+    public int getMinEncryptedLength() {
+        return getEncryptedLength(0);
+    }
+
+    /**
+     * @return
+     *          Distance between the starts of two segments of the encrypted file
+     */
+    public int getEncryptedSegmentStride() {
+        return getEncryptedSegmentSize() + this.tagSize;
+    }
+
+    /**
+     * Size of a full segment of the file being read.
+     *
+     * @param direction
+     *          If the file being read will be encrypted or decrypted
+     * @return
+     *          Number of input bytes that make up one segment, including its tag
+     */
+    public int getInputSegmentSize(EncryptionDirection direction) {
+        return direction == EncryptionDirection.ENCRYPT
+                ? getPlainSegmentSize()
+                : getEncryptedSegmentStride();
+    }
+
+    /**
+     * Size of a full segment of the file being written.
+     *
+     * @param direction
+     *          If the file being read will be encrypted or decrypted
+     * @return
+     *          Number of output bytes that one full segment turns into, including its tag
+     */
+    public int getOutputSegmentSize(EncryptionDirection direction) {
+        return direction == EncryptionDirection.ENCRYPT
+                ? getEncryptedSegmentStride()
+                : getPlainSegmentSize();
+    }
+
+    /**
+     * @param direction
+     *          If the file being read will be encrypted or decrypted
+     * @param inputSize
+     *          Size of the file being read, in bytes
+     * @return
+     *          Number of segments in the file being read. Authenticated files always
+     *          have at least one segment, so a file cut off right after its header
+     *          can't pass for an empty one.
+     */
+    public long getSegmentCount(EncryptionDirection direction, long inputSize) {
+        long dataSize = direction == EncryptionDirection.ENCRYPT
+                ? inputSize
+                : inputSize - headerSize;
+        long inputSegmentSize = getInputSegmentSize(direction);
+        long segments = (dataSize + inputSegmentSize - 1) / inputSegmentSize;
+
+        return isAuthenticated()
+                ? Math.max(1, segments)
+                : segments;
+    }
+
+    /**
+     * @return
+     *          Position of the given segment in the file being read
+     */
+    public long getInputOffset(EncryptionDirection direction, long segment) {
+        return direction == EncryptionDirection.ENCRYPT
+                ? segment * getPlainSegmentSize()
+                : headerSize + segment * getEncryptedSegmentStride();
+    }
+
+    /**
+     * @return
+     *          Number of bytes the given segment (and its tag) takes up in the file being read;
+     *          only the last segment can be smaller than a full segment
+     */
+    public int getInputLength(EncryptionDirection direction, long inputSize, long segment) {
+        return (int) Math.max(0, Math.min(getInputSegmentSize(direction),
+                inputSize - getInputOffset(direction, segment)));
+    }
+
+    /**
+     * Every segment but the last is full, so the position of each segment's
+     * output is known before any of the segments have been processed.
+     *
+     * @return
+     *          Position of the given segment in the file being written
+     */
+    public long getOutputOffset(EncryptionDirection direction, long segment) {
+        return direction == EncryptionDirection.ENCRYPT
+                ? headerSize + segment * getEncryptedSegmentStride()
+                : segment * getPlainSegmentSize();
+    }
+
+    /**
+     * @param direction
+     *          If the file being read will be encrypted or decrypted
+     * @param inputSize
+     *          Size of the file being read, in bytes
+     * @return
+     *          Size of the file being written. When decrypting a padded mode
+     *          this is the most it can be, since how much padding the last
+     *          segment has is only known once it has been decrypted.
+     */
+    public long getOutputSize(EncryptionDirection direction, long inputSize) {
+        long segmentCount = getSegmentCount(direction, inputSize);
+        if (segmentCount == 0) {
+            return direction == EncryptionDirection.ENCRYPT ? headerSize : 0;
+        }
+
+        long last = segmentCount - 1;
+        int lastLength = getInputLength(direction, inputSize, last);
+        long lastOutput = direction == EncryptionDirection.ENCRYPT
+                ? getEncryptedLength(lastLength) + tagSize
+                : Math.max(0, lastLength - tagSize - mode.getIvSize() - (mode.isPadded() ? 1 : 0));
+        return getOutputOffset(direction, last) + lastOutput;
+    }
+}
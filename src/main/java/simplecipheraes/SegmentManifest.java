@@ -0,0 +1,186 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.Mac;
+
+/**
+ * Hash of every plaintext segment of an encrypted file, kept next to it so
+ * the next run can tell which segments changed without decrypting anything.
+ *
+ * Hashes are keyed by the file's derived key (see {@link FileHeader#fileKey}),
+ * so the manifest says nothing about the contents to anyone without the
+ * password, nor lets them test guesses faster than the file itself does, and
+ * the manifest as a whole is MACed. It also
+ * records the size and modification time of the encrypted file it describes,
+ * and is only trusted if the file still matches.
+ */
+public class SegmentManifest {
+    /**
+     * Added to the name of an encrypted file to name its manifest
+     */
+    public static final String SUFFIX = ".manifest";
+
+    public static final int HASH_SIZE = FileHeader.TAG_SIZE;
+
+    private static final byte[] MAGIC = { 'S', 'C', 'A', 'E', 'S', 'M', 'A', 'N' };
+    private static final int VERSION = 1;
+    private static final int FIXED_FIELDS_LENGTH = MAGIC.length + 4 + 4 + 8 + 8 + 8;
+    private static final byte[] HASH_LABEL = "SimpleCipherAES segment hash".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAC_LABEL = "SimpleCipherAES manifest".getBytes(StandardCharsets.US_ASCII);
+
+    private final int segmentSize;
+    private final long plainLength;
+    private final byte[] hashes;
+
+    /**
+     * @param segmentSize
+     *          Plaintext bytes per segment
+     * @param plainLength
+     *          Size of the plaintext
+     * @param hashes
+     *          Hash of each segment, one after the other
+     */
+    public SegmentManifest(int segmentSize, long plainLength, byte[] hashes) {
+        this.segmentSize = segmentSize;
+        this.plainLength = plainLength;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Hashes a plaintext segment.
+     *
+     * @param mac
+     *          MAC from {@link FileHeader#newMac}
+     * @param plaintext
+     *          Contents of the segment; consumed
+     * @param hashes
+     *          Where to put the hash
+     * @param offset
+     *          Position of the hash in the array
+     */
+    public static void hash(Mac mac, long segment, ByteBuffer plaintext, byte[] hashes, int offset) {
+        mac.update(HASH_LABEL);
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, segment));
+        mac.update(plaintext);
+        System.arraycopy(mac.doFinal(), 0, hashes, offset, HASH_SIZE);
+    }
+
+    /**
+     * Loads the manifest of an encrypted file.
+     *
+     * @param file
+     *          Where the manifest is saved
+     * @param encryptedFile
+     *          File the manifest describes
+     * @param key
+     *          Key of the encrypted file, as derived from its header
+     * @return
+     *          The manifest, or null if there's none, it was made with another
+     *          key, or the encrypted file has changed since
+     */
+    public static SegmentManifest load(File file, File encryptedFile, byte[] key)
+            throws IOException, GeneralSecurityException {
+        if (!file.isFile() || !encryptedFile.isFile()) {
+            return null;
+        }
+
+        ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            manifest.get(magic);
+            int version = manifest.getInt();
+            int segmentSize = manifest.getInt();
+            long plainLength = manifest.getLong();
+            long encryptedLength = manifest.getLong();
+            long encryptedModified = manifest.getLong();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION
+                    || encryptedLength != encryptedFile.length()
+                    || encryptedModified != encryptedFile.lastModified()
+                    || manifest.remaining() % HASH_SIZE != 0 || manifest.remaining() < HASH_SIZE) {
+                return null;
+            }
+
+            byte[] hashes = new byte[manifest.remaining() - HASH_SIZE];
+            manifest.get(hashes);
+            byte[] mac = new byte[HASH_SIZE];
+            manifest.get(mac);
+
+            if (!MessageDigest.isEqual(mac, computeMac(key, Arrays.copyOf(manifest.array(),
+                    manifest.capacity() - HASH_SIZE)))) {
+                return null;
+            }
+            return new SegmentManifest(segmentSize, plainLength, hashes);
+        } catch (BufferUnderflowException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the manifest, once the encrypted file it describes is complete.
+     * Written under a temporary name and renamed into place.
+     */
+    public void save(File file, File encryptedFile, byte[] key) throws IOException, GeneralSecurityException {
+        ByteBuffer manifest = ByteBuffer.allocate(FIXED_FIELDS_LENGTH + hashes.length + HASH_SIZE);
+        manifest.put(MAGIC);
+        manifest.putInt(VERSION);
+        manifest.putInt(segmentSize);
+        manifest.putLong(plainLength);
+        manifest.putLong(encryptedFile.length());
+        manifest.putLong(encryptedFile.lastModified());
+        manifest.put(hashes);
+        manifest.put(computeMac(key, Arrays.copyOf(manifest.array(), manifest.position())));
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            manifest.flip();
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] computeMac(byte[] key, byte[] contents) throws GeneralSecurityException {
+        Mac mac = FileHeader.newMac(key);
+        mac.update(MAC_LABEL);
+        return Arrays.copyOf(mac.doFinal(contents), HASH_SIZE);
+    }
+
+    /**
+     * @return
+     *          Whether the given segment had the given hash
+     */
+    public boolean hashEquals(long segment, byte[] hashes, int offset) {
+        if (segment >= getSegmentCount()) {
+            return false;
+        }
+        int start = (int) segment * HASH_SIZE;
+        return Arrays.equals(this.hashes, start, start + HASH_SIZE, hashes, offset, offset + HASH_SIZE);
+    }
+
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    public long getPlainLength() {
+        return this.plainLength;
+    }
+
+    public long getSegmentCount() {
+        return this.hashes.length / HASH_SIZE;
+    }
+}
@@ -0,0 +1,45 @@
+package simplecipheraes;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads the segment workers of every job run on.
+ * The {@link CipherContextCache} keeps its ciphers and digests per thread, so
+ * jobs that started threads of their own would throw the cached contexts away
+ * with them at the end of every job. These threads stay around for a while
+ * after their last segment instead, and the next job's workers pick up the
+ * contexts the last one left behind.
+ *
+ * Threads are started as jobs need them and never queued for, so jobs running
+ * at the same time don't wait on each other's workers.
+ */
+final class SegmentWorkers {
+    private static final ExecutorService SHARED = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), CompressingOutputStream.daemon("segment-worker"));
+
+    private SegmentWorkers() {
+    }
+
+    /**
+     * @return
+     *          The pool shared by all jobs of this app; never shut down
+     */
+    static ExecutorService getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Stops the given workers of a job that's over, interrupting any that are
+     * still running, e.g. because another worker of the job failed.
+     */
+    static void cancel(List<? extends Future<?>> workers) {
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+    }
+}
@@ -1,23 +1,36 @@
 package simplecipheraes;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.Security;
 import java.util.Arrays;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import javax.crypto.AEADBadTagException;
 
 /**
  * This is an implementation of AES 128-bit encryption that
@@ -28,16 +41,38 @@ import javax.crypto.spec.SecretKeySpec;
  * @author dPow
  */
 public class SimpleCipherAES {
-    MessageDigest hashFunction;
+    /**
+     * Runs the jobs started by {@link #processFileAsync} when no executor is given.
+     * Its threads aren't daemons, so a job finishes even if the window is closed,
+     * and they stop soon after, so the app can exit.
+     */
+    private static final ExecutorService JOB_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            1, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> new Thread(runnable, "cipher-job"));
 
-    AppProgressText progressText;
+    /**
+     * Added to the name of a job's output while it's being written
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * Added to the name of a job's partial output to name its checkpoint
+     */
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
 
-    public SimpleCipherAES(AppProgressText progressText) {
+    ProgressListener progressText;
+
+    //Only used for encrypting; files being decrypted say which layout they use.
+    //Each job gets its own copy in the mode and provider picked for it.
+    SegmentLayout layout = FileHeader.newLayout(FileHeader.DEFAULT_SEGMENT_SIZE);
+
+    public SimpleCipherAES(ProgressListener progressText) {
         this.progressText = progressText;
     }
 
     /**
      * Hashes a user-supplied key with SHA-256.
+     * This only turns the password into bytes of a fixed size; the key of each
+     * file is derived from it with a slow, salted KDF (see {@link KeyDerivation}).
      *
      * @param text
      *          User-supplied key
@@ -51,7 +86,8 @@ public class SimpleCipherAES {
 
         byte[] key = null;
         try {
-            hashFunction = MessageDigest.getInstance("SHA-256");
+            //Each thread gets its own digest, so concurrent jobs can hash keys safely
+            MessageDigest hashFunction = CipherContextCache.getShared().digest("SHA-256");
             hashFunction.update(text.getBytes("UTF-8"));
             key = hashFunction.digest();
 
@@ -66,8 +102,8 @@ public class SimpleCipherAES {
 
     /**
      * Processes the selected file for encryption or decryption.
-     * Functions by reading the file 100 MB at a time, and then
-     * encrypting or decrypting it according to the selected option.
+     * Functions by streaming the file through the cipher a small buffer
+     * at a time, and then writing the result to a new file next to it.
      *
      * @param file
      *          File to be encrypted or decrypted
@@ -77,198 +113,634 @@ public class SimpleCipherAES {
      *          If the file being processed will be encrypted or decrypted
      */
     public void processFile(File file, byte[] key, EncryptionDirection type){
-        //Delete old encrypted/decrypted files
-        if (type == EncryptionDirection.ENCRYPT) {
-            try {
-                String fileName = file.getCanonicalPath();
-                String newName = fileName + ".enc";
-                File newFile = new File(newName);
-                if (newFile.exists()) {
-                    newFile.delete();
-                    progressText.updateProgress("Old file deleted.");
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+        processFile(file, key, type, new CipherOptions());
+    }
+
+    /**
+     * Processes the selected file for encryption or decryption using the given
+     * tuning options. If more than one thread is allowed, independent segments
+     * of the file are processed concurrently.
+     *
+     * @param file
+     *          File to be encrypted or decrypted
+     * @param key
+     *          User-given key
+     * @param type
+     *          If the file being processed will be encrypted or decrypted
+     * @param options
+     *          How the file should be processed
+     */
+    public void processFile(File file, byte[] key, EncryptionDirection type, CipherOptions options){
+        ProgressListener consoleProgress = new ProgressListener() {
+            @Override
+            public void updateProgress(Progress progress) {
+                progressText.updateProgress(progress);
+                System.out.println(progress.getCompletedBytes() + " completed so far.");
             }
-        } else if (type == EncryptionDirection.DECRYPT) {
-            try {
-                //Remove ".enc" extension
-                String oldFilePath = file.getCanonicalPath();
-                String newFilePath = oldFilePath.substring(0, oldFilePath.length() - 4);
-                //Get original extension
-                int indexOfExtension = newFilePath.indexOf(".");
-                String extension = newFilePath.substring(indexOfExtension);
-                //Add " [decrypted]" just before the file's real extension
-                newFilePath = newFilePath.substring(0, indexOfExtension) + " [decrypted]"
-                        + extension;
-                File newFile = new File(newFilePath);
-                if (newFile.exists()) {
-                    newFile.delete();
-                    progressText.updateProgress("Old file deleted.");
+
+            @Override
+            public void updateProgress(String message) {
+                progressText.updateProgress(message);
+            }
+        };
+
+        processFileAsync(file, key, type, options, consoleProgress).whenComplete((newFile, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                System.out.println("Done!");
+            } else {
+                if (!(cause instanceof InvalidKeyException || cause instanceof AEADBadTagException)) {
+                    cause.printStackTrace();
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                progressText.updateProgress(describeError(cause));
             }
+        });
+    }
+
+    /**
+     * @return
+     *          What to tell the user when a job failed with the given error
+     */
+    static String describeError(Throwable cause) {
+        if (cause instanceof InvalidKeyException) {
+            return "Wrong password.";
+        } else if (cause instanceof AEADBadTagException) {
+            return "Your file is damaged: " + cause.getMessage() + ".";
+        } else if (cause instanceof CancellationException) {
+            return "Cancelled.";
         }
+        return "Something went wrong while processing your file.";
+    }
 
-        Thread fileProcess = new Thread(){
-            @Override
-            public void run() {
-                long fileSize = file.length();
-
-                //Reads file as bytes and encrypts/decrypts it
-                //Processed one byte array at a time so that large (>2GB) files
-                //can be encrypted and decrypted, too
-                try (InputStream inputStream = new BufferedInputStream(
-                        new FileInputStream(file))) {
-                    long totalBytesRead = 0;
-
-                    while (totalBytesRead < fileSize) {
-                        long bytesRemaining = fileSize - totalBytesRead;
-                        int size; //size of byte array to be processed
-                        //Need to ensure the bytesRemaining fits into a byte array
-                        //array so we choose an arbitrary number smaller than
-                        //Integer.MAX_VALUE - 5 and smaller than the heap space
-                        if (bytesRemaining > 100000000) {
-                            //If the file is larger than 100 MB, then process it
-                            //in 100 MB chunks.
-                            //Note: when split the file this way, the size of the
-                            //encrypted chunk will be 100000016 instead of 100000000.
-                            //Thus, decryption will need to process a larger chunk
-                            //than 100 MB
-                            if (type == EncryptionDirection.DECRYPT) {
-                                //When encrypted, 100 MB becomes 100.000016 MB
-                                //Thus, decryption must handle the larger filesize
-                                //in order to make a 100 MB sized unencrypted file.
-                                size = 100000016;
-                            } else {
-                                size = 100000000;
-                            }
-                        } else {
-                            size = (int) bytesRemaining;
-                        }
-                        byte[] bytes = new byte[size];
-                        int bytesRead = inputStream.read(bytes);
-                        totalBytesRead += bytesRead;
-
-                        //Encrypt or decrypt byte array
-                        if (type == EncryptionDirection.ENCRYPT) {
-                            encryptAndSave(bytes, key, file);
-                        } else if (type == EncryptionDirection.DECRYPT) {
-                            decryptAndSave(bytes, key, file);
-                        }
-
-                        //Let the user know what's happening
-                        progressText.updateProgress(totalBytesRead, fileSize);
-                        System.out.println(totalBytesRead + " completed so far.");
-                        if (totalBytesRead == fileSize) {
-                            System.out.println("Done!");
-                            progressText.updateProgress("File Completed!");
-                        }
-                    }
-                    //try-with-resources does not need to be closed
-                } catch (IOException ex) {
-                    System.err.println(ex.getCause());
-                }
+    /**
+     * Processes the selected file for encryption or decryption on a background thread.
+     *
+     * @param file
+     *          File to be encrypted or decrypted
+     * @param key
+     *          User-given key
+     * @param type
+     *          If the file being processed will be encrypted or decrypted
+     * @param options
+     *          How the file should be processed
+     * @param listener
+     *          Receives this job's progress
+     * @return
+     *          Completes with the file the result was saved to, or with the
+     *          error {@link #processFileAndWait} would have thrown
+     */
+    public CompletableFuture<File> processFileAsync(File file, byte[] key, EncryptionDirection type,
+                                                    CipherOptions options, ProgressListener listener) {
+        return processFileAsync(file, key, type, options, listener, JOB_EXECUTOR);
+    }
+
+    /**
+     * Processes the selected file for encryption or decryption on the given executor.
+     *
+     * @param executor
+     *          Runs the job; the job itself may use more threads, as set in the options
+     * @see #processFileAsync(File, byte[], EncryptionDirection, CipherOptions, ProgressListener)
+     */
+    public CompletableFuture<File> processFileAsync(File file, byte[] key, EncryptionDirection type,
+                                                    CipherOptions options, ProgressListener listener,
+                                                    Executor executor) {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(processFileAndWait(file, key, type, options, listener));
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
             }
-        };
-        fileProcess.start();
+        });
+        return result;
     }
 
     /**
-     * Encrypts a byte array using a given key, then saves the encryption
-     * to a new file with a similar name to the original file.
+     * Processes the selected file for encryption or decryption on the calling
+     * thread, returning once the output file has been written.
      *
-     * @param message
-     *          Byte array to be encrypted
+     * @param file
+     *          File to be encrypted or decrypted
      * @param key
      *          User-given key
+     * @param type
+     *          If the file being processed will be encrypted or decrypted
+     * @param options
+     *          How the file should be processed
+     * @param listener
+     *          Receives this job's progress
+     * @return
+     *          File the result was saved to
+     * @throws InvalidKeyException
+     *          If decrypting with the wrong key; nothing is written
+     * @throws AEADBadTagException
+     *          If decrypting a file that is corrupted; the partial output is deleted
+     * @throws IOException
+     *          If the job fails part way through; if a checkpoint was saved,
+     *          the partial output is kept and running the job again resumes it
+     */
+    public File processFileAndWait(File file, byte[] key, EncryptionDirection type,
+                                   CipherOptions options, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        return processFileAndWait(file, key, type, options, listener, () -> false);
+    }
+
+    /**
+     * Processes the selected file on the calling thread, stopping early if the job is cancelled.
+     * The job checks for cancellation every time it finishes a chunk; interrupting
+     * the calling thread as well stops it even if it's waiting on the disk.
+     *
+     * @param cancelled
+     *          Whether the job has been cancelled
+     * @throws CancellationException
+     *          If the job was cancelled; its partial output is deleted
+     * @see #processFileAndWait(File, byte[], EncryptionDirection, CipherOptions, ProgressListener)
+     */
+    public File processFileAndWait(File file, byte[] key, EncryptionDirection type,
+                                   CipherOptions options, ProgressListener listener, BooleanSupplier cancelled)
+            throws IOException, GeneralSecurityException {
+        File newFile = getOutputFile(file, type);
+        //Written under another name and renamed once complete, so an interrupted
+        //job never leaves a truncated file where the real one should be
+        File partFile = new File(newFile.getPath() + PART_SUFFIX);
+        JobCheckpoint checkpoint = new JobCheckpoint(new File(partFile.getPath() + CHECKPOINT_SUFFIX), file);
+
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long jobStart = metrics.jobStarted();
+        AdaptiveTuner tuner = AdaptiveTuner.getShared();
+        SegmentLayout jobLayout = layoutFor(options, file.length(), type, partFile);
+        CipherOptions tuned = tuner.tune(options, file.length(), jobLayout, type);
+        //Let the user know what's happening, without slowing the job down
+        try (ProgressTracker tracker = new ProgressTracker(listener, file.length(), options.getProgressInterval())) {
+            checkpoint.setOnResume(bytesDone -> {
+                tracker.resumeFrom(bytesDone);
+                listener.updateProgress("Resuming from an earlier run.");
+            });
+            LongConsumer onSegmentDone = bytesDone -> {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Cancelled while processing " + file);
+                }
+                tracker.accept(bytesDone);
+            };
+            runEngine(file, partFile, key, type, jobLayout, tuned, onSegmentDone, checkpoint,
+                    tuner.newThrottle(options, tuned));
+
+            try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(partFile.toPath(), newFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            metrics.jobFinished(jobStart, false);
+            //Keep the partial output if a rerun can resume from it, e.g. after a
+            //full disk or a mistyped password; otherwise it's garbage
+            boolean resumable = ex instanceof IOException || ex instanceof InvalidKeyException;
+            if (cancelled.getAsBoolean() || !resumable || !checkpoint.exists()) {
+                partFile.delete();
+                checkpoint.delete();
+            }
+            //However the engine noticed (a failed check, or an interrupted read), it was cancelled
+            if (cancelled.getAsBoolean() && !(ex instanceof CancellationException)) {
+                CancellationException cancellation = new CancellationException("Cancelled while processing " + file);
+                cancellation.initCause(ex);
+                throw cancellation;
+            }
+            throw ex;
+        }
+        checkpoint.delete();
+        metrics.jobFinished(jobStart, true);
+
+        listener.updateProgress("File Completed!");
+        return newFile;
+    }
+
+    /**
+     * Encrypts the selected file, rewriting only the parts of an earlier
+     * encryption of it that changed since. The first run encrypts the whole
+     * file, and saves a manifest of its segments next to the encrypted file
+     * for the runs after it.
+     *
      * @param file
-     *          Old, unencrypted file to be encrypted; used to make a file with
-     *          a similar name
+     *          File to be encrypted
+     * @param key
+     *          User-given key; a different key than last time rewrites the whole file
+     * @param options
+     *          How many threads to use; files can't be compressed incrementally
+     * @param listener
+     *          Receives this job's progress
+     * @return
+     *          File the result was saved to
      */
-    private void encryptAndSave(byte[] message, byte[] key, File file) {
-        byte[] encryptedBytes = null;
-        try {
-            //Make a new key of the correct 128-bit length
-            SecretKey aesKey = new SecretKeySpec(key, "AES");
-            //Instantiate a new cipher
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-            //Encrypt all the file bytes
-            encryptedBytes = cipher.doFinal(message);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException |
-                InvalidKeyException | IllegalBlockSizeException |
-                BadPaddingException ex) {
-            ex.printStackTrace();
+    public File encryptIncrementally(File file, byte[] key, CipherOptions options, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        if (options.getCompression() != Compression.NONE) {
+            throw new IllegalArgumentException("Compressed files can't be encrypted incrementally");
         }
+        File newFile = getOutputFile(file, EncryptionDirection.ENCRYPT);
+        File manifestFile = new File(newFile.getPath() + SegmentManifest.SUFFIX);
 
-        //Save data to a file
-        OutputStream out = null;
-        try {
-            String oldFilePath = file.getCanonicalPath();
-            String newFilePath = oldFilePath + ".enc";
-            out = new BufferedOutputStream(
-                    new FileOutputStream(newFilePath, true)); //Append to file
-            if (encryptedBytes != null) {
-                out.write(encryptedBytes);
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long jobStart = metrics.jobStarted();
+        SegmentLayout jobLayout = layoutFor(options, file.length(), EncryptionDirection.ENCRYPT, newFile);
+        CipherOptions tuned = AdaptiveTuner.getShared().tune(options, file.length(), jobLayout,
+                EncryptionDirection.ENCRYPT);
+        IncrementalEncryptor encryptor = new IncrementalEncryptor(jobLayout, tuned.getThreads());
+        boolean existed = newFile.isFile();
+        long rewritten;
+        try (ProgressTracker tracker = new ProgressTracker(listener, file.length(), options.getProgressInterval())) {
+            rewritten = encryptor.encrypt(file, newFile, manifestFile, key, tracker);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            metrics.jobFinished(jobStart, false);
+            //Once part of the file is rewritten it's neither the old version nor the new one,
+            //and its segments would still verify one by one; until then, the old version is kept
+            if (!existed || encryptor.hasWrittenInPlace()) {
+                newFile.delete();
             }
-            out.close();
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            throw ex;
         }
+        metrics.jobFinished(jobStart, true);
+
+        long segmentCount = jobLayout.getSegmentCount(EncryptionDirection.ENCRYPT, file.length());
+        listener.updateProgress(rewritten + " of " + segmentCount + " segment(s) rewritten.");
+        listener.updateProgress("File Completed!");
+        return newFile;
     }
 
     /**
-     * Encrypts a byte array using a given key, then saves the encryption
-     * to a new file with a similar name to the original file.
+     * Packs many files into a single encrypted archive.
      *
-     * @param message
-     *          Byte array to be decrypted
+     * @param files
+     *          Files to pack; each is stored under its path as given
+     * @param archive
+     *          File to save the archive to; replaced once the new one is complete
      * @param key
      *          User-given key
+     * @param options
+     *          How many files are read at once, and how large the buffers are
+     * @param listener
+     *          Receives this job's progress
+     * @return
+     *          The archive's entries, in the order they were written
+     */
+    public List<ArchiveEntry> packFiles(List<File> files, File archive, byte[] key, CipherOptions options,
+                                        ProgressListener listener) throws IOException, GeneralSecurityException {
+        File partFile = new File(archive.getPath() + PART_SUFFIX);
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long jobStart = metrics.jobStarted();
+        SegmentLayout jobLayout = layoutFor(options, totalBytes, EncryptionDirection.ENCRYPT, null);
+        CipherOptions tuned = AdaptiveTuner.getShared().tune(options, totalBytes, jobLayout,
+                EncryptionDirection.ENCRYPT);
+        List<ArchiveEntry> entries;
+        try (ProgressTracker tracker = new ProgressTracker(listener, totalBytes, options.getProgressInterval())) {
+            entries = new ArchiveWriter(jobLayout, tuned.getThreads(), tuned.getBufferSize())
+                    .write(files, partFile, key, tracker);
+            Files.move(partFile.toPath(), archive.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            metrics.jobFinished(jobStart, false);
+            partFile.delete();
+            throw ex;
+        }
+        metrics.jobFinished(jobStart, true);
+
+        listener.updateProgress(entries.size() + " file(s) packed.");
+        return entries;
+    }
+
+    /**
+     * Opens an archive made by {@link #packFiles}, to list or extract its files.
+     *
+     * @throws InvalidKeyException
+     *          If the key is wrong
+     */
+    public ArchiveReader openArchive(File archive, byte[] key) throws IOException, GeneralSecurityException {
+        return new ArchiveReader(archive, key);
+    }
+
+    /**
+     * Encrypts or decrypts a whole stream into another one, e.g. a network
+     * stream or an in-memory buffer. Neither stream is closed.
+     *
+     * @param in
+     *          Stream to read from
+     * @param out
+     *          Stream to write the result to
+     * @param key
+     *          User-given key
+     * @param type
+     *          If the input will be encrypted or decrypted
+     * @param options
+     *          Buffer size, compression and compression threads to use
+     * @return
+     *          Total number of bytes read
+     * @throws InvalidKeyException
+     *          If decrypting with the wrong key; nothing is written
+     * @throws AEADBadTagException
+     *          If decrypting data that is corrupted; everything before the
+     *          damaged segment has already been written, and nothing from it
+     */
+    public long process(InputStream in, OutputStream out, byte[] key, EncryptionDirection type,
+                        CipherOptions options) throws IOException, GeneralSecurityException {
+        return new StreamingCipherEngine(layoutFor(options, 0, type, null), options.getBufferSize(),
+                options.getCompression(), options.getThreads())
+                .process(in, out, key, type, null);
+    }
+
+    /**
+     * Encrypts or decrypts everything read from one channel into another.
+     * Neither channel is closed.
+     *
+     * @see #process(InputStream, OutputStream, byte[], EncryptionDirection, CipherOptions)
+     */
+    public long process(ReadableByteChannel in, WritableByteChannel out, byte[] key, EncryptionDirection type,
+                        CipherOptions options) throws IOException, GeneralSecurityException {
+        //The adapters would close the channels when closed, so they're left for the garbage collector
+        return process(Channels.newInputStream(in), Channels.newOutputStream(out), key, type, options);
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is encrypted or decrypted
+     * on its way through. The result is only complete once the returned stream
+     * is closed, or {@link SegmentCipherOutputStream#finish() finished}.
+     *
+     * @param out
+     *          Stream to write the result to
+     * @param key
+     *          User-given key
+     * @param type
+     *          If the data written will be encrypted or decrypted
+     * @param options
+     *          Buffer size, compression and compression threads to use
+     */
+    public SegmentCipherOutputStream wrapOutputStream(OutputStream out, byte[] key, EncryptionDirection type,
+                                                      CipherOptions options) {
+        return new SegmentCipherOutputStream(out, key, type, layoutFor(options, 0, type, null),
+                options.getCompression(), options.getThreads(), options.getBufferSize());
+    }
+
+    /**
+     * Wraps a stream so that everything read from it is encrypted or decrypted first.
+     *
+     * @param in
+     *          Stream to read the original data from
+     * @param key
+     *          User-given key
+     * @param type
+     *          If the data read will be encrypted or decrypted
+     * @param options
+     *          Buffer size, compression and compression threads to use
+     */
+    public SegmentCipherInputStream wrapInputStream(InputStream in, byte[] key, EncryptionDirection type,
+                                                    CipherOptions options) {
+        return new SegmentCipherInputStream(in, key, type, layoutFor(options, 0, type, null),
+                options.getCompression(), options.getThreads(), options.getBufferSize());
+    }
+
+    /**
+     * Decrypts part of an encrypted file without decrypting the rest of it.
+     * Every segment the range touches is checked against its tag first, so
+     * even a few bytes cost reading a whole segment, plus the last segment of
+     * the file (see {@link SeekableDecryptingChannel}).
+     *
      * @param encryptedFile
-     *          Old file that was previously encrypted; used to make a file with
-     *          a similar name
+     *          Previously encrypted file
+     * @param key
+     *          User-given key
+     * @param offset
+     *          Position in the decrypted contents to start reading from
+     * @param length
+     *          Number of bytes to read
+     * @return
+     *          The decrypted bytes; shorter than length if the range goes past
+     *          the end of the file
+     * @throws InvalidKeyException
+     *          If the key is wrong
+     * @throws AEADBadTagException
+     *          If a segment the range is in is corrupted
+     * @throws IllegalArgumentException
+     *          If offset or length is negative, or offset is past the end of the decrypted contents
      */
-    private void decryptAndSave(byte[] message, byte[] key, File encryptedFile) {
-        byte[] decryptedBytes = null;
-        try {
-            //Make a new key of the correct 128-bit length
-            SecretKey aesKey = new SecretKeySpec(key, "AES");
-            //Instantiate a new cipher
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, aesKey);
-            //Encrypt all the file bytes
-            decryptedBytes = cipher.doFinal(message);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException |
-                InvalidKeyException | IllegalBlockSizeException |
-                BadPaddingException ex) {
-            ex.printStackTrace();
+    public byte[] decryptRange(File encryptedFile, byte[] key, long offset, int length)
+            throws IOException, GeneralSecurityException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        }
+        try (SeekableDecryptingChannel channel = new SeekableDecryptingChannel(encryptedFile, key)) {
+            if (offset > channel.size()) {
+                throw new IllegalArgumentException("Offset " + offset + " is past the end of the file ("
+                        + channel.size() + " bytes)");
+            }
+            ByteBuffer range = ByteBuffer.allocate((int) Math.min(length, channel.size() - offset));
+            while (range.hasRemaining() && channel.read(range, offset + range.position()) > 0) {
+                //Keep reading until the range is full
+            }
+            return range.array();
+        } catch (CipherStreamException ex) {
+            //The channel can only throw IOExceptions; callers of this get the real error
+            throw ex.getCause();
         }
+    }
 
-        //Save data to a file
-        OutputStream out = null;
-        try {
-            //Remove ".enc" extension
-            String oldFilePath = encryptedFile.getCanonicalPath();
-            String newFilePath = oldFilePath.substring(0, oldFilePath.length()-4);
-            //Get original extension
-            int indexOfExtension = newFilePath.indexOf(".");
-            String extension = newFilePath.substring(indexOfExtension);
-            //Add " [decrypted]" just before the file's real extension
-            newFilePath = newFilePath.substring(0, indexOfExtension) + " [decrypted]"
-                    + extension;
-
-            out = new BufferedOutputStream(
-                    new FileOutputStream(newFilePath, true));
-            if (decryptedBytes != null) {
-                out.write(decryptedBytes);
+    /**
+     * Checks that an encrypted file is intact, without decrypting it or writing anything.
+     *
+     * @param encryptedFile
+     *          Previously encrypted file
+     * @param key
+     *          User-given key
+     * @param options
+     *          How many threads to check the file with, and how large their buffers are
+     * @param listener
+     *          Receives the check's progress
+     * @return
+     *          Indexes of the corrupted segments; empty if the file is intact
+     * @throws InvalidKeyException
+     *          If the key is wrong
+     */
+    public List<Long> verifyFile(File encryptedFile, byte[] key, CipherOptions options, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        CipherMetrics metrics = CipherMetrics.getShared();
+        long jobStart = metrics.jobStarted();
+        CipherOptions tuned = AdaptiveTuner.getShared().tune(options, encryptedFile.length(), layout,
+                EncryptionDirection.DECRYPT);
+        List<Long> corrupted;
+        try (ProgressTracker tracker = new ProgressTracker(listener, encryptedFile.length(),
+                options.getProgressInterval())) {
+            corrupted = new IntegrityVerifier(tuned.getThreads(), tuned.getBufferSize())
+                    .verify(encryptedFile, key, tracker);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            metrics.jobFinished(jobStart, false);
+            throw ex;
+        }
+        metrics.jobFinished(jobStart, true);
+
+        listener.updateProgress(corrupted.isEmpty()
+                ? "File is intact."
+                : corrupted.size() + " segment(s) are corrupted.");
+        return corrupted;
+    }
+
+    /**
+     * Picks the engine that matches the given options and runs it.
+     * Compressed files go through the stream engine, which compresses blocks in parallel.
+     * Otherwise, multi-threaded and memory-mapped jobs process whole segments concurrently,
+     * single-threaded jobs overlap their read/cipher/write stages if a pipeline
+     * depth is set, and otherwise everything happens one step at a time.
+     * Only the stream engine doesn't save checkpoints, so only its jobs can't be resumed.
+     */
+    private void runEngine(File file, File newFile, byte[] key, EncryptionDirection type, SegmentLayout layout,
+                           CipherOptions options, LongConsumer onSegmentDone, JobCheckpoint checkpoint,
+                           AdaptiveThrottle throttle)
+            throws IOException, GeneralSecurityException {
+        //Compressed segments don't line up with the file's, so compression only works as a stream
+        if (type == EncryptionDirection.ENCRYPT
+                ? options.getCompression() != Compression.NONE
+                : isCompressed(file)) {
+            processSequentially(file, newFile, key, type, layout, options, onSegmentDone);
+        } else if (options.getThreads() > 1 || options.getIoBackend() == IoBackend.MAPPED) {
+            new ParallelCipherEngine(layout, options.getThreads(), options.getBufferSize(),
+                    options.getIoBackend(), throttle, options.getSyncIntervalBytes(), options.getSyncIntervalMillis())
+                    .process(file, newFile, key, type, onSegmentDone, checkpoint);
+        } else if (options.getPipelineDepth() > 0) {
+            new PipelinedCipherEngine(layout, options.getPipelineDepth(), options.getBufferSize(),
+                    options.getIoBackend(), options.getSyncIntervalBytes(), options.getSyncIntervalMillis())
+                    .process(file, newFile, key, type, onSegmentDone, checkpoint);
+        } else if (options.getIoBackend() == IoBackend.STREAM) {
+            processSequentially(file, newFile, key, type, layout, options, onSegmentDone);
+        } else {
+            new ParallelCipherEngine(layout, 1, options.getBufferSize(), options.getIoBackend(), null,
+                    options.getSyncIntervalBytes(), options.getSyncIntervalMillis())
+                    .process(file, newFile, key, type, onSegmentDone, checkpoint);
+        }
+    }
+
+    private void processSequentially(File file, File newFile, byte[] key, EncryptionDirection type,
+                                     SegmentLayout layout, CipherOptions options, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        StreamingCipherEngine engine = new StreamingCipherEngine(layout, options.getBufferSize(),
+                options.getCompression(), options.getThreads());
+
+        //Reads file as bytes and encrypts/decrypts it
+        //Processed one small buffer at a time so that large (>2GB) files
+        //can be encrypted and decrypted, too
+        try (InputStream inputStream = new FileInputStream(file);
+             FileChannel channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DurableOutput output = new DurableOutput(channel, options.getSyncIntervalBytes(),
+                     options.getSyncIntervalMillis());
+             OutputStream outputStream = new BufferedOutputStream(output.newOutputStream(0))) {
+            engine.process(inputStream, outputStream, key, type, onSegmentDone);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Layout new files of a job are encrypted with: the segment size of
+     * {@link #layout}, in the mode and provider the options ask for, or the
+     * ones the {@link CipherSelector} picks.
+     *
+     * A job that carries on with an existing output (resuming a part file, or
+     * rewriting an earlier encryption incrementally) keeps the mode and provider
+     * that output was made with, unless the options ask for others. Otherwise a
+     * benchmark picking differently than last time would throw the output away.
+     *
+     * @param inputSize
+     *          Size of the job's input, if known
+     * @param existingOutput
+     *          Output the job may carry on with; may be null or not exist
+     */
+    private SegmentLayout layoutFor(CipherOptions options, long inputSize, EncryptionDirection type,
+                                    File existingOutput) {
+        //Files without a header have no mode to choose
+        if (type == EncryptionDirection.DECRYPT || !layout.isAuthenticated()) {
+            return layout;
+        }
+
+        FileHeader existing = readExistingHeader(existingOutput);
+        if (existing != null
+                && existing.getMode().isAllowedForNewFiles()
+                && (options.getMode() == null || options.getMode() == existing.getMode())
+                && (options.getProvider() == null || options.getProvider().equals(existing.getProvider()))) {
+            CipherOptions kept = new CipherOptions(options);
+            kept.setMode(existing.getMode());
+            //A provider that isn't installed here is left to the selector, within the same mode
+            if (existing.getProvider() != null && Security.getProvider(existing.getProvider()) != null) {
+                kept.setProvider(existing.getProvider());
             }
-            out.close();
+            options = kept;
+        }
+        CipherSelector.Candidate cipher = CipherSelector.getShared().select(options, inputSize);
+        return FileHeader.newLayout(layout.getPlainSegmentSize(), cipher.getMode(), cipher.getProvider());
+    }
+
+    /**
+     * @return
+     *          Header of an earlier output of a job, or null if there's none or it can't be read
+     */
+    private static FileHeader readExistingHeader(File output) {
+        if (output == null || !output.isFile()) {
+            return null;
+        }
+        try {
+            return readHeader(output);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            return null;
         }
     }
 
+    private static boolean isCompressed(File encryptedFile) throws IOException {
+        FileHeader header = readHeader(encryptedFile);
+        return header != null && header.getCompression() != Compression.NONE;
+    }
+
+    /**
+     * @return
+     *          Header of the encrypted file, or null if it has none
+     */
+    private static FileHeader readHeader(File encryptedFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ)) {
+            return FileHeader.read(channel);
+        }
+    }
+
+    /**
+     * Makes the name of the file that results from encrypting or decrypting
+     * the given file.
+     * Encrypted files get a ".enc" extension; decrypted files have it removed
+     * and get " [decrypted]" added just before their real extension.
+     *
+     * @param file
+     *          File to be encrypted or decrypted
+     * @param type
+     *          If the file will be encrypted or decrypted
+     * @return
+     *          File that the result will be saved to
+     */
+    public static File getOutputFile(File file, EncryptionDirection type) throws IOException {
+        File canonicalFile = file.getCanonicalFile();
+
+        if (type == EncryptionDirection.ENCRYPT) {
+            return new File(canonicalFile.getPath() + ".enc");
+        }
+
+        //Remove ".enc" extension
+        String newFileName = canonicalFile.getName().substring(0, canonicalFile.getName().length() - 4);
+        //Get original extension, if there is one
+        int indexOfExtension = newFileName.indexOf(".");
+        if (indexOfExtension < 0) {
+            indexOfExtension = newFileName.length();
+        }
+        String extension = newFileName.substring(indexOfExtension);
+        //Add " [decrypted]" just before the file's real extension
+        newFileName = newFileName.substring(0, indexOfExtension) + " [decrypted]"
+                + extension;
+
+        return new File(canonicalFile.getParentFile(), newFileName);
+    }
+
 }
@@ -1,16 +1,24 @@
 package simplecipheraes;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
 import javafx.application.Application;
+import javafx.collections.FXCollections;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Paint;
 import javafx.stage.Stage;
@@ -23,14 +31,20 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * GUI Driver for the simple AES cipher.
  * Includes a main GUI for typing in a password and selecting
  * options to encrypt or decrypt files. A JFileChooser is used
- * to select the user's file. A message is set below the buttons
- * showing the progress of the user's command.
+ * to select the user's files. Each file becomes a job in a
+ * {@link JobScheduler}, shown as a row with its own progress and
+ * a button to cancel it, so many files can be queued at once.
  *
  * @author dPow
  */
 public class SimpleCipherGUI extends Application {
     AppProgressText progressText = new AppProgressText();
     String filePath;
+    //Made when the first files are queued, so the window shows up without waiting on them
+    SimpleCipherAES cipher;
+    JobScheduler scheduler;
+    VBox jobList = new VBox(6);
+    List<JobRow> jobRows = new ArrayList<>();
 
     public SimpleCipherGUI() {
         //set initial file-open dialog to current directory
@@ -39,79 +53,100 @@ public class SimpleCipherGUI extends Application {
 
     @Override
     public void start(Stage stage) throws Exception {
-        SimpleCipherAES cipher = new SimpleCipherAES(this.progressText);
-
         //Password field
         PasswordField textField = new PasswordField();
 
-        //Add buttons and their functions
-        Button encrypt = new Button("Encrypt file");
-        encrypt.setOnAction((ActionEvent event) -> {
-            byte[] key = cipher.hashKey(textField.getText());
-            if (key == null) { //Prevent encrypting with blank key
-                this.progressText.updateProgress("Please type in a password.");
-            } else {
-                File file = openFileExplorer("Encrypt");
-                if (file == null) {
-                    this.progressText.updateProgress("Something went wrong with selecting your file.");
-                } else {
-                    //Remove password from text field to prevent people from peeking
-                    //over your shoulder
-                    textField.setText("");
-                    //Let user know the file is being loaded
-                    this.progressText.updateProgress("Loading...");
-                    //Process file
-                    cipher.processFile(file, key, EncryptionDirection.ENCRYPT);
-                }
-            }
-        });
+        //Priority of the files queued next
+        ChoiceBox<CipherJob.Priority> priority = new ChoiceBox<>(
+                FXCollections.observableArrayList(CipherJob.Priority.values()));
+        priority.setValue(CipherJob.Priority.NORMAL);
 
-        Button decrypt = new Button("Decrypt file");
-        decrypt.setOnAction((ActionEvent event) -> {
-            byte[] key = cipher.hashKey(textField.getText());
-            if (key == null) {
-                this.progressText.updateProgress("Please type in a password.");
-            } else {
-                File file = openFileExplorer("Decrypt");
-                if (file == null) {
-                    this.progressText.updateProgress("Something went wrong with selecting your file.");
-                } else {
-                    //Remove password from text field to prevent people from peeking
-                    //over your shoulder
-                    textField.setText("");
-                    //Let user know the file is being loaded
-                    this.progressText.updateProgress("Loading...");
-                    //Process file
-                    cipher.processFile(file, key, EncryptionDirection.DECRYPT);
-                }
-            }
+        //Add buttons and their functions
+        Button encrypt = new Button("Encrypt files");
+        encrypt.setOnAction((ActionEvent event) ->
+                queueFiles(textField, EncryptionDirection.ENCRYPT, priority.getValue()));
+
+        Button decrypt = new Button("Decrypt files");
+        decrypt.setOnAction((ActionEvent event) ->
+                queueFiles(textField, EncryptionDirection.DECRYPT, priority.getValue()));
+
+        Button clear = new Button("Clear finished");
+        clear.setOnAction((ActionEvent event) -> {
+            jobRows.removeIf(JobRow::isFinished);
+            jobList.getChildren().setAll(jobRows.stream().map(JobRow::getSceneElement).collect(Collectors.toList()));
         });
 
         addEnterListener(encrypt);
         addEnterListener(decrypt);
 
+        HBox buttons = new HBox(10, encrypt, decrypt, priority, clear);
+        buttons.setAlignment(Pos.CENTER);
+
+        ScrollPane jobs = new ScrollPane(jobList);
+        jobs.setFitToWidth(true);
+        jobs.setPrefHeight(300);
+
         VBox vbox = new VBox();
-        vbox.setPadding(new Insets(50, 10, 0, 10));
+        vbox.setPadding(new Insets(20, 10, 10, 10));
         vbox.setSpacing(10);
-        vbox.setAlignment(Pos.CENTER);
-        vbox.getChildren().addAll(textField, encrypt, decrypt, progressText.getSceneElement());
+        vbox.setAlignment(Pos.TOP_CENTER);
+        vbox.getChildren().addAll(textField, buttons, progressText.getSceneElement(), jobs);
 
         Scene scene = new Scene(vbox, Paint.valueOf("Blue"));
 
         stage.setScene(scene);
         stage.setTitle("Encrypt and Decrypt your Files");
-        stage.setWidth(400);
-        stage.setHeight(400);
-        stage.setResizable(false);
+        stage.setWidth(520);
+        stage.setHeight(520);
 
         stage.show();
     }
 
     @Override
-    public void stop() {
+    public void stop() throws InterruptedException {
+        //Running jobs stop and delete their partial output before the app exits
+        if (scheduler != null) {
+            scheduler.shutdown(5000);
+        }
         System.exit(0);
     }
 
+    /**
+     * Asks for files and queues a job for each of them, with a row showing its progress.
+     */
+    private void queueFiles(PasswordField textField, EncryptionDirection direction, CipherJob.Priority priority) {
+        if (scheduler == null) {
+            cipher = new SimpleCipherAES(this.progressText);
+            scheduler = new JobScheduler(cipher, JobScheduler.DEFAULT_WORKERS);
+            //Lets JConsole show where jobs spend their time
+            CipherMetrics.registerMBeanLater(CipherMetrics.MBEAN_DELAY_MILLIS);
+        }
+
+        byte[] key = cipher.hashKey(textField.getText());
+        if (key == null) { //Prevent encrypting with blank key
+            this.progressText.updateProgress("Please type in a password.");
+            return;
+        }
+
+        String action = direction == EncryptionDirection.ENCRYPT ? "Encrypt" : "Decrypt";
+        List<File> files = openFileExplorer(action);
+        if (files.isEmpty()) {
+            this.progressText.updateProgress("Something went wrong with selecting your files.");
+            return;
+        }
+
+        //Remove password from text field to prevent people from peeking
+        //over your shoulder
+        textField.setText("");
+        this.progressText.updateProgress(files.size() + " file(s) queued to " + action.toLowerCase(Locale.ROOT) + ".");
+        for (File file : files) {
+            JobRow row = new JobRow(action + " " + file.getName());
+            row.bind(scheduler.submit(file, key, direction, new CipherOptions(), priority, row));
+            jobRows.add(row);
+            jobList.getChildren().add(row.getSceneElement());
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -140,9 +175,11 @@ public class SimpleCipherGUI extends Application {
      * @param buttonText
      *          Text to show on the action button
      * @return
-     *          File selected that will be encrypted or decrypted
+     *          Files selected that will be encrypted or decrypted; empty if none were
      */
-    public File openFileExplorer(String buttonText) {
+    public List<File> openFileExplorer(String buttonText) {
+        //Set before the chooser is made, so it doesn't have to update its UI afterwards
+        SwingLookAndFeel.install();
         JFileChooser fileChooser = new JFileChooser(this.filePath){
 
             @Override
@@ -157,20 +194,9 @@ public class SimpleCipherGUI extends Application {
             }
         };
 
-        //First, change to a nice LookAndFeel
-        try {
-            //UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
-            UIManager.setLookAndFeel("com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel");
-        } catch (ClassNotFoundException | InstantiationException |
-                IllegalAccessException | UnsupportedLookAndFeelException ex) {
-            System.err.println(ex.getClass());
-        }
-
-        //Update the JFileChooser's look and feel
-        fileChooser.updateUI();
-
         //Allow the JFileChooser to see files and directories instead of only files
         fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fileChooser.setMultiSelectionEnabled(true);
 
         //Set the decryption to only show ".enc" files
         if (buttonText.equals("Decrypt")) {
@@ -180,15 +206,40 @@ public class SimpleCipherGUI extends Application {
 
         //Encrypt or decryptFile the selected file
         int fileChoice = fileChooser.showDialog(null, buttonText);
+        List<File> selectedFiles = new ArrayList<>();
         if (fileChoice == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = fileChooser.getSelectedFile();
-            if (selectedFile.isFile()) {
-                this.filePath = selectedFile.getAbsolutePath();
-                return selectedFile;
+            for (File selectedFile : fileChooser.getSelectedFiles()) {
+                if (selectedFile.isFile()) {
+                    this.filePath = selectedFile.getAbsolutePath();
+                    selectedFiles.add(selectedFile);
+                }
             }
         }
 
-        return null;
+        return selectedFiles;
+    }
+
+    /**
+     * Switches Swing to a nicer look and feel. Done in a class of its own so
+     * that it happens once, the first time a file dialog is opened, and Swing
+     * isn't loaded at all before then.
+     */
+    private static class SwingLookAndFeel {
+        static {
+            try {
+                //UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
+                UIManager.setLookAndFeel("com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel");
+            } catch (ClassNotFoundException | InstantiationException |
+                    IllegalAccessException | UnsupportedLookAndFeelException ex) {
+                System.err.println(ex.getClass());
+            }
+        }
+
+        /**
+         * Does nothing itself; calling it runs the setup above, the first time only.
+         */
+        static void install() {
+        }
     }
 
 }
@@ -0,0 +1,115 @@
+package simplecipheraes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.function.LongConsumer;
+import javax.crypto.Cipher;
+
+/**
+ * Encrypts or decrypts a stream using {@link Cipher#update} so that only two
+ * small buffers are ever needed, regardless of how large the file is.
+ * The input is read a chunk at a time into a {@link SegmentCipherOutputStream},
+ * which finalizes the cipher at each segment boundary of the {@link SegmentLayout}.
+ *
+ * When encrypting, the file is written with the given layout, and optionally
+ * compressed first. When decrypting, the layout and compression are read from
+ * the file's {@link FileHeader}, and the key is checked before anything is decrypted.
+ *
+ * Not thread-safe; use one engine per job.
+ */
+public class StreamingCipherEngine {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final SegmentLayout layout;
+    private final Compression compression;
+    private final int compressionThreads;
+    private final byte[] inputBuffer;
+
+    public StreamingCipherEngine() {
+        this(FileHeader.newLayout(FileHeader.DEFAULT_SEGMENT_SIZE), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param layout
+     *          Layout of the files this engine encrypts
+     * @param bufferSize
+     *          Size of the chunks the input is read in
+     */
+    public StreamingCipherEngine(SegmentLayout layout, int bufferSize) {
+        this(layout, bufferSize, Compression.NONE, 1);
+    }
+
+    /**
+     * @param layout
+     *          Layout of the files this engine encrypts
+     * @param bufferSize
+     *          Size of the chunks the input is read in
+     * @param compression
+     *          How files are compressed before they're encrypted
+     * @param compressionThreads
+     *          Number of blocks compressed or decompressed at once
+     */
+    public StreamingCipherEngine(SegmentLayout layout, int bufferSize,
+                                 Compression compression, int compressionThreads) {
+        if (bufferSize < SegmentLayout.BLOCK_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + SegmentLayout.BLOCK_SIZE);
+        }
+        this.layout = layout;
+        this.compression = compression;
+        this.compressionThreads = compressionThreads;
+        this.inputBuffer = new byte[bufferSize];
+        CipherMetrics.getShared().recordAllocation(inputBuffer.length);
+    }
+
+    /**
+     * Reads the whole input stream, encrypting or decrypting it into the output stream.
+     * Neither stream is closed.
+     *
+     * @param in
+     *          Stream to read from
+     * @param out
+     *          Stream to write the result to
+     * @param key
+     *          User-given key
+     * @param direction
+     *          If the input will be encrypted or decrypted
+     * @param onSegmentDone
+     *          Called with the total number of input bytes processed so far
+     *          each time a chunk is read; may be null
+     * @return
+     *          Total number of input bytes processed (before compression, if encrypting)
+     */
+    public long process(InputStream in, OutputStream out, byte[] key,
+                        EncryptionDirection direction, LongConsumer onSegmentDone)
+            throws IOException, GeneralSecurityException {
+        SegmentCipherOutputStream cipherStream = new SegmentCipherOutputStream(out, key, direction,
+                layout, compression, compressionThreads, inputBuffer.length);
+        long totalBytesRead = 0;
+
+        CipherMetrics metrics = CipherMetrics.getShared();
+        try {
+            long start = System.nanoTime();
+            int bytesRead;
+            while ((bytesRead = in.read(inputBuffer)) != -1) {
+                metrics.record(CipherMetrics.Stage.READ, start, bytesRead);
+                cipherStream.write(inputBuffer, 0, bytesRead);
+
+                totalBytesRead += bytesRead;
+                if (onSegmentDone != null) {
+                    onSegmentDone.accept(totalBytesRead);
+                }
+                start = System.nanoTime();
+            }
+            cipherStream.finish();
+        } catch (CipherStreamException ex) {
+            //Callers tell a wrong key or a damaged file apart by its exception
+            throw ex.getCause();
+        } finally {
+            cipherStream.abort();
+        }
+
+        return totalBytesRead;
+    }
+}
@@ -0,0 +1,183 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Steers an {@link AdaptiveThrottle} through windows of given throughputs and
+ * stage timings, checking which way it moves, and checks which options the
+ * {@link AdaptiveTuner} picks and which it leaves alone.
+ */
+public class AdaptiveTuningTest {
+    private static final int MAX_THREADS = 6;
+    private static final long[] IO_BOUND = stageNanos(1_000, 9_000);
+    private static final long[] CIPHER_BOUND = stageNanos(9_000, 1_000);
+
+    private static long[] stageNanos(long cipherNanos, long ioNanos) {
+        long[] stageNanos = new long[CipherMetrics.Stage.values().length];
+        stageNanos[CipherMetrics.Stage.CIPHER.ordinal()] = cipherNanos;
+        stageNanos[CipherMetrics.Stage.READ.ordinal()] = ioNanos / 2;
+        stageNanos[CipherMetrics.Stage.WRITE.ordinal()] = ioNanos - ioNanos / 2;
+        return stageNanos;
+    }
+
+    /**
+     * A throttle whose windows only end when the test says so.
+     */
+    private static AdaptiveThrottle newThrottle() {
+        return new AdaptiveThrottle(MAX_THREADS, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs a window in which one segment spent the given time in each stage.
+     *
+     * @return
+     *          The limit after the window
+     */
+    private static int window(AdaptiveThrottle throttle, double throughput, long[] stageNanos)
+            throws InterruptedException {
+        throttle.acquire();
+        throttle.release(1, stageNanos);
+        throttle.adjust(throughput);
+        return throttle.getLimit();
+    }
+
+    @Test
+    public void firstWindowOnlyMeasures() throws Exception {
+        AdaptiveThrottle throttle = newThrottle();
+        assertEquals(MAX_THREADS, throttle.getLimit());
+        assertEquals(MAX_THREADS, window(throttle, 100, IO_BOUND));
+    }
+
+    @Test
+    public void stageTimingsBreakTies() throws Exception {
+        AdaptiveThrottle ioBound = newThrottle();
+        window(ioBound, 100, IO_BOUND);
+        //Within the noise, so the timings decide: waiting on the disk sheds a thread
+        assertEquals(MAX_THREADS - 1, window(ioBound, 101, IO_BOUND));
+
+        AdaptiveThrottle cipherBound = newThrottle();
+        window(cipherBound, 100, CIPHER_BOUND);
+        window(cipherBound, 100, IO_BOUND);
+        window(cipherBound, 100, IO_BOUND);
+        assertEquals(MAX_THREADS - 2, cipherBound.getLimit());
+        //...and ciphering gets one back
+        assertEquals(MAX_THREADS - 1, window(cipherBound, 100, CIPHER_BOUND));
+    }
+
+    @Test
+    public void keepsGoingWhileItHelpsAndTurnsBackWhenItHurts() throws Exception {
+        AdaptiveThrottle throttle = newThrottle();
+        window(throttle, 100, IO_BOUND);
+        assertEquals(MAX_THREADS - 1, window(throttle, 100, IO_BOUND));
+
+        //Faster, so on in the same direction, whatever the timings say
+        assertEquals(MAX_THREADS - 2, window(throttle, 120, CIPHER_BOUND));
+        assertEquals(MAX_THREADS - 3, window(throttle, 140, CIPHER_BOUND));
+
+        //Slower, so back, whatever the timings say
+        assertEquals(MAX_THREADS - 2, window(throttle, 100, IO_BOUND));
+        //Faster again, so on back up
+        assertEquals(MAX_THREADS - 1, window(throttle, 130, IO_BOUND));
+    }
+
+    @Test
+    public void staysWithinOneThreadAndAllOfThem() throws Exception {
+        AdaptiveThrottle shrinking = newThrottle();
+        window(shrinking, 100, IO_BOUND);
+        for (int i = 0; i < 2 * MAX_THREADS; i++) {
+            assertTrue(window(shrinking, 100, IO_BOUND) >= 1);
+        }
+        assertEquals(1, shrinking.getLimit());
+
+        AdaptiveThrottle growing = newThrottle();
+        window(growing, 100, CIPHER_BOUND);
+        for (int i = 0; i < 2 * MAX_THREADS; i++) {
+            assertEquals(MAX_THREADS, window(growing, 100, CIPHER_BOUND));
+        }
+    }
+
+    @Test
+    public void allowsOnlyLimitWorkersAtOnce() throws Exception {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(2, Long.MAX_VALUE);
+        throttle.acquire();
+        throttle.acquire();
+
+        CountDownLatch third = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            try {
+                throttle.acquire();
+                third.countDown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        worker.start();
+        assertFalse(third.await(100, TimeUnit.MILLISECONDS));
+
+        throttle.release(1, IO_BOUND);
+        assertTrue(third.await(10, TimeUnit.SECONDS));
+        worker.join();
+    }
+
+    @Test
+    public void tunerKeepsExplicitOptions() {
+        SegmentLayout layout = FileHeader.newLayout(FileHeader.DEFAULT_SEGMENT_SIZE);
+        CipherOptions given = new CipherOptions();
+        given.setThreads(3);
+        given.setBufferSize(12_345);
+        given.setPipelineDepth(7);
+
+        CipherOptions tuned = AdaptiveTuner.getShared().tune(given, 1L << 30, layout, EncryptionDirection.ENCRYPT);
+        assertEquals(3, tuned.getThreads());
+        assertEquals(12_345, tuned.getBufferSize());
+        assertEquals(7, tuned.getPipelineDepth());
+        //The threads were given, so they're not throttled either
+        assertNull(AdaptiveTuner.getShared().newThrottle(given, tuned));
+
+        CipherOptions untuned = new CipherOptions();
+        untuned.setAutoTune(false);
+        assertTrue(untuned == AdaptiveTuner.getShared().tune(untuned, 1L << 30, layout,
+                EncryptionDirection.ENCRYPT));
+        assertNull(AdaptiveTuner.getShared().newThrottle(untuned, untuned));
+    }
+
+    @Test
+    public void tunerGivesSmallFilesOneThread() {
+        SegmentLayout layout = FileHeader.newLayout(FileHeader.DEFAULT_SEGMENT_SIZE);
+        CipherOptions given = new CipherOptions();
+        for (long size : new long[] { 0, 1, 100_000 }) {
+            CipherOptions tuned = AdaptiveTuner.getShared().tune(given, size, layout, EncryptionDirection.ENCRYPT);
+            assertEquals(1, tuned.getThreads(), size + " bytes");
+            assertEquals(0, tuned.getPipelineDepth(), size + " bytes");
+            assertTrue(tuned.getBufferSize() >= AdaptiveTuner.MIN_BUFFER_SIZE, size + " bytes");
+            assertNull(AdaptiveTuner.getShared().newThrottle(given, tuned), size + " bytes");
+        }
+    }
+
+    @Test
+    public void tunerSpreadsLargeFilesOverTheCores() {
+        SegmentLayout layout = FileHeader.newLayout(FileHeader.DEFAULT_SEGMENT_SIZE);
+        CipherOptions given = new CipherOptions();
+        long size = 64L << 30;
+        CipherOptions tuned = AdaptiveTuner.getShared().tune(given, size, layout, EncryptionDirection.ENCRYPT);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        assertTrue(tuned.getThreads() >= 1 && tuned.getThreads() <= cores, tuned.getThreads() + " threads");
+        assertTrue(tuned.getBufferSize() <= FileHeader.DEFAULT_SEGMENT_SIZE, tuned.getBufferSize() + " bytes");
+        //A single thread gets the stages overlapped instead; several get throttled
+        if (tuned.getThreads() == 1) {
+            assertTrue(tuned.getPipelineDepth() > 0);
+        } else {
+            assertEquals(0, tuned.getPipelineDepth());
+            assertNotNull(AdaptiveTuner.getShared().newThrottle(given, tuned));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Packs files of many sizes into an archive, then lists it and extracts
+ * some of its files without the others.
+ */
+public class ArchiveTest {
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    /**
+     * Empty files, small ones, and a few that span several segments of the archive.
+     */
+    private List<File> makeFiles() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int size = i % 10 == 9 ? FileHeader.DEFAULT_SEGMENT_SIZE + i : i * i * 37;
+            File file = TestFiles.write(directory, "files/dir" + (i % 3) + "/file" + i + ".bin",
+                    TestFiles.randomBytes(size, i));
+            file.setLastModified(1_600_000_000_000L + i * 1000L);
+            files.add(file);
+        }
+        return files;
+    }
+
+    @Test
+    public void listsEveryFile() throws Exception {
+        List<File> files = makeFiles();
+        File archive = new File(directory.toFile(), "files.pack");
+        List<ArchiveEntry> packed = cipher.packFiles(files, archive, TestFiles.KEY, new CipherOptions(),
+                TestFiles.NO_PROGRESS);
+        assertFalse(new File(archive.getPath() + SimpleCipherAES.PART_SUFFIX).exists());
+
+        try (ArchiveReader reader = cipher.openArchive(archive, TestFiles.KEY)) {
+            List<ArchiveEntry> entries = new ArrayList<>(reader.getEntries());
+            assertEquals(files.size(), entries.size());
+            assertEquals(packed.size(), entries.size());
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                ArchiveEntry entry = entries.get(i);
+                assertEquals(ArchiveWriter.entryName(file.toPath()), entry.getName());
+                assertEquals(file.length(), entry.getLength(), entry.getName());
+                assertEquals(file.lastModified(), entry.getLastModified(), entry.getName());
+                assertArrayEquals(TestFiles.read(file), reader.read(entry), entry.getName());
+            }
+            assertNull(reader.getEntry("not/in/the/archive"));
+        }
+    }
+
+    @Test
+    public void unpacksOnlyNamedFiles() throws Exception {
+        List<File> files = makeFiles();
+        File archive = new File(directory.toFile(), "files.pack");
+        cipher.packFiles(files, archive, TestFiles.KEY, new CipherOptions(), TestFiles.NO_PROGRESS);
+
+        //A small file, and a large one spanning segments shared with its neighbours
+        List<File> wanted = List.of(files.get(4), files.get(19));
+        File outputDirectory = new File(directory.toFile(), "unpacked");
+        try (ArchiveReader reader = cipher.openArchive(archive, TestFiles.KEY)) {
+            for (File file : wanted) {
+                ArchiveEntry entry = reader.getEntry(ArchiveWriter.entryName(file.toPath()));
+                File extracted = reader.extract(entry, outputDirectory);
+
+                assertEquals(new File(outputDirectory, entry.getName()).getCanonicalFile(),
+                        extracted.getCanonicalFile());
+                assertArrayEquals(TestFiles.read(file), TestFiles.read(extracted), entry.getName());
+                assertEquals(file.lastModified(), extracted.lastModified(), entry.getName());
+            }
+        }
+
+        try (Stream<Path> extracted = Files.walk(outputDirectory.toPath())) {
+            assertEquals(wanted.size(), extracted.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void wrongKeyIsRejected() throws Exception {
+        File archive = new File(directory.toFile(), "files.pack");
+        cipher.packFiles(makeFiles(), archive, TestFiles.KEY, new CipherOptions(), TestFiles.NO_PROGRESS);
+
+        assertThrows(InvalidKeyException.class, () -> cipher.openArchive(archive, cipher.hashKey("wrong")));
+    }
+}
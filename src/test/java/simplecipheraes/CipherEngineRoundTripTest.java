@@ -0,0 +1,148 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Encrypts and decrypts files of the sizes that matter to the segment
+ * arithmetic with every engine, I/O backend and mode, and checks that each
+ * engine, with any number of threads, decrypts what the others encrypted.
+ */
+public class CipherEngineRoundTripTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+
+    //Empty, a single byte, either side of a segment boundary, and several segments with a partial one at the end
+    private static final int[] SIZES = {
+        0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 5 * SEGMENT_SIZE + 123
+    };
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void everyEngineRoundTripsEveryModeAndSize() throws Exception {
+        for (CipherMode mode : CipherMode.values()) {
+            if (!mode.isAllowedForNewFiles()) {
+                continue;
+            }
+            SegmentLayout layout = FileHeader.newLayout(SEGMENT_SIZE, mode, null);
+            Map<String, TestFiles.FileEngine> engines = TestFiles.engines(layout);
+
+            for (int size : SIZES) {
+                byte[] plain = TestFiles.randomBytes(size, size);
+                File input = TestFiles.write(directory, mode + "-" + size + ".bin", plain);
+
+                for (Map.Entry<String, TestFiles.FileEngine> encrypter : engines.entrySet()) {
+                    String job = encrypter.getKey() + ", " + mode + ", " + size + " bytes";
+                    File encrypted = new File(directory.toFile(), "encrypted.enc");
+                    encrypter.getValue().process(input, encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT);
+                    assertEquals(layout.getOutputSize(EncryptionDirection.ENCRYPT, size), encrypted.length(),
+                            "Size of the output of " + job);
+
+                    for (Map.Entry<String, TestFiles.FileEngine> decrypter : engines.entrySet()) {
+                        File decrypted = new File(directory.toFile(), "decrypted.bin");
+                        decrypter.getValue().process(encrypted, decrypted, TestFiles.KEY,
+                                EncryptionDirection.DECRYPT);
+                        assertArrayEquals(plain, TestFiles.read(decrypted),
+                                job + ", decrypted by " + decrypter.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void layoutDoesNotDependOnThreadCount() throws Exception {
+        SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+        SegmentLayout layout = FileHeader.newLayout(SEGMENT_SIZE);
+        int[] threadCounts = { 1, 2, 3, 8 };
+        byte[] plain = TestFiles.randomBytes(20 * SEGMENT_SIZE + 123, 1);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        long segmentCount = layout.getSegmentCount(EncryptionDirection.ENCRYPT, plain.length);
+
+        for (IoBackend ioBackend : IoBackend.values()) {
+            File[] encrypted = new File[threadCounts.length];
+            for (int i = 0; i < threadCounts.length; i++) {
+                encrypted[i] = new File(directory.toFile(), ioBackend + "-" + threadCounts[i] + ".enc");
+                new ParallelCipherEngine(layout, threadCounts[i], TestFiles.BUFFER_SIZE, ioBackend)
+                        .process(input, encrypted[i], TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+            }
+
+            FileHeader expected;
+            try (FileChannel channel = FileChannel.open(encrypted[0].toPath())) {
+                expected = FileHeader.read(channel);
+            }
+            for (int i = 0; i < threadCounts.length; i++) {
+                String job = ioBackend + ", " + threadCounts[i] + " threads";
+                assertEquals(encrypted[0].length(), encrypted[i].length(), job);
+                try (FileChannel channel = FileChannel.open(encrypted[i].toPath())) {
+                    FileHeader header = FileHeader.read(channel);
+                    assertEquals(expected.getLength(), header.getLength(), job);
+                    assertEquals(expected.getSegmentSize(), header.getSegmentSize(), job);
+                    assertEquals(expected.getMode(), header.getMode(), job);
+                }
+                assertEquals(List.of(), cipher.verifyFile(encrypted[i], TestFiles.KEY, new CipherOptions(),
+                        TestFiles.NO_PROGRESS), job);
+
+                //Every segment is where the layout says, whoever wrote it
+                for (long segment = 0; segment < segmentCount; segment++) {
+                    int offset = (int) (segment * SEGMENT_SIZE);
+                    assertArrayEquals(Arrays.copyOfRange(plain, offset, Math.min(plain.length, offset + SEGMENT_SIZE)),
+                            cipher.decryptRange(encrypted[i], TestFiles.KEY, offset, SEGMENT_SIZE),
+                            job + ", segment " + segment);
+                }
+
+                //...so any thread count decrypts what any other one encrypted
+                for (int threads : threadCounts) {
+                    File decrypted = new File(directory.toFile(), "decrypted.bin");
+                    new ParallelCipherEngine(layout, threads, TestFiles.BUFFER_SIZE, ioBackend)
+                            .process(encrypted[i], decrypted, TestFiles.KEY, EncryptionDirection.DECRYPT, null);
+                    assertArrayEquals(plain, TestFiles.read(decrypted), job + ", decrypted on " + threads);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void processedFilesRoundTripInEveryMode() throws Exception {
+        SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+        int segmentSize = FileHeader.DEFAULT_SEGMENT_SIZE;
+        int[] sizes = { 0, 1, segmentSize - 1, segmentSize, segmentSize + 1, 2 * segmentSize + 123 };
+
+        for (CipherMode mode : CipherMode.values()) {
+            if (!mode.isAllowedForNewFiles()) {
+                continue;
+            }
+            CipherOptions options = new CipherOptions();
+            options.setMode(mode);
+
+            for (int size : sizes) {
+                byte[] plain = TestFiles.randomBytes(size, size);
+                File input = TestFiles.write(directory, mode + "-" + size + ".txt", plain);
+
+                File encrypted = cipher.processFileAndWait(input, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                        options, TestFiles.NO_PROGRESS);
+                assertEquals(SimpleCipherAES.getOutputFile(input, EncryptionDirection.ENCRYPT), encrypted);
+                try (FileChannel channel = FileChannel.open(encrypted.toPath())) {
+                    assertEquals(mode, FileHeader.read(channel).getMode(), "Mode of " + encrypted);
+                }
+
+                File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                        options, TestFiles.NO_PROGRESS);
+                assertEquals(mode + "-" + size + " [decrypted].txt", decrypted.getName());
+                assertArrayEquals(plain, TestFiles.read(decrypted), mode + ", " + size + " bytes");
+                assertFalse(new File(decrypted.getPath() + SimpleCipherAES.PART_SUFFIX).exists());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Records into a metrics instance of its own and checks every counter, then
+ * checks that real jobs move the shared counters the way they should.
+ */
+public class CipherMetricsTest {
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    @Test
+    public void stagesCountBytesTimeAndWaits() throws Exception {
+        CipherMetrics metrics = new CipherMetrics();
+        long start = System.nanoTime();
+        Thread.sleep(2);
+        metrics.record(CipherMetrics.Stage.READ, start, 100);
+        metrics.record(CipherMetrics.Stage.READ, System.nanoTime(), 50);
+        metrics.record(CipherMetrics.Stage.CIPHER, System.nanoTime(), 70);
+        metrics.recordWait(CipherMetrics.Stage.WRITE, start);
+        metrics.recordWait(CipherMetrics.Stage.WRITE, System.nanoTime());
+
+        assertEquals(150, metrics.getReadBytes());
+        assertTrue(metrics.getReadNanos() >= 2_000_000, metrics.getReadNanos() + " ns");
+        assertEquals(70, metrics.getCipherBytes());
+        assertEquals(0, metrics.getWriteBytes());
+        assertEquals(0, metrics.getReadWaits());
+        assertEquals(2, metrics.getWriteWaits());
+        assertTrue(metrics.getWriteWaitNanos() >= 2_000_000, metrics.getWriteWaitNanos() + " ns");
+
+        metrics.recordAllocation(4096);
+        metrics.recordAllocation(1000);
+        assertEquals(2, metrics.getBuffersAllocated());
+        assertEquals(5096, metrics.getBytesAllocated());
+    }
+
+    @Test
+    public void syncsKeepTheirTotalAndLongest() throws Exception {
+        CipherMetrics metrics = new CipherMetrics();
+        long start = System.nanoTime();
+        Thread.sleep(5);
+        metrics.recordSync(start);
+        long longest = metrics.getMaxSyncNanos();
+        metrics.recordSync(System.nanoTime());
+
+        assertEquals(2, metrics.getSyncs());
+        assertTrue(longest >= 5_000_000, longest + " ns");
+        assertEquals(longest, metrics.getMaxSyncNanos());
+        assertTrue(metrics.getSyncNanos() >= longest);
+    }
+
+    @Test
+    public void jobsAreCountedAndBucketedByLatency() {
+        CipherMetrics metrics = new CipherMetrics();
+        metrics.jobQueued();
+        metrics.jobQueued();
+        metrics.jobDequeued();
+        assertEquals(1, metrics.getQueuedJobs());
+
+        long first = metrics.jobStarted();
+        long second = metrics.jobStarted();
+        assertEquals(2, metrics.getActiveJobs());
+        metrics.jobFinished(first, true);
+        //Started long enough ago for the slowest bucket
+        metrics.jobFinished(second - 3_600_000_000_000L, false);
+
+        assertEquals(0, metrics.getActiveJobs());
+        assertEquals(1, metrics.getCompletedJobs());
+        assertEquals(1, metrics.getFailedJobs());
+        long[] histogram = metrics.getJobLatencyHistogram();
+        assertEquals(metrics.getJobLatencyBuckets().length, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertEquals("<=10ms", metrics.getJobLatencyBuckets()[0]);
+    }
+
+    @Test
+    public void tuningAndSelectionKeepTheLatest() {
+        CipherMetrics metrics = new CipherMetrics();
+        metrics.recordTuning(4, 65536, 0);
+        metrics.recordTuningAdjustment(3);
+        metrics.recordTuningAdjustment(2);
+        metrics.recordCalibration(123_456);
+        metrics.recordCipherSelection("CTR SunJCE", 789);
+
+        assertEquals(4, metrics.getTunedThreads());
+        assertEquals(65536, metrics.getTunedBufferSize());
+        assertEquals(0, metrics.getTunedPipelineDepth());
+        assertEquals(2, metrics.getTunedActiveThreads());
+        assertEquals(2, metrics.getTuningAdjustments());
+        assertEquals(123_456, metrics.getCalibratedCipherBytesPerSecond());
+        assertEquals("CTR SunJCE", metrics.getSelectedCipher());
+        assertEquals(789, metrics.getSelectedCipherBytesPerSecond());
+
+        //A new job's tuning starts all of its threads again
+        metrics.recordTuning(8, 65536, 0);
+        assertEquals(8, metrics.getTunedActiveThreads());
+    }
+
+    @Test
+    public void resetKeepsJobsInProgress() {
+        CipherMetrics metrics = new CipherMetrics();
+        metrics.record(CipherMetrics.Stage.WRITE, System.nanoTime(), 10);
+        metrics.recordWait(CipherMetrics.Stage.READ, System.nanoTime());
+        metrics.recordAllocation(10);
+        metrics.recordSync(System.nanoTime());
+        metrics.recordTuningAdjustment(1);
+        metrics.jobFinished(metrics.jobStarted(), true);
+        metrics.jobStarted();
+        metrics.jobQueued();
+
+        metrics.reset();
+        assertEquals(0, metrics.getWriteBytes());
+        assertEquals(0, metrics.getReadWaits());
+        assertEquals(0, metrics.getBuffersAllocated());
+        assertEquals(0, metrics.getSyncs());
+        assertEquals(0, metrics.getMaxSyncNanos());
+        assertEquals(0, metrics.getTuningAdjustments());
+        assertEquals(0, metrics.getCompletedJobs());
+        assertEquals(0, metrics.getJobLatencyHistogram()[0]);
+        //Still running and still queued
+        assertEquals(1, metrics.getActiveJobs());
+        assertEquals(1, metrics.getQueuedJobs());
+    }
+
+    @Test
+    public void jsonHasEveryCounter() {
+        CipherMetrics metrics = new CipherMetrics();
+        metrics.record(CipherMetrics.Stage.CIPHER, System.nanoTime(), 4321);
+        metrics.recordAllocation(777);
+        metrics.jobFinished(metrics.jobStarted(), false);
+        metrics.recordCipherSelection("CBC SunJCE", 5);
+
+        String json = metrics.toJson();
+        assertTrue(json.startsWith("{\"stages\":{\"read\":{"), json);
+        assertTrue(json.contains("\"bytes\":4321,"), json);
+        assertTrue(json.contains("\"allocations\":{\"buffers\":1,\"bytes\":777}"), json);
+        assertTrue(json.contains("\"selectedCipher\":\"CBC SunJCE\""), json);
+        assertTrue(json.contains("\"completed\":0,\"failed\":1"), json);
+        assertTrue(json.contains("\"<=10ms\":1"), json);
+        assertTrue(json.endsWith("}}}"), json);
+    }
+
+    @Test
+    public void jobsMoveTheSharedCounters() throws Exception {
+        CipherMetrics metrics = CipherMetrics.getShared();
+        byte[] plain = TestFiles.randomBytes(3 * FileHeader.DEFAULT_SEGMENT_SIZE + 5, 1);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+
+        long completed = metrics.getCompletedJobs();
+        long failed = metrics.getFailedJobs();
+        long readBytes = metrics.getReadBytes();
+        long cipherBytes = metrics.getCipherBytes();
+        long writeBytes = metrics.getWriteBytes();
+        File encrypted = cipher.processFileAndWait(input, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS);
+
+        assertEquals(completed + 1, metrics.getCompletedJobs());
+        assertEquals(failed, metrics.getFailedJobs());
+        assertEquals(0, metrics.getActiveJobs());
+        assertTrue(metrics.getReadBytes() - readBytes >= plain.length);
+        assertTrue(metrics.getCipherBytes() - cipherBytes >= plain.length);
+        assertTrue(metrics.getWriteBytes() - writeBytes >= plain.length);
+
+        assertThrows(InvalidKeyException.class, () -> cipher.processFileAndWait(encrypted, cipher.hashKey("wrong"),
+                EncryptionDirection.DECRYPT, new CipherOptions(), TestFiles.NO_PROGRESS));
+        assertEquals(failed + 1, metrics.getFailedJobs());
+        assertEquals(0, metrics.getActiveJobs());
+
+        //The same numbers over JMX
+        CipherMetrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CipherMetrics.OBJECT_NAME);
+        assertEquals(metrics.getCompletedJobs(), server.getAttribute(name, "CompletedJobs"));
+        assertEquals(metrics.getFailedJobs(), server.getAttribute(name, "FailedJobs"));
+    }
+}
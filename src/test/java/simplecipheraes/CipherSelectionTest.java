@@ -0,0 +1,154 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks what the cipher benchmark picks from, and that the mode and provider
+ * a file is encrypted with are recorded in its header and used to decrypt it.
+ */
+public class CipherSelectionTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final String PROVIDER = "SunJCE";
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private static FileHeader readHeader(File file) throws Exception {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return FileHeader.read(channel);
+        }
+    }
+
+    @Test
+    public void benchmarkOnlyMeasuresModesAllowedForNewFiles() {
+        List<CipherSelector.Candidate> measured = CipherSelector.getShared().benchmark();
+        assertFalse(measured.isEmpty());
+        for (int i = 0; i < measured.size(); i++) {
+            CipherSelector.Candidate candidate = measured.get(i);
+            assertTrue(candidate.getMode().isAllowedForNewFiles(), candidate.toString());
+            assertTrue(candidate.getBytesPerSecond() > 0, candidate.toString());
+            if (i > 0) {
+                assertTrue(measured.get(i - 1).getBytesPerSecond() >= candidate.getBytesPerSecond(),
+                        "Not fastest first at " + candidate);
+            }
+        }
+        //Measured once per run
+        assertTrue(measured == CipherSelector.getShared().benchmark());
+    }
+
+    @Test
+    public void selectionKeepsModeAndProviderFromOptions() {
+        CipherSelector.getShared().benchmark();
+        for (CipherMode mode : new CipherMode[] { CipherMode.CBC, CipherMode.CTR }) {
+            CipherOptions options = new CipherOptions();
+            options.setMode(mode);
+            CipherSelector.Candidate selected = CipherSelector.getShared().select(options, 0);
+            assertEquals(mode, selected.getMode());
+
+            options.setProvider(PROVIDER);
+            selected = CipherSelector.getShared().select(options, 0);
+            assertEquals(mode, selected.getMode());
+            assertEquals(PROVIDER, selected.getProvider());
+        }
+
+        //Without options, the fastest measured candidate
+        CipherSelector.Candidate fastest = CipherSelector.getShared().benchmark().get(0);
+        CipherSelector.Candidate selected = CipherSelector.getShared().select(new CipherOptions(), 0);
+        assertEquals(fastest.getMode(), selected.getMode());
+        assertEquals(fastest.getProvider(), selected.getProvider());
+    }
+
+    @Test
+    public void providerIsRecordedAndUsedToDecrypt() throws Exception {
+        byte[] plain = TestFiles.randomBytes(5 * SEGMENT_SIZE + 123, 1);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        SegmentLayout layout = FileHeader.newLayout(SEGMENT_SIZE, CipherMode.CBC, PROVIDER);
+
+        for (Map.Entry<String, TestFiles.FileEngine> engine : TestFiles.engines(layout).entrySet()) {
+            File encrypted = new File(directory.toFile(), engine.getKey().replace('/', '-') + ".enc");
+            engine.getValue().process(input, encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT);
+
+            FileHeader header = readHeader(encrypted);
+            assertEquals(FileHeader.VERSION, header.getVersion(), engine.getKey());
+            assertEquals(FileHeader.LENGTH, header.getLength(), engine.getKey());
+            assertEquals(CipherMode.CBC, header.getMode(), engine.getKey());
+            assertEquals(PROVIDER, header.getProvider(), engine.getKey());
+            assertEquals(PROVIDER, header.getLayout().getProvider(), engine.getKey());
+
+            File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                    new CipherOptions(), TestFiles.NO_PROGRESS);
+            assertArrayEquals(plain, TestFiles.read(decrypted), engine.getKey());
+        }
+    }
+
+    @Test
+    public void processFileRecordsModeAndProviderFromOptions() throws Exception {
+        byte[] plain = TestFiles.randomBytes(3 * FileHeader.DEFAULT_SEGMENT_SIZE + 5, 2);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        CipherOptions options = new CipherOptions();
+        options.setMode(CipherMode.CBC);
+        options.setProvider(PROVIDER);
+
+        File encrypted = cipher.processFileAndWait(input, TestFiles.KEY, EncryptionDirection.ENCRYPT, options,
+                TestFiles.NO_PROGRESS);
+        FileHeader header = readHeader(encrypted);
+        assertEquals(CipherMode.CBC, header.getMode());
+        assertEquals(PROVIDER, header.getProvider());
+
+        input.delete();
+        File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+    }
+
+    @Test
+    public void headerRoundTrips() throws Exception {
+        FileHeader header = FileHeader.create(TestFiles.KEY, SEGMENT_SIZE, CipherMode.CTR, PROVIDER,
+                Compression.NONE);
+        byte[] bytes = header.toBytes();
+        assertEquals(FileHeader.LENGTH, bytes.length);
+        assertEquals(FileHeader.LENGTH, FileHeader.lengthOf(bytes, bytes.length));
+
+        FileHeader parsed = FileHeader.parse(bytes);
+        assertEquals(CipherMode.CTR, parsed.getMode());
+        assertEquals(PROVIDER, parsed.getProvider());
+        assertEquals(SEGMENT_SIZE, parsed.getSegmentSize());
+        parsed.verifyKey(TestFiles.KEY);
+        assertArrayEquals(bytes, parsed.toBytes());
+
+        //A provider that isn't installed is recorded, but files decrypt with the default one
+        FileHeader missing = FileHeader.parse(FileHeader.create(TestFiles.KEY, SEGMENT_SIZE, CipherMode.CTR,
+                "NotInstalled", Compression.NONE).toBytes());
+        assertEquals("NotInstalled", missing.getProvider());
+        assertNull(missing.getLayout().getProvider());
+
+        //A name that doesn't fit isn't recorded
+        assertNull(FileHeader.create(TestFiles.KEY, SEGMENT_SIZE, CipherMode.CTR, "x".repeat(33),
+                Compression.NONE).getProvider());
+    }
+
+    @Test
+    public void shortVersion2HeaderIsRejected() throws Exception {
+        byte[] bytes = FileHeader.create(TestFiles.KEY, SEGMENT_SIZE, CipherMode.CTR, null, Compression.NONE)
+                .toBytes();
+        ByteBuffer.wrap(bytes).putShort(FileHeader.MAGIC.length + 1, (short) (FileHeader.LENGTH - 1));
+        assertThrows(IOException.class, () -> FileHeader.lengthOf(bytes, bytes.length));
+    }
+}
@@ -0,0 +1,156 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compresses and decompresses data of various sizes on one thread and on
+ * several, fed in chunks that don't line up with the frames, and checks that
+ * incompressible blocks are stored and that damaged frames are rejected.
+ */
+public class CompressionTest {
+    private static final int BLOCK_SIZE = 1000;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Lines of a log file, which compress well.
+     */
+    private static byte[] compressibleBytes(int size) {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; text.length() < size; line++) {
+            text.append("2024-01-01 12:00:").append(line % 60).append(" INFO Processed request ").append(line)
+                    .append('\n');
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] compress(byte[] data, Compression compression, int threads) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (CompressingOutputStream out = new CompressingOutputStream(compressed, compression, BLOCK_SIZE,
+                threads)) {
+            //Chunks that don't line up with the blocks
+            for (int offset = 0; offset < data.length; offset += 333) {
+                out.write(data, offset, Math.min(333, data.length - offset));
+            }
+            out.finish();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed, int threads) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (DecompressingOutputStream out = new DecompressingOutputStream(decompressed, threads)) {
+            //Chunks that split frame headers, too
+            for (int offset = 0; offset < compressed.length; offset += 7) {
+                out.write(compressed, offset, Math.min(7, compressed.length - offset));
+            }
+            out.finish();
+        }
+        return decompressed.toByteArray();
+    }
+
+    @Test
+    public void roundTripsEverySizeAndThreadCount() throws Exception {
+        int[] sizes = { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, 25 * BLOCK_SIZE + 17 };
+        for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.DEFLATE_FAST }) {
+            for (int threads : new int[] { 1, 4 }) {
+                for (int size : sizes) {
+                    String job = compression + ", " + threads + " threads, " + size + " bytes";
+                    byte[] text = compressibleBytes(size);
+                    byte[] compressed = compress(text, compression, threads);
+                    assertArrayEquals(text, decompress(compressed, threads), job);
+                    if (size >= BLOCK_SIZE) {
+                        assertTrue(compressed.length < text.length / 2, job + " compressed to " + compressed.length);
+                    }
+
+                    byte[] random = TestFiles.randomBytes(size, size);
+                    assertArrayEquals(random, decompress(compress(random, compression, threads), threads),
+                            job + ", random");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void incompressibleBlocksAreStored() throws Exception {
+        byte[] random = TestFiles.randomBytes(10 * BLOCK_SIZE + 17, 1);
+        byte[] compressed = compress(random, Compression.DEFLATE, 1);
+        assertEquals(random.length + 11 * CompressingOutputStream.FRAME_HEADER_SIZE, compressed.length);
+
+        //Every frame says it's stored, and holds its block as it is
+        ByteBuffer frames = ByteBuffer.wrap(compressed);
+        for (int offset = 0; offset < random.length; offset += BLOCK_SIZE) {
+            int rawLength = frames.getInt();
+            assertEquals(Math.min(BLOCK_SIZE, random.length - offset), rawLength);
+            assertEquals(rawLength, frames.getInt());
+            byte[] data = new byte[rawLength];
+            frames.get(data);
+            assertArrayEquals(Arrays.copyOfRange(random, offset, offset + rawLength), data);
+        }
+    }
+
+    @Test
+    public void damagedFramesAreRejected() throws Exception {
+        //A frame claiming a block larger than any writer makes is rejected before anything is allocated
+        ByteBuffer oversized = ByteBuffer.allocate(CompressingOutputStream.FRAME_HEADER_SIZE)
+                .putInt(DecompressingOutputStream.MAX_BLOCK_SIZE + 1).putInt(10);
+        assertThrows(IOException.class, () -> decompress(oversized.array(), 1));
+        ByteBuffer largest = ByteBuffer.allocate(CompressingOutputStream.FRAME_HEADER_SIZE + 10)
+                .putInt(DecompressingOutputStream.MAX_BLOCK_SIZE).putInt(10);
+        //Accepted as far as its size goes, and rejected because its data doesn't inflate to it
+        assertThrows(IOException.class, () -> decompress(largest.array(), 1));
+
+        ByteBuffer empty = ByteBuffer.allocate(CompressingOutputStream.FRAME_HEADER_SIZE).putInt(0).putInt(0);
+        assertThrows(IOException.class, () -> decompress(empty.array(), 1));
+        ByteBuffer grown = ByteBuffer.allocate(CompressingOutputStream.FRAME_HEADER_SIZE + 20).putInt(10).putInt(20);
+        assertThrows(IOException.class, () -> decompress(grown.array(), 1));
+
+        byte[] compressed = compress(compressibleBytes(5 * BLOCK_SIZE), Compression.DEFLATE, 1);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 1);
+        assertThrows(IOException.class, () -> decompress(truncated, 1));
+        byte[] corrupted = compressed.clone();
+        corrupted[CompressingOutputStream.FRAME_HEADER_SIZE + 5] ^= (byte) 0xFF;
+        assertThrows(IOException.class, () -> decompress(corrupted, 4));
+    }
+
+    @Test
+    public void compressedFilesRoundTrip() throws Exception {
+        SegmentLayout layout = FileHeader.newLayout(TestFiles.SEGMENT_SIZE);
+        byte[] text = compressibleBytes(20 * TestFiles.SEGMENT_SIZE + 5);
+
+        for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.DEFLATE_FAST }) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            new StreamingCipherEngine(layout, TestFiles.BUFFER_SIZE, compression, 2).process(
+                    new ByteArrayInputStream(text), encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+            assertTrue(encrypted.size() < text.length / 2, compression + " encrypted to " + encrypted.size());
+
+            File encryptedFile = TestFiles.write(directory, compression + ".enc", encrypted.toByteArray());
+            try (FileChannel channel = FileChannel.open(encryptedFile.toPath())) {
+                assertEquals(compression.getId(), FileHeader.read(channel).getCompression().getId());
+            }
+
+            //The header says how to decompress it, so the decrypting engine isn't told
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            new StreamingCipherEngine(layout, TestFiles.BUFFER_SIZE).process(
+                    new ByteArrayInputStream(encrypted.toByteArray()), decrypted, TestFiles.KEY,
+                    EncryptionDirection.DECRYPT, null);
+            assertArrayEquals(text, decrypted.toByteArray(), compression.toString());
+        }
+    }
+}
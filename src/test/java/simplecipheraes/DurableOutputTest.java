@@ -0,0 +1,90 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writes to a job's output out of order and checks how often it's forced to
+ * disk for the byte and time intervals set for it.
+ */
+public class DurableOutputTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    @TempDir
+    Path directory;
+
+    private FileChannel open() throws Exception {
+        return FileChannel.open(new File(directory.toFile(), "output.bin").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes the chunks of the given data back to front, pausing between
+     * writes, and returns the number of forces they caused.
+     */
+    private static long writeBackwards(DurableOutput output, byte[] data, long pauseMillis) throws Exception {
+        long syncsBefore = CipherMetrics.getShared().getSyncs();
+        for (int offset = data.length - CHUNK_SIZE; offset >= 0; offset -= CHUNK_SIZE) {
+            assertEquals(offset + CHUNK_SIZE, output.write(ByteBuffer.wrap(data, offset, CHUNK_SIZE), offset));
+            Thread.sleep(pauseMillis);
+        }
+        //Waits for a force that's still running
+        output.close();
+        return CipherMetrics.getShared().getSyncs() - syncsBefore;
+    }
+
+    @Test
+    public void writesAtPositions() throws Exception {
+        byte[] data = TestFiles.randomBytes(20 * CHUNK_SIZE, 1);
+        try (FileChannel channel = open()) {
+            writeBackwards(new DurableOutput(channel, 0, 0), data, 0);
+
+            ByteBuffer read = ByteBuffer.allocate(data.length + 1);
+            channel.read(read, 0);
+            assertEquals(data.length, read.position());
+            assertArrayEquals(data, Arrays.copyOf(read.array(), data.length));
+        }
+    }
+
+    @Test
+    public void neverForcesWithoutIntervals() throws Exception {
+        try (FileChannel channel = open()) {
+            assertEquals(0, writeBackwards(new DurableOutput(channel, 0, 0),
+                    TestFiles.randomBytes(20 * CHUNK_SIZE, 2), 0));
+        }
+    }
+
+    @Test
+    public void forcesEveryIntervalBytes() throws Exception {
+        try (FileChannel channel = open()) {
+            //Pauses long enough for each force to finish, so none are merged into the next
+            long syncs = writeBackwards(new DurableOutput(channel, 5 * CHUNK_SIZE, 0),
+                    TestFiles.randomBytes(20 * CHUNK_SIZE, 3), 50);
+            assertEquals(4, syncs);
+        }
+    }
+
+    @Test
+    public void forcesEveryIntervalMillis() throws Exception {
+        try (FileChannel channel = open()) {
+            //Forces are only started by writes, so a write after each pause is due one
+            long syncs = writeBackwards(new DurableOutput(channel, 0, 10),
+                    TestFiles.randomBytes(5 * CHUNK_SIZE, 4), 50);
+            assertTrue(syncs >= 4, syncs + " forces");
+
+            //None are due while writes come faster than the interval
+            assertEquals(0, writeBackwards(new DurableOutput(channel, 0, 60_000),
+                    TestFiles.randomBytes(5 * CHUNK_SIZE, 5), 0));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Updates an encrypted file as its plaintext is edited, grown and shrunk,
+ * checking that only the segments that changed are rewritten and that the
+ * result always decrypts and verifies like a freshly encrypted file.
+ */
+public class IncrementalEncryptorTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final SegmentLayout LAYOUT = FileHeader.newLayout(SEGMENT_SIZE);
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private File input;
+    private File encrypted;
+    private File manifestFile;
+
+    private long update(byte[] plain) throws Exception {
+        input = TestFiles.write(directory, "plain.bin", plain);
+        encrypted = new File(directory.toFile(), "plain.bin.enc");
+        manifestFile = new File(encrypted.getPath() + SegmentManifest.SUFFIX);
+        long rewritten = new IncrementalEncryptor(LAYOUT, 3)
+                .encrypt(input, encrypted, manifestFile, TestFiles.KEY, null);
+
+        assertEquals(LAYOUT.getOutputSize(EncryptionDirection.ENCRYPT, plain.length), encrypted.length());
+        assertEquals(List.of(), cipher.verifyFile(encrypted, TestFiles.KEY, new CipherOptions(),
+                TestFiles.NO_PROGRESS));
+        File decrypted = new File(directory.toFile(), "decrypted.bin");
+        new ParallelCipherEngine(LAYOUT, 2, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(encrypted, decrypted, TestFiles.KEY, EncryptionDirection.DECRYPT, null);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+        return rewritten;
+    }
+
+    @Test
+    public void rewritesOnlyChangedSegments() throws Exception {
+        byte[] plain = TestFiles.randomBytes(10 * SEGMENT_SIZE + 100, 1);
+        assertEquals(11, update(plain));
+        assertTrue(manifestFile.isFile());
+        assertEquals(0, update(plain));
+
+        plain[3 * SEGMENT_SIZE + 5] ^= 1;
+        plain[7 * SEGMENT_SIZE] ^= 1;
+        assertEquals(2, update(plain));
+    }
+
+    @Test
+    public void growsAndShrinks() throws Exception {
+        byte[] plain = TestFiles.randomBytes(10 * SEGMENT_SIZE + 100, 2);
+        assertEquals(11, update(plain));
+
+        //The partial last segment fills up, and three more are added after it
+        byte[] grown = Arrays.copyOf(plain, 13 * SEGMENT_SIZE + 50);
+        System.arraycopy(TestFiles.randomBytes(grown.length - plain.length, 3), 0,
+                grown, plain.length, grown.length - plain.length);
+        assertEquals(4, update(grown));
+
+        //Only the new last segment is rewritten; the rest are cut off
+        byte[] shrunk = Arrays.copyOf(grown, 4 * SEGMENT_SIZE + 10);
+        assertEquals(1, update(shrunk));
+
+        //Only the last segment's tag says it's last, so one that becomes last is rewritten unchanged
+        byte[] aligned = Arrays.copyOf(shrunk, 4 * SEGMENT_SIZE);
+        assertEquals(1, update(aligned));
+
+        //...and so is one that stops being last
+        byte[] regrown = Arrays.copyOf(aligned, 6 * SEGMENT_SIZE);
+        System.arraycopy(TestFiles.randomBytes(2 * SEGMENT_SIZE, 4), 0, regrown, aligned.length, 2 * SEGMENT_SIZE);
+        assertEquals(3, update(regrown));
+
+        //An empty file still has one (empty) segment, so it can't pass for a truncated one
+        assertEquals(1, update(new byte[0]));
+        assertEquals(3, update(TestFiles.randomBytes(2 * SEGMENT_SIZE + 1, 5)));
+    }
+
+    @Test
+    public void differentKeyRewritesEverything() throws Exception {
+        byte[] plain = TestFiles.randomBytes(5 * SEGMENT_SIZE, 6);
+        assertEquals(5, update(plain));
+
+        byte[] otherKey = cipher.hashKey("another key");
+        assertEquals(5, new IncrementalEncryptor(LAYOUT, 3).encrypt(input, encrypted, manifestFile, otherKey, null));
+        assertEquals(List.of(), cipher.verifyFile(encrypted, otherKey, new CipherOptions(),
+                TestFiles.NO_PROGRESS));
+    }
+
+    @Test
+    public void failureBeforeWritingKeepsTheFile() throws Exception {
+        byte[] plain = TestFiles.randomBytes(3 * FileHeader.DEFAULT_SEGMENT_SIZE + 100, 7);
+        File source = TestFiles.write(directory, "source.bin", plain);
+        File output = cipher.encryptIncrementally(source, TestFiles.KEY, new CipherOptions(), TestFiles.NO_PROGRESS);
+        File manifest = new File(output.getPath() + SegmentManifest.SUFFIX);
+        byte[] before = TestFiles.read(output);
+
+        //The plaintext can't be read, so nothing is written in place
+        Files.delete(source.toPath());
+        Files.createDirectory(source.toPath());
+        assertThrows(IOException.class, () -> cipher.encryptIncrementally(source, TestFiles.KEY,
+                new CipherOptions(), TestFiles.NO_PROGRESS));
+
+        assertArrayEquals(before, TestFiles.read(output));
+        assertTrue(manifest.isFile());
+    }
+}
@@ -0,0 +1,170 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Crashes jobs part way through and checks that running them again resumes
+ * from the checkpoint when the output still matches it, and starts over when
+ * it doesn't, with the same result either way.
+ */
+public class JobCheckpointTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final int SEGMENT_COUNT = 40;
+    private static final int CRASH_AFTER_SEGMENTS = 20;
+    private static final SegmentLayout LAYOUT = FileHeader.newLayout(SEGMENT_SIZE);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Encrypts on a single thread, saving a checkpoint after every segment, and
+     * crashes once the given number of segments are done.
+     */
+    private void crash(File input, File partFile, File checkpointFile) {
+        ParallelCipherEngine engine = new ParallelCipherEngine(LAYOUT, 1, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL);
+        JobCheckpoint checkpoint = new JobCheckpoint(checkpointFile, input, 1, 60_000);
+        assertThrows(IOException.class, () -> engine.process(input, partFile, TestFiles.KEY,
+                EncryptionDirection.ENCRYPT, bytesDone -> {
+                    if (bytesDone >= (long) CRASH_AFTER_SEGMENTS * SEGMENT_SIZE) {
+                        throw new IllegalStateException("Crashed");
+                    }
+                }, checkpoint));
+        assertTrue(checkpointFile.isFile());
+    }
+
+    /**
+     * Runs the job again, returning the number of input bytes it skipped.
+     */
+    private long resume(File input, File partFile, File checkpointFile) throws Exception {
+        AtomicLong resumedFrom = new AtomicLong();
+        JobCheckpoint checkpoint = new JobCheckpoint(checkpointFile, input);
+        checkpoint.setOnResume(resumedFrom::set);
+        new ParallelCipherEngine(LAYOUT, 2, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(input, partFile, TestFiles.KEY, EncryptionDirection.ENCRYPT, null, checkpoint);
+        checkpoint.delete();
+        return resumedFrom.get();
+    }
+
+    private void assertDecryptsTo(byte[] plain, File encrypted) throws Exception {
+        assertEquals(LAYOUT.getOutputSize(EncryptionDirection.ENCRYPT, plain.length), encrypted.length());
+        File decrypted = new File(directory.toFile(), "decrypted.bin");
+        new ParallelCipherEngine(LAYOUT, 2, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(encrypted, decrypted, TestFiles.KEY, EncryptionDirection.DECRYPT, null);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+    }
+
+    @Test
+    public void resumesFromTruncatedPartFile() throws Exception {
+        byte[] plain = TestFiles.randomBytes(SEGMENT_COUNT * SEGMENT_SIZE - 123, 1);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File partFile = new File(directory.toFile(), "plain.bin.enc.part");
+        File checkpointFile = new File(partFile.getPath() + SimpleCipherAES.CHECKPOINT_SUFFIX);
+
+        crash(input, partFile, checkpointFile);
+        //Everything after the checkpoint is lost, e.g. because it never reached the disk
+        truncate(partFile, LAYOUT.getOutputOffset(EncryptionDirection.ENCRYPT, CRASH_AFTER_SEGMENTS));
+
+        assertEquals((long) CRASH_AFTER_SEGMENTS * SEGMENT_SIZE, resume(input, partFile, checkpointFile));
+        assertFalse(checkpointFile.exists());
+        assertDecryptsTo(plain, partFile);
+    }
+
+    @Test
+    public void startsOverWhenPartFileIsShorterThanCheckpoint() throws Exception {
+        byte[] plain = TestFiles.randomBytes(SEGMENT_COUNT * SEGMENT_SIZE - 123, 2);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File partFile = new File(directory.toFile(), "plain.bin.enc.part");
+        File checkpointFile = new File(partFile.getPath() + SimpleCipherAES.CHECKPOINT_SUFFIX);
+
+        crash(input, partFile, checkpointFile);
+        truncate(partFile, LAYOUT.getOutputOffset(EncryptionDirection.ENCRYPT, CRASH_AFTER_SEGMENTS) - 1);
+
+        assertEquals(0, resume(input, partFile, checkpointFile));
+        assertDecryptsTo(plain, partFile);
+    }
+
+    @Test
+    public void startsOverWhenSourceChanged() throws Exception {
+        byte[] plain = TestFiles.randomBytes(SEGMENT_COUNT * SEGMENT_SIZE - 123, 3);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File partFile = new File(directory.toFile(), "plain.bin.enc.part");
+        File checkpointFile = new File(partFile.getPath() + SimpleCipherAES.CHECKPOINT_SUFFIX);
+
+        crash(input, partFile, checkpointFile);
+        byte[] changed = TestFiles.randomBytes(plain.length + 1, 4);
+        TestFiles.write(directory, "plain.bin", changed);
+
+        assertEquals(0, resume(input, partFile, checkpointFile));
+        assertDecryptsTo(changed, partFile);
+    }
+
+    @Test
+    public void processFileResumesInTheModeItStarted() throws Exception {
+        //The segment size of processFileAndWait, so the part file it finds matches its own layout
+        int segmentSize = FileHeader.DEFAULT_SEGMENT_SIZE;
+        byte[] plain = TestFiles.randomBytes(6 * segmentSize + 123, 5);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File encrypted = SimpleCipherAES.getOutputFile(input, EncryptionDirection.ENCRYPT);
+        File partFile = new File(encrypted.getPath() + SimpleCipherAES.PART_SUFFIX);
+        File checkpointFile = new File(partFile.getPath() + SimpleCipherAES.CHECKPOINT_SUFFIX);
+
+        SegmentLayout cbc = FileHeader.newLayout(segmentSize, CipherMode.CBC, null);
+        JobCheckpoint checkpoint = new JobCheckpoint(checkpointFile, input, 1, 60_000);
+        assertThrows(IOException.class, () -> new ParallelCipherEngine(cbc, 1, TestFiles.BUFFER_SIZE,
+                IoBackend.CHANNEL).process(input, partFile, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                bytesDone -> {
+                    if (bytesDone >= 3L * segmentSize) {
+                        throw new IllegalStateException("Crashed");
+                    }
+                }, checkpoint));
+
+        //Without a mode given, a new job would pick whatever measures fastest. The threads are
+        //given so the tuner can't pick the streaming engine, which doesn't checkpoint.
+        CipherOptions options = new CipherOptions();
+        options.setThreads(2);
+        AtomicLong resumes = new AtomicLong();
+        SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+        cipher.processFileAndWait(input, TestFiles.KEY, EncryptionDirection.ENCRYPT, options,
+                new ProgressListener() {
+                    @Override
+                    public void updateProgress(Progress progress) {
+                    }
+
+                    @Override
+                    public void updateProgress(String message) {
+                        if (message.startsWith("Resuming")) {
+                            resumes.incrementAndGet();
+                        }
+                    }
+                });
+
+        assertEquals(1, resumes.get());
+        assertFalse(partFile.exists());
+        assertFalse(checkpointFile.exists());
+        try (FileChannel channel = FileChannel.open(encrypted.toPath())) {
+            assertEquals(CipherMode.CBC, FileHeader.read(channel).getMode());
+        }
+        File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+    }
+}
@@ -0,0 +1,169 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Queues jobs behind one that keeps the only worker busy, and checks the
+ * order they run in and what cancelling them does, queued or running.
+ */
+public class JobSchedulerTest {
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+    private final JobScheduler scheduler = new JobScheduler(cipher, 1);
+
+    /**
+     * Occupies the worker until released: the job fails straight away, and
+     * its listener holds on to the worker's thread when told so.
+     */
+    private final CountDownLatch blockerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+
+    private CipherJob submitBlocker() throws Exception {
+        File missing = new File(directory.toFile(), "missing.bin.enc");
+        CipherJob blocker = scheduler.submit(missing, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                new CipherOptions(), CipherJob.Priority.HIGH, new ProgressListener() {
+                    @Override
+                    public void updateProgress(Progress progress) {
+                    }
+
+                    @Override
+                    public void updateProgress(String message) {
+                        blockerStarted.countDown();
+                        try {
+                            releaseBlocker.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        assertTrue(blockerStarted.await(10, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    private static List<String> messagesOf(List<String> messages) {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    private static ProgressListener recordingTo(List<String> messages) {
+        return new ProgressListener() {
+            @Override
+            public void updateProgress(Progress progress) {
+            }
+
+            @Override
+            public void updateProgress(String message) {
+                messages.add(message);
+            }
+        };
+    }
+
+    @Test
+    public void runsHighestPriorityFirstInSubmissionOrder() throws Exception {
+        submitBlocker();
+        CipherJob.Priority[] priorities = {
+            CipherJob.Priority.LOW, CipherJob.Priority.NORMAL, CipherJob.Priority.HIGH,
+            CipherJob.Priority.NORMAL, CipherJob.Priority.HIGH, CipherJob.Priority.LOW
+        };
+        List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        List<CipherJob> jobs = new ArrayList<>();
+        for (int i = 0; i < priorities.length; i++) {
+            String name = priorities[i] + "-" + i;
+            File file = TestFiles.write(directory, name + ".bin", TestFiles.randomBytes(1000, i));
+            CipherJob job = scheduler.submit(file, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                    new CipherOptions(), priorities[i], TestFiles.NO_PROGRESS);
+            //Completed on the worker, so in the order the jobs ran
+            job.getResult().whenComplete((output, error) -> finished.add(name));
+            jobs.add(job);
+        }
+        for (CipherJob job : jobs) {
+            assertEquals(CipherJob.State.QUEUED, job.getState());
+        }
+        assertEquals(priorities.length + 1, scheduler.getUnfinishedJobs().size());
+
+        releaseBlocker.countDown();
+        for (CipherJob job : jobs) {
+            job.getResult().get(10, TimeUnit.SECONDS);
+            assertEquals(CipherJob.State.SUCCEEDED, job.getState());
+        }
+        assertEquals(List.of("HIGH-2", "HIGH-4", "NORMAL-1", "NORMAL-3", "LOW-0", "LOW-5"), messagesOf(finished));
+        scheduler.shutdown(10_000);
+    }
+
+    @Test
+    public void cancelledQueuedJobNeverRuns() throws Exception {
+        submitBlocker();
+        File file = TestFiles.write(directory, "queued.bin", TestFiles.randomBytes(1000, 1));
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        CipherJob job = scheduler.submit(file, TestFiles.KEY, EncryptionDirection.ENCRYPT, new CipherOptions(),
+                CipherJob.Priority.NORMAL, recordingTo(messages));
+
+        assertTrue(job.cancel());
+        assertFalse(job.cancel());
+        assertTrue(job.isCancelled());
+        assertEquals(CipherJob.State.CANCELLED, job.getState());
+        assertTrue(job.getResult().isCancelled());
+        assertEquals(List.of("Cancelled."), messagesOf(messages));
+        assertFalse(scheduler.getUnfinishedJobs().contains(job));
+
+        //Nothing runs it once the worker is free
+        releaseBlocker.countDown();
+        scheduler.shutdown(10_000);
+        assertFalse(SimpleCipherAES.getOutputFile(file, EncryptionDirection.ENCRYPT).exists());
+        assertEquals(List.of("Cancelled."), messagesOf(messages));
+    }
+
+    @Test
+    public void cancelledRunningJobStopsAndCleansUp() throws Exception {
+        byte[] plain = TestFiles.randomBytes(3 * FileHeader.DEFAULT_SEGMENT_SIZE, 2);
+        File file = TestFiles.write(directory, "running.bin", plain);
+        File output = SimpleCipherAES.getOutputFile(file, EncryptionDirection.ENCRYPT);
+
+        //A key that's never been stretched at full strength keeps the job busy long enough to cancel it
+        KeyDerivation.getShared().setIterations(KeyDerivation.DEFAULT_ITERATIONS);
+        try {
+            CipherJob job = scheduler.submit(file, cipher.hashKey("not stretched yet"), EncryptionDirection.ENCRYPT,
+                    new CipherOptions(), CipherJob.Priority.NORMAL, TestFiles.NO_PROGRESS);
+            while (job.getState() == CipherJob.State.QUEUED) {
+                Thread.sleep(1);
+            }
+            assertEquals(CipherJob.State.RUNNING, job.getState());
+
+            assertTrue(job.cancel());
+            assertThrows(CancellationException.class, () -> job.getResult().get(30, TimeUnit.SECONDS));
+            assertEquals(CipherJob.State.CANCELLED, job.getState());
+        } finally {
+            KeyDerivation.getShared().setIterations(1000);
+        }
+        assertFalse(output.exists());
+        assertFalse(new File(output.getPath() + SimpleCipherAES.PART_SUFFIX).exists());
+
+        //The worker's thread goes on to the next job as if nothing happened
+        CipherJob next = scheduler.submit(file, TestFiles.KEY, EncryptionDirection.ENCRYPT, new CipherOptions(),
+                CipherJob.Priority.NORMAL, TestFiles.NO_PROGRESS);
+        File encrypted = next.getResult().get(10, TimeUnit.SECONDS);
+        file.delete();
+        File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+        scheduler.shutdown(10_000);
+    }
+}
@@ -0,0 +1,159 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Derives file keys through caches of a few keys, checking when a stretched
+ * key is reused, which one is evicted when the cache is full, and that keys
+ * leaving the cache are overwritten.
+ */
+public class KeyDerivationTest {
+    private static final int ITERATIONS = 1000;
+
+    private static final byte[] KEY_A = TestFiles.randomBytes(16, 1);
+    private static final byte[] KEY_B = TestFiles.randomBytes(16, 2);
+    private static final byte[] KEY_C = TestFiles.randomBytes(16, 3);
+    private static final byte[] SALT = TestFiles.randomBytes(KeyDerivation.SALT_SIZE, 4);
+    private static final byte[] FILE_SALT = TestFiles.randomBytes(KeyDerivation.SALT_SIZE, 5);
+
+    private static boolean isZero(byte[] bytes) {
+        return Arrays.equals(bytes, new byte[bytes.length]);
+    }
+
+    @Test
+    public void sameKeyIsStretchedOnce() throws Exception {
+        KeyDerivation derivation = new KeyDerivation(4);
+        byte[] first = derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT);
+        assertEquals(1, derivation.getMisses());
+        assertEquals(0, derivation.getHits());
+
+        //Callers get copies, so overwriting one changes nothing for the next
+        byte[] copy = first.clone();
+        Arrays.fill(first, (byte) 0);
+        assertArrayEquals(copy, derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT));
+        assertEquals(1, derivation.getHits());
+
+        //Another file of the same batch still reuses the stretched key, but gets a key of its own
+        byte[] otherFile = derivation.fileKey(KEY_A, SALT, ITERATIONS, TestFiles.randomBytes(16, 6));
+        assertEquals(2, derivation.getHits());
+        assertFalse(Arrays.equals(copy, otherFile));
+
+        //A different salt or iteration count is a different stretched key
+        derivation.fileKey(KEY_A, TestFiles.randomBytes(KeyDerivation.SALT_SIZE, 7), ITERATIONS, FILE_SALT);
+        derivation.fileKey(KEY_A, SALT, ITERATIONS + 1, FILE_SALT);
+        assertEquals(3, derivation.getMisses());
+        assertEquals(2, derivation.getHits());
+    }
+
+    @Test
+    public void concurrentRequestsWaitForOneDerivation() throws Exception {
+        KeyDerivation derivation = new KeyDerivation(4);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<byte[]>> keys = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                keys.add(pool.submit((Callable<byte[]>) () -> {
+                    start.await();
+                    return derivation.fileKey(KEY_A, SALT, 100_000, FILE_SALT);
+                }));
+            }
+            start.countDown();
+
+            byte[] expected = keys.get(0).get();
+            for (Future<byte[]> key : keys) {
+                assertArrayEquals(expected, key.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, derivation.getMisses());
+        assertEquals(threads - 1, derivation.getHits());
+    }
+
+    @Test
+    public void leastRecentlyUsedKeyIsEvictedAndOverwritten() throws Exception {
+        KeyDerivation derivation = new KeyDerivation(2);
+        derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT);
+        derivation.fileKey(KEY_B, SALT, ITERATIONS, FILE_SALT);
+        //A is now the most recently used, so B goes first
+        derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT);
+        byte[] stretchedA = derivation.cachedKey(KEY_A, SALT, ITERATIONS);
+        byte[] stretchedB = derivation.cachedKey(KEY_B, SALT, ITERATIONS);
+        assertFalse(isZero(stretchedB));
+
+        derivation.fileKey(KEY_C, SALT, ITERATIONS, FILE_SALT);
+        assertEquals(1, derivation.getEvictions());
+        assertNull(derivation.cachedKey(KEY_B, SALT, ITERATIONS));
+        assertTrue(isZero(stretchedB));
+        assertTrue(derivation.cachedKey(KEY_A, SALT, ITERATIONS) == stretchedA);
+        assertFalse(isZero(stretchedA));
+
+        //B has to be stretched again, and pushes out A, which C has since overtaken
+        long misses = derivation.getMisses();
+        derivation.fileKey(KEY_B, SALT, ITERATIONS, FILE_SALT);
+        assertEquals(misses + 1, derivation.getMisses());
+        assertEquals(2, derivation.getEvictions());
+        assertTrue(isZero(stretchedA));
+        assertNotNull(derivation.cachedKey(KEY_C, SALT, ITERATIONS));
+    }
+
+    @Test
+    public void clearOverwritesEveryKey() throws Exception {
+        KeyDerivation derivation = new KeyDerivation(4);
+        derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT);
+        derivation.fileKey(KEY_B, SALT, ITERATIONS, FILE_SALT);
+        byte[] stretchedA = derivation.cachedKey(KEY_A, SALT, ITERATIONS);
+        byte[] stretchedB = derivation.cachedKey(KEY_B, SALT, ITERATIONS);
+
+        derivation.clear();
+        assertTrue(isZero(stretchedA));
+        assertTrue(isZero(stretchedB));
+        assertNull(derivation.cachedKey(KEY_A, SALT, ITERATIONS));
+
+        //Cleared keys are derived again, to the same value
+        long misses = derivation.getMisses();
+        byte[] again = derivation.fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT);
+        assertEquals(misses + 1, derivation.getMisses());
+        assertArrayEquals(new KeyDerivation(1).fileKey(KEY_A, SALT, ITERATIONS, FILE_SALT), again);
+    }
+
+    @Test
+    public void sessionSaltsAreSharedPerKeyAndIterations() {
+        KeyDerivation derivation = new KeyDerivation(4);
+        byte[] salt = derivation.sessionSalt(KEY_A, ITERATIONS);
+        assertArrayEquals(salt, derivation.sessionSalt(KEY_A, ITERATIONS));
+        assertFalse(Arrays.equals(salt, derivation.sessionSalt(KEY_B, ITERATIONS)));
+        assertFalse(Arrays.equals(salt, derivation.sessionSalt(KEY_A, ITERATIONS + 1)));
+        assertFalse(Arrays.equals(derivation.newSalt(), derivation.newSalt()));
+    }
+
+    @Test
+    public void unsupportedIterationsAreRejected() {
+        KeyDerivation derivation = new KeyDerivation(4);
+        assertThrows(GeneralSecurityException.class,
+                () -> derivation.fileKey(KEY_A, SALT, KeyDerivation.MAX_ITERATIONS + 1, FILE_SALT));
+        //A failed derivation isn't cached
+        assertNull(derivation.cachedKey(KEY_A, SALT, KeyDerivation.MAX_ITERATIONS + 1));
+        assertThrows(IllegalArgumentException.class, () -> derivation.setIterations(0));
+        assertThrows(IllegalArgumentException.class, () -> new KeyDerivation(0));
+    }
+}
@@ -0,0 +1,164 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Encrypts and decrypts through the stream, channel and async APIs, and
+ * checks that each of them reads what the others, and the file API, wrote.
+ */
+public class LibraryApiTest {
+    private static final int SEGMENT_SIZE = FileHeader.DEFAULT_SEGMENT_SIZE;
+
+    //Empty, a single byte, part of a segment, and several segments with a partial one at the end
+    private static final int[] SIZES = { 0, 1, 100_000, 2 * SEGMENT_SIZE + 123 };
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private static CipherOptions options(Compression compression) {
+        CipherOptions options = new CipherOptions();
+        options.setCompression(compression);
+        return options;
+    }
+
+    /**
+     * Writes through a wrapped stream in chunks that don't line up with anything.
+     */
+    private byte[] throughOutputStream(byte[] data, EncryptionDirection type, CipherOptions options)
+            throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream out = cipher.wrapOutputStream(result, TestFiles.KEY, type, options)) {
+            for (int offset = 0; offset < data.length; offset += 7777) {
+                out.write(data, offset, Math.min(7777, data.length - offset));
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private byte[] throughInputStream(byte[] data, EncryptionDirection type, CipherOptions options)
+            throws Exception {
+        try (InputStream in = cipher.wrapInputStream(new ByteArrayInputStream(data), TestFiles.KEY, type,
+                options)) {
+            //A single byte first, then whatever the rest comes in
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            int first = in.read();
+            if (first != -1) {
+                result.write(first);
+                in.transferTo(result);
+            }
+            return result.toByteArray();
+        }
+    }
+
+    private byte[] throughChannels(byte[] data, EncryptionDirection type, CipherOptions options) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        assertEquals(data.length, cipher.process(Channels.newChannel(new ByteArrayInputStream(data)),
+                Channels.newChannel(result), TestFiles.KEY, type, options));
+        return result.toByteArray();
+    }
+
+    @Test
+    public void streamsAndChannelsRoundTrip() throws Exception {
+        for (Compression compression : new Compression[] { Compression.NONE, Compression.DEFLATE }) {
+            CipherOptions options = options(compression);
+            for (int size : SIZES) {
+                String job = compression + ", " + size + " bytes";
+                byte[] plain = TestFiles.randomBytes(size, size);
+
+                byte[][] encrypted = {
+                    throughOutputStream(plain, EncryptionDirection.ENCRYPT, options),
+                    throughInputStream(plain, EncryptionDirection.ENCRYPT, options),
+                    throughChannels(plain, EncryptionDirection.ENCRYPT, options),
+                };
+                for (int i = 0; i < encrypted.length; i++) {
+                    //Whatever encrypted it, every API decrypts it
+                    String encrypter = job + ", encrypted by API " + i;
+                    assertArrayEquals(plain, throughOutputStream(encrypted[i], EncryptionDirection.DECRYPT,
+                            options), encrypter + ", decrypted by the output stream");
+                    assertArrayEquals(plain, throughInputStream(encrypted[i], EncryptionDirection.DECRYPT,
+                            options), encrypter + ", decrypted by the input stream");
+                    assertArrayEquals(plain, throughChannels(encrypted[i], EncryptionDirection.DECRYPT,
+                            options), encrypter + ", decrypted through channels");
+
+                    ByteArrayOutputStream processed = new ByteArrayOutputStream();
+                    cipher.process(new ByteArrayInputStream(encrypted[i]), processed, TestFiles.KEY,
+                            EncryptionDirection.DECRYPT, new CipherOptions());
+                    assertArrayEquals(plain, processed.toByteArray(), encrypter + ", processed");
+                }
+
+                //...and so does the file API
+                File encryptedFile = TestFiles.write(directory, "stream-" + size + ".bin.enc", encrypted[0]);
+                File decrypted = cipher.processFileAndWait(encryptedFile, TestFiles.KEY,
+                        EncryptionDirection.DECRYPT, new CipherOptions(), TestFiles.NO_PROGRESS);
+                assertArrayEquals(plain, TestFiles.read(decrypted), job + ", decrypted from a file");
+                decrypted.delete();
+            }
+        }
+    }
+
+    @Test
+    public void channelsAreLeftOpen() throws Exception {
+        byte[] plain = TestFiles.randomBytes(SEGMENT_SIZE + 5, 1);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File encrypted = new File(directory.toFile(), "plain.bin.enc");
+
+        try (FileChannel in = FileChannel.open(input.toPath());
+             FileChannel out = FileChannel.open(encrypted.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            cipher.process(in, out, TestFiles.KEY, EncryptionDirection.ENCRYPT, new CipherOptions());
+            assertTrue(in.isOpen());
+            assertTrue(out.isOpen());
+        }
+        assertArrayEquals(plain, throughInputStream(TestFiles.read(encrypted), EncryptionDirection.DECRYPT,
+                new CipherOptions()));
+    }
+
+    @Test
+    public void asyncJobsCompleteWithTheirOutput() throws Exception {
+        byte[] plain = TestFiles.randomBytes(2 * SEGMENT_SIZE + 123, 2);
+        File input = TestFiles.write(directory, "plain.txt", plain);
+
+        //Runs on the given executor
+        AtomicInteger executed = new AtomicInteger();
+        Executor executor = task -> {
+            executed.incrementAndGet();
+            new Thread(task).start();
+        };
+        File encrypted = cipher.processFileAsync(input, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS, executor).get();
+        assertEquals(1, executed.get());
+        assertEquals(SimpleCipherAES.getOutputFile(input, EncryptionDirection.ENCRYPT), encrypted);
+
+        File decrypted = cipher.processFileAsync(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                new CipherOptions(), TestFiles.NO_PROGRESS).get();
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+
+        //A failed job completes with the error the blocking call would have thrown
+        CompletableFuture<File> wrongKey = cipher.processFileAsync(encrypted, cipher.hashKey("wrong"),
+                EncryptionDirection.DECRYPT, new CipherOptions(), TestFiles.NO_PROGRESS);
+        ExecutionException failure = assertThrows(ExecutionException.class, wrongKey::get);
+        assertTrue(failure.getCause() instanceof InvalidKeyException, failure.getCause().toString());
+    }
+}
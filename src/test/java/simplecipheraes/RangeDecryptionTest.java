@@ -0,0 +1,104 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Decrypts ranges of encrypted files at and around segment and block
+ * boundaries, in every mode new files can use, and checks which ranges are
+ * rejected.
+ */
+public class RangeDecryptionTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private File encrypt(byte[] plain, SegmentLayout layout) throws Exception {
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File encrypted = new File(directory.toFile(), "plain.bin.enc");
+        new ParallelCipherEngine(layout, 2, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(input, encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+        return encrypted;
+    }
+
+    @Test
+    public void rangesMatchThePlaintext() throws Exception {
+        //Every mode pads differently, so the size of the last segment is found differently too
+        int[] sizes = { 0, 1, SegmentLayout.BLOCK_SIZE, 3 * SEGMENT_SIZE, 3 * SEGMENT_SIZE + 123 };
+        long[] offsets = { 0, 1, SegmentLayout.BLOCK_SIZE - 1, SEGMENT_SIZE - 5, SEGMENT_SIZE, 2 * SEGMENT_SIZE + 17 };
+        int[] lengths = { 0, 1, SegmentLayout.BLOCK_SIZE + 1, SEGMENT_SIZE + 10, 4 * SEGMENT_SIZE };
+
+        for (CipherMode mode : new CipherMode[] { CipherMode.CTR, CipherMode.CBC }) {
+            for (int size : sizes) {
+                byte[] plain = TestFiles.randomBytes(size, size);
+                File encrypted = encrypt(plain, FileHeader.newLayout(SEGMENT_SIZE, mode, null));
+
+                for (long offset : offsets) {
+                    if (offset > size) {
+                        continue;
+                    }
+                    for (int length : lengths) {
+                        //Past the end, the range is cut short
+                        byte[] expected = Arrays.copyOfRange(plain, (int) offset,
+                                (int) Math.min(size, offset + length));
+                        assertArrayEquals(expected, cipher.decryptRange(encrypted, TestFiles.KEY, offset, length),
+                                mode + ", " + size + " bytes, " + length + " at " + offset);
+                    }
+                }
+                assertEquals(0, cipher.decryptRange(encrypted, TestFiles.KEY, size, 10).length,
+                        mode + ", " + size + " bytes");
+            }
+        }
+    }
+
+    @Test
+    public void invalidRangesAreRejected() throws Exception {
+        int size = 2 * SEGMENT_SIZE + 5;
+        File encrypted = encrypt(TestFiles.randomBytes(size, 1), FileHeader.newLayout(SEGMENT_SIZE));
+
+        assertThrows(IllegalArgumentException.class, () -> cipher.decryptRange(encrypted, TestFiles.KEY, -1, 10));
+        assertThrows(IllegalArgumentException.class, () -> cipher.decryptRange(encrypted, TestFiles.KEY, 0, -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> cipher.decryptRange(encrypted, TestFiles.KEY, size + 1, 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> cipher.decryptRange(encrypted, TestFiles.KEY, Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void channelReadsFromItsPosition() throws Exception {
+        byte[] plain = TestFiles.randomBytes(3 * SEGMENT_SIZE + 123, 2);
+        File encrypted = encrypt(plain, FileHeader.newLayout(SEGMENT_SIZE));
+
+        try (SeekableDecryptingChannel channel = new SeekableDecryptingChannel(encrypted, TestFiles.KEY)) {
+            assertEquals(plain.length, channel.size());
+
+            //Backwards, so every read has to seek
+            ByteBuffer chunk = ByteBuffer.allocate(1000);
+            for (long position = plain.length - 500; position >= 0; position -= 1500) {
+                chunk.clear();
+                channel.position(position);
+                int bytesRead = channel.read(chunk);
+                assertEquals(Math.min(1000, plain.length - position), bytesRead);
+                assertEquals(position + bytesRead, channel.position());
+                assertArrayEquals(Arrays.copyOfRange(plain, (int) position, (int) position + bytesRead),
+                        Arrays.copyOf(chunk.array(), bytesRead), "At " + position);
+            }
+
+            chunk.clear();
+            assertEquals(-1, channel.read(chunk, plain.length));
+            assertThrows(IllegalArgumentException.class, () -> channel.read(ByteBuffer.allocate(1), -1));
+            assertThrows(IllegalArgumentException.class, () -> channel.position(-1));
+        }
+    }
+}
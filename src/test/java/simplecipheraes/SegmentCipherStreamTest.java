@@ -0,0 +1,86 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decrypts through the stream APIs, checking what callers get to see of
+ * a stream with a corrupted segment.
+ */
+public class SegmentCipherStreamTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final SegmentLayout LAYOUT = FileHeader.newLayout(SEGMENT_SIZE);
+    private static final int SEGMENT_COUNT = 4;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private static byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        new StreamingCipherEngine(LAYOUT, TestFiles.BUFFER_SIZE)
+                .process(new ByteArrayInputStream(plain), encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+        return encrypted.toByteArray();
+    }
+
+    private static byte[] corrupt(byte[] encrypted, long segment) {
+        byte[] corrupted = encrypted.clone();
+        corrupted[(int) LAYOUT.getOutputOffset(EncryptionDirection.ENCRYPT, segment) + 50] ^= 1;
+        return corrupted;
+    }
+
+    @Test
+    public void inputStreamReturnsNothingFromCorruptedSegment() throws Exception {
+        byte[] plain = TestFiles.randomBytes((SEGMENT_COUNT - 1) * SEGMENT_SIZE + 100, 1);
+        byte[] encrypted = encrypt(plain);
+
+        for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+            ByteArrayOutputStream returned = new ByteArrayOutputStream();
+            try (InputStream in = cipher.wrapInputStream(new ByteArrayInputStream(corrupt(encrypted, segment)),
+                    TestFiles.KEY, EncryptionDirection.DECRYPT, new CipherOptions())) {
+                CipherStreamException failure = assertThrows(CipherStreamException.class, () -> {
+                    //Small reads, so nothing is missed between a read and the failure
+                    byte[] buffer = new byte[100];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        returned.write(buffer, 0, bytesRead);
+                    }
+                });
+                assertTrue(failure.getCause() instanceof AEADBadTagException);
+            }
+            assertArrayEquals(Arrays.copyOf(plain, segment * SEGMENT_SIZE), returned.toByteArray(),
+                    "Segment " + segment + " corrupted");
+        }
+    }
+
+    @Test
+    public void outputStreamWritesNothingFromCorruptedSegment() throws Exception {
+        byte[] plain = TestFiles.randomBytes((SEGMENT_COUNT - 1) * SEGMENT_SIZE + 100, 2);
+        byte[] encrypted = encrypt(plain);
+
+        for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+            byte[] corrupted = corrupt(encrypted, segment);
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            SegmentCipherOutputStream out = cipher.wrapOutputStream(written, TestFiles.KEY,
+                    EncryptionDirection.DECRYPT, new CipherOptions());
+            assertThrows(CipherStreamException.class, () -> {
+                out.write(corrupted);
+                out.finish();
+            });
+            assertArrayEquals(Arrays.copyOf(plain, segment * SEGMENT_SIZE), written.toByteArray(),
+                    "Segment " + segment + " corrupted");
+
+            ByteArrayOutputStream processed = new ByteArrayOutputStream();
+            assertThrows(AEADBadTagException.class, () -> cipher.process(new ByteArrayInputStream(corrupted),
+                    processed, TestFiles.KEY, EncryptionDirection.DECRYPT, new CipherOptions()));
+            assertArrayEquals(Arrays.copyOf(plain, segment * SEGMENT_SIZE), processed.toByteArray(),
+                    "Segment " + segment + " corrupted");
+        }
+    }
+}
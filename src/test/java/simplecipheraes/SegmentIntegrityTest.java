@@ -0,0 +1,124 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the header rejects a wrong key, that the segment tags catch a
+ * corrupted segment however the file is read, and that files from before
+ * the header was added still decrypt.
+ */
+public class SegmentIntegrityTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final SegmentLayout LAYOUT = FileHeader.newLayout(SEGMENT_SIZE);
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private File encrypt(byte[] plain) throws Exception {
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File encrypted = new File(directory.toFile(), "plain.bin.enc");
+        new ParallelCipherEngine(LAYOUT, 2, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(input, encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+        return encrypted;
+    }
+
+    @Test
+    public void wrongKeyIsRejected() throws Exception {
+        File encrypted = encrypt(TestFiles.randomBytes(3 * SEGMENT_SIZE, 1));
+        byte[] wrongKey = cipher.hashKey("not the test key");
+
+        for (Map.Entry<String, TestFiles.FileEngine> engine : TestFiles.engines(LAYOUT).entrySet()) {
+            File decrypted = new File(directory.toFile(), engine.getKey().replace('/', '-') + ".bin");
+            assertThrows(InvalidKeyException.class, () -> engine.getValue().process(encrypted, decrypted,
+                    wrongKey, EncryptionDirection.DECRYPT), engine.getKey());
+        }
+        assertThrows(InvalidKeyException.class,
+                () -> cipher.verifyFile(encrypted, wrongKey, new CipherOptions(), TestFiles.NO_PROGRESS));
+        assertThrows(InvalidKeyException.class, () -> cipher.decryptRange(encrypted, wrongKey, 0, 16));
+
+        //Nothing is left behind, so there's nothing to mistake for the decrypted file
+        assertThrows(InvalidKeyException.class, () -> cipher.processFileAndWait(encrypted, wrongKey,
+                EncryptionDirection.DECRYPT, new CipherOptions(), TestFiles.NO_PROGRESS));
+        File output = SimpleCipherAES.getOutputFile(encrypted, EncryptionDirection.DECRYPT);
+        assertFalse(output.exists());
+        assertFalse(new File(output.getPath() + SimpleCipherAES.PART_SUFFIX).exists());
+    }
+
+    @Test
+    public void corruptedSegmentIsDetected() throws Exception {
+        byte[] plain = TestFiles.randomBytes(5 * SEGMENT_SIZE + 123, 2);
+        File encrypted = encrypt(plain);
+        try (RandomAccessFile file = new RandomAccessFile(encrypted, "rw")) {
+            long position = LAYOUT.getOutputOffset(EncryptionDirection.ENCRYPT, 2) + 100;
+            file.seek(position);
+            int original = file.read();
+            file.seek(position);
+            file.write(original ^ 1);
+        }
+
+        List<Long> corrupted = cipher.verifyFile(encrypted, TestFiles.KEY, new CipherOptions(),
+                TestFiles.NO_PROGRESS);
+        assertEquals(Collections.singletonList(2L), corrupted);
+
+        for (Map.Entry<String, TestFiles.FileEngine> engine : TestFiles.engines(LAYOUT).entrySet()) {
+            File decrypted = new File(directory.toFile(), engine.getKey().replace('/', '-') + ".bin");
+            assertThrows(AEADBadTagException.class, () -> engine.getValue().process(encrypted, decrypted,
+                    TestFiles.KEY, EncryptionDirection.DECRYPT), engine.getKey());
+        }
+
+        //Reading around the damaged segment still works
+        assertArrayEquals(Arrays.copyOfRange(plain, 0, 2 * SEGMENT_SIZE),
+                cipher.decryptRange(encrypted, TestFiles.KEY, 0, 2 * SEGMENT_SIZE));
+        assertThrows(AEADBadTagException.class,
+                () -> cipher.decryptRange(encrypted, TestFiles.KEY, 2 * SEGMENT_SIZE, 1));
+
+        //A damaged file never decrypts silently, even in part
+        assertThrows(AEADBadTagException.class, () -> cipher.processFileAndWait(encrypted, TestFiles.KEY,
+                EncryptionDirection.DECRYPT, new CipherOptions(), TestFiles.NO_PROGRESS));
+        File output = SimpleCipherAES.getOutputFile(encrypted, EncryptionDirection.DECRYPT);
+        assertFalse(output.exists());
+        assertFalse(new File(output.getPath() + SimpleCipherAES.PART_SUFFIX).exists());
+    }
+
+    @Test
+    public void legacyFilesDecrypt() throws Exception {
+        //Older versions encrypted the whole file with AES/ECB under the hashed password, with no header
+        int[] sizes = { 1, SegmentLayout.BLOCK_SIZE - 1, SegmentLayout.BLOCK_SIZE, 5 * SEGMENT_SIZE + 123 };
+        Cipher legacy = Cipher.getInstance(CipherMode.ECB.getTransformation());
+        legacy.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(TestFiles.KEY, "AES"));
+
+        for (int size : sizes) {
+            byte[] plain = TestFiles.randomBytes(size, size);
+            File encrypted = TestFiles.write(directory, "legacy-" + size + ".bin.enc", legacy.doFinal(plain));
+
+            for (Map.Entry<String, TestFiles.FileEngine> engine : TestFiles.engines(LAYOUT).entrySet()) {
+                File decrypted = new File(directory.toFile(), "decrypted.bin");
+                engine.getValue().process(encrypted, decrypted, TestFiles.KEY, EncryptionDirection.DECRYPT);
+                assertArrayEquals(plain, TestFiles.read(decrypted), engine.getKey() + ", " + size + " bytes");
+            }
+
+            File decrypted = cipher.processFileAndWait(encrypted, TestFiles.KEY, EncryptionDirection.DECRYPT,
+                    new CipherOptions(), TestFiles.NO_PROGRESS);
+            assertArrayEquals(plain, TestFiles.read(decrypted), size + " bytes");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package simplecipheraes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs parallel jobs one after another and checks that later jobs' workers
+ * reuse the cipher contexts earlier ones cached, and that a failed job
+ * doesn't leave the shared workers unusable.
+ */
+public class SegmentWorkersTest {
+    private static final int SEGMENT_SIZE = TestFiles.SEGMENT_SIZE;
+    private static final SegmentLayout LAYOUT = FileHeader.newLayout(SEGMENT_SIZE);
+    private static final int THREADS = 3;
+
+    @TempDir
+    Path directory;
+
+    private final SimpleCipherAES cipher = new SimpleCipherAES(TestFiles.NO_PROGRESS);
+
+    private void encrypt(File input, File output) throws Exception {
+        new ParallelCipherEngine(LAYOUT, THREADS, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(input, output, TestFiles.KEY, EncryptionDirection.ENCRYPT, null);
+        //Lets the workers go back to waiting for work before the next job asks for them
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void laterJobsReuseCachedContexts() throws Exception {
+        File input = TestFiles.write(directory, "plain.bin", TestFiles.randomBytes(20 * SEGMENT_SIZE, 1));
+        File output = new File(directory.toFile(), "plain.bin.enc");
+        CipherContextCache cache = CipherContextCache.getShared();
+
+        encrypt(input, output);
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        encrypt(input, output);
+
+        //Every worker acquires one cipher, and finds the one a worker of the first job released
+        assertEquals(hits + THREADS, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    public void failedJobLeavesWorkersUsable() throws Exception {
+        byte[] plain = TestFiles.randomBytes(20 * SEGMENT_SIZE, 2);
+        File input = TestFiles.write(directory, "plain.bin", plain);
+        File encrypted = new File(directory.toFile(), "plain.bin.enc");
+
+        assertThrows(IOException.class, () -> new ParallelCipherEngine(LAYOUT, THREADS, TestFiles.BUFFER_SIZE,
+                IoBackend.CHANNEL).process(input, encrypted, TestFiles.KEY, EncryptionDirection.ENCRYPT,
+                bytesDone -> {
+                    if (bytesDone >= 5L * SEGMENT_SIZE) {
+                        throw new IllegalStateException("Failed");
+                    }
+                }));
+
+        //The interrupted workers' threads go on to run the next job's workers
+        encrypt(input, encrypted);
+        File decrypted = new File(directory.toFile(), "decrypted.bin");
+        new ParallelCipherEngine(LAYOUT, THREADS, TestFiles.BUFFER_SIZE, IoBackend.CHANNEL)
+                .process(encrypted, decrypted, TestFiles.KEY, EncryptionDirection.DECRYPT, null);
+        assertArrayEquals(plain, TestFiles.read(decrypted));
+        assertEquals(List.of(), cipher.verifyFile(encrypted, TestFiles.KEY, new CipherOptions(),
+                TestFiles.NO_PROGRESS));
+    }
+}
@@ -0,0 +1,99 @@
+package simplecipheraes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Helpers shared by the tests for making test files and running them through every engine.
+ */
+final class TestFiles {
+    static final ProgressListener NO_PROGRESS = new ProgressListener() {
+        @Override
+        public void updateProgress(Progress progress) {
+        }
+
+        @Override
+        public void updateProgress(String message) {
+        }
+    };
+
+    /**
+     * Small enough that a few kilobytes cover several segments; a multiple of the block size, like every segment size
+     */
+    static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * Not a divisor of the segment size, so reads straddle segment boundaries
+     */
+    static final int BUFFER_SIZE = 1000;
+
+    static final byte[] KEY;
+
+    static {
+        //The default iterations take most of a second per file; the tests only need the format to be right
+        KeyDerivation.getShared().setIterations(1000);
+        KEY = new SimpleCipherAES(NO_PROGRESS).hashKey("test");
+    }
+
+    private TestFiles() {
+    }
+
+    /**
+     * Encrypts or decrypts one file into another with a particular engine.
+     */
+    interface FileEngine {
+        void process(File input, File output, byte[] key, EncryptionDirection direction) throws Exception;
+    }
+
+    /**
+     * Every engine and I/O backend, by name, encrypting in the given layout.
+     * Decrypting goes by the layout in the file's header instead.
+     */
+    static Map<String, FileEngine> engines(SegmentLayout layout) {
+        Map<String, FileEngine> engines = new LinkedHashMap<>();
+        engines.put("streaming", (input, output, key, direction) -> {
+            try (InputStream in = new FileInputStream(input);
+                 OutputStream out = new FileOutputStream(output)) {
+                new StreamingCipherEngine(layout, BUFFER_SIZE).process(in, out, key, direction, null);
+            }
+        });
+        for (IoBackend ioBackend : IoBackend.values()) {
+            engines.put("parallel/" + ioBackend, (input, output, key, direction) ->
+                    new ParallelCipherEngine(layout, 3, BUFFER_SIZE, ioBackend)
+                            .process(input, output, key, direction, null));
+            engines.put("pipelined/" + ioBackend, (input, output, key, direction) ->
+                    new PipelinedCipherEngine(layout, 2, BUFFER_SIZE, ioBackend)
+                            .process(input, output, key, direction, null));
+        }
+        return engines;
+    }
+
+    /**
+     * Pseudo-random (i.e. incompressible) bytes; the same for the same size and seed.
+     */
+    static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static File write(Path directory, String name, byte[] contents) throws IOException {
+        Path path = directory.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, contents);
+        return path.toFile();
+    }
+
+    static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+}